@@ -0,0 +1,123 @@
+package bte;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton for finding many terms in one pass over the text.
+ * Case-insensitive automatons fold both the terms and the text with {@link #fold(char)}.
+ */
+public class AhoCorasick {
+
+    /**
+     * Receives every match as [start, end).
+     */
+    public interface MatchHandler {
+        void onMatch(int start, int end);
+    }
+
+    private final List<Map<Character, Integer>> children = new ArrayList<>();
+    private final List<Integer> fail = new ArrayList<>();
+    // Lengths of the terms ending at each state, including the ones reached through fail links
+    private final List<int[]> outputs = new ArrayList<>();
+    private final boolean ignoreCase;
+
+    public AhoCorasick(List<String> terms, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        addState();
+        for (String term : terms) {
+            if (!term.isEmpty()) {
+                addTerm(term);
+            }
+        }
+        buildFailLinks();
+    }
+
+    private int addState() {
+        children.add(new HashMap<>());
+        fail.add(0);
+        outputs.add(new int[0]);
+        return children.size() - 1;
+    }
+
+    private void addTerm(String term) {
+        int state = 0;
+        for (int i = 0; i < term.length(); i++) {
+            char c = ignoreCase ? fold(term.charAt(i)) : term.charAt(i);
+            Integer next = children.get(state).get(c);
+            if (next == null) {
+                next = addState();
+                children.get(state).put(c, next);
+            }
+            state = next;
+        }
+        // Terms that fold to the same text are reported once
+        for (int length : outputs.get(state)) {
+            if (length == term.length()) {
+                return;
+            }
+        }
+        outputs.set(state, append(outputs.get(state), term.length()));
+    }
+
+    private void buildFailLinks() {
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : children.get(0).values()) {
+            fail.set(child, 0);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> edge : children.get(state).entrySet()) {
+                int child = edge.getValue();
+                int f = fail.get(state);
+                while (f != 0 && !children.get(f).containsKey(edge.getKey())) {
+                    f = fail.get(f);
+                }
+                Integer target = children.get(f).get(edge.getKey());
+                int link = target != null && target != child ? target : 0;
+                fail.set(child, link);
+                int[] inherited = outputs.get(link);
+                for (int length : inherited) {
+                    outputs.set(child, append(outputs.get(child), length));
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Reports all (possibly overlapping) matches in text[start, end).
+     */
+    public void search(CharSequence text, int start, int end, MatchHandler handler) {
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            char c = ignoreCase ? fold(text.charAt(i)) : text.charAt(i);
+            while (state != 0 && !children.get(state).containsKey(c)) {
+                state = fail.get(state);
+            }
+            Integer next = children.get(state).get(c);
+            state = next == null ? 0 : next;
+            for (int length : outputs.get(state)) {
+                handler.onMatch(i - length + 1, i + 1);
+            }
+        }
+    }
+
+    /**
+     * Simple one-to-one case folding.
+     */
+    public static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = value;
+        return result;
+    }
+}
@@ -0,0 +1,212 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Background export to the native {@link BteFormat}.
+ * Works like the {@link DocxExporter}: from a snapshot, on a virtual thread, through a temporary
+ * file that replaces the target only once it is complete. The document is cut into one chunk per
+ * page, using the page breaks the pagination had when the snapshot was taken, so that opening
+ * the file can decode the first page before anything else.
+ */
+public class BteExporter {
+
+    // Used when the page breaks do not fit the snapshot
+    private static final int PARAGRAPHS_PER_CHUNK = 50;
+    private static final long PROGRESS_NANOS = 100_000_000L;
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts writing the snapshot to the file, cancelling any export still running.
+     *
+     * @param pageStarts first paragraph of every page
+     */
+    public void save(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, List<Integer> pageStarts,
+            File file, DocxExporter.ExportListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        Map<Node, EmbeddedObject> objects = EmbeddedObject.describeAll(snapshot);
+        List<Integer> chunkStarts = chunkStarts(pageStarts, snapshot.getParagraphs().size());
+        listener.onProgress(0);
+        worker = Thread.ofVirtual().name("bte-export").start(() -> {
+            Path target = file.toPath().toAbsolutePath();
+            Path temp = null;
+            try {
+                temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    write(snapshot, chunkStarts, objects, channel, myGeneration, listener);
+                    // On disk before it replaces the target, or a crash could leave an empty file
+                    // in its place; the journal drops the edits up to a snapshot once it is written
+                    channel.force(true);
+                }
+                if (generation.get() != myGeneration)
+                    throw new CancellationException();
+                DocxExporter.replace(temp, target);
+                temp = null;
+                deliver(myGeneration, listener::onSaved);
+            } catch (CancellationException e) {
+                // Cancelled, or replaced by a newer export
+            } catch (IOException | RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError(e.getMessage()));
+            } finally {
+                DocxExporter.deleteQuietly(temp);
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running export; the target file is left as it was.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        worker = null;
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    // Page breaks can lag behind the last edits; they only decide where chunks end
+    private static List<Integer> chunkStarts(List<Integer> pageStarts, int paragraphCount) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int start : pageStarts) {
+            if (start > starts.get(starts.size() - 1) && start < paragraphCount) {
+                starts.add(start);
+            }
+        }
+        if (starts.size() == 1) {
+            for (int start = PARAGRAPHS_PER_CHUNK; start < paragraphCount; start += PARAGRAPHS_PER_CHUNK) {
+                starts.add(start);
+            }
+        }
+        return starts;
+    }
+
+    private void write(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, List<Integer> chunkStarts,
+            Map<Node, EmbeddedObject> objects, FileChannel channel, int myGeneration,
+            DocxExporter.ExportListener listener) throws IOException {
+        List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs = snapshot.getParagraphs();
+        ByteBuffer chunkIndex = ByteBuffer.allocate(chunkStarts.size() * BteFormat.CHUNK_ENTRY_SIZE);
+        Map<String, Integer> images = new LinkedHashMap<>();
+        Deflater deflater = new Deflater();
+        long lastProgress = System.nanoTime();
+        channel.position(BteFormat.HEADER_SIZE);
+
+        try {
+            for (int c = 0; c < chunkStarts.size(); c++) {
+                if (generation.get() != myGeneration)
+                    throw new CancellationException();
+                int from = chunkStarts.get(c);
+                int to = c + 1 < chunkStarts.size() ? chunkStarts.get(c + 1) : paragraphs.size();
+                byte[] chunk = encodeChunk(paragraphs.subList(from, to), objects, images);
+
+                deflater.reset();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(chunk.length / 2 + 64);
+                try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                    out.write(chunk);
+                }
+                chunkIndex.putLong(channel.position()).putInt(compressed.size()).putInt(chunk.length)
+                        .putInt(from).putInt(to - from);
+                writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+
+                if (System.nanoTime() - lastProgress > PROGRESS_NANOS) {
+                    lastProgress = System.nanoTime();
+                    double progress = (double) (c + 1) / chunkStarts.size();
+                    deliver(myGeneration, () -> listener.onProgress(progress));
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        deliver(myGeneration, () -> listener.onProgress(-1));
+
+        // Image bytes are compressed already
+        ByteBuffer imageIndex = ByteBuffer.allocate(images.size() * BteFormat.IMAGE_ENTRY_SIZE);
+        for (String key : images.keySet()) {
+            byte[] bytes = ImageStore.get(key);
+            imageIndex.putLong(channel.position()).putInt(bytes.length);
+            writeFully(channel, ByteBuffer.wrap(bytes));
+        }
+
+        long indexOffset = channel.position();
+        writeFully(channel, chunkIndex.flip());
+        writeFully(channel, imageIndex.flip());
+
+        ByteBuffer header = ByteBuffer.allocate(BteFormat.HEADER_SIZE);
+        header.putInt(BteFormat.MAGIC).putInt(BteFormat.VERSION).putLong(indexOffset).putInt(chunkStarts.size())
+                .putInt(paragraphs.size()).putInt(images.size());
+        channel.position(0);
+        writeFully(channel, header.flip());
+    }
+
+    /**
+     * The objects of the paragraphs, then the paragraphs themselves.
+     *
+     * @param images numbers the distinct images of the whole file, in the order they are met
+     */
+    private static byte[] encodeChunk(List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs,
+            Map<Node, EmbeddedObject> objects, Map<String, Integer> images) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        List<Node> nodes = new ArrayList<>();
+        DataOutputStream textOut = new DataOutputStream(text);
+        new StyledTextCodec.Writer(textOut, nodes).write(paragraphs);
+        textOut.flush();
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(text.size() + nodes.size() * 16 + 8);
+        DataOutputStream out = new DataOutputStream(chunk);
+        StyledTextCodec.writeVarInt(out, nodes.size());
+        for (Node node : nodes) {
+            BteFormat.writeObject(out, objects.get(node), key -> {
+                if (ImageStore.get(key) == null)
+                    return -1;
+                return images.computeIfAbsent(key, k -> images.size());
+            });
+        }
+        text.writeTo(out);
+        out.flush();
+        return chunk.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if the export was cancelled in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package bte;
+
+import javafx.scene.Node;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Layout of the native .bte document file.
+ * <pre>
+ * header  magic "BTE1", version, index offset (long), chunk count, paragraph count, image count
+ * chunks  one per page, each compressed on its own with Deflate
+ * images  the encoded bytes of every distinct image, as kept in the {@link ImageStore}
+ * index   per chunk: offset (long), compressed length, inflated length, first paragraph,
+ *         paragraph count; per image: offset (long), length
+ * </pre>
+ * An inflated chunk holds the embedded objects of its page and then its paragraphs in
+ * {@link StyledTextCodec} form, which refers to the objects by position. Each chunk carries its
+ * own style table, so any page can be decoded from the index alone. All numbers are big-endian;
+ * counts inside chunks are variable-length.
+ */
+public final class BteFormat {
+
+    static final int MAGIC = 0x42544531; // "BTE1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+    static final int CHUNK_ENTRY_SIZE = 8 + 4 + 4 + 4 + 4;
+    static final int IMAGE_ENTRY_SIZE = 8 + 4;
+
+    // Kinds of embedded objects
+    static final int UNKNOWN = 0;
+    static final int PICTURE = 1;
+    static final int TABLE = 2;
+    static final int CONTENTS = 3;
+
+    private BteFormat() {
+    }
+
+    /**
+     * Looks up the key of an image by its number in the file.
+     */
+    interface ImageKeys {
+        String get(int image) throws IOException;
+    }
+
+    /**
+     * Writes the record of one embedded object.
+     *
+     * @param imageNumber number of a stored image in the file, or -1 if it cannot be written
+     */
+    static void writeObject(DataOutput out, EmbeddedObject object, ToIntFunction<String> imageNumber)
+            throws IOException {
+        int image = object instanceof EmbeddedObject.Picture picture ? imageNumber.applyAsInt(picture.key) : -1;
+        if (object instanceof EmbeddedObject.Picture picture && image >= 0) {
+            out.writeByte(PICTURE);
+            StyledTextCodec.writeVarInt(out, image);
+            out.writeDouble(picture.width);
+            out.writeDouble(picture.height);
+        } else if (object instanceof EmbeddedObject.TableData table) {
+            out.writeByte(TABLE);
+            out.writeDouble(table.width);
+            out.writeDouble(table.height);
+            int rows = table.cells.length;
+            int columns = rows == 0 ? 0 : table.cells[0].length;
+            StyledTextCodec.writeVarInt(out, rows);
+            StyledTextCodec.writeVarInt(out, columns);
+            for (String[] row : table.cells) {
+                for (String cell : row) {
+                    StyledTextCodec.writeNullableString(out, cell);
+                }
+            }
+        } else if (object instanceof EmbeddedObject.Contents contents) {
+            // Rebuilt from the headings when read back
+            out.writeByte(CONTENTS);
+            out.writeDouble(contents.width);
+            out.writeDouble(contents.height);
+        } else {
+            out.writeByte(UNKNOWN);
+        }
+    }
+
+    /**
+     * Reads the rest of an object record whose kind has been read. The returned supplier creates
+     * the node; for tables and tables of contents it has to run on the FX thread.
+     *
+     * @param contents creates the box of a table of contents
+     */
+    static Supplier<Node> readObject(int kind, DataInput in, ImageKeys images, Supplier<VBox> contents)
+            throws IOException {
+        switch (kind) {
+            case PICTURE: {
+                String key = images.get(StyledTextCodec.readVarInt(in));
+                double width = in.readDouble();
+                double height = in.readDouble();
+                return () -> new ResizableImageView(key, width, height);
+            }
+            case TABLE: {
+                double width = in.readDouble();
+                double height = in.readDouble();
+                String[][] cells = new String[StyledTextCodec.readVarInt(in)][StyledTextCodec.readVarInt(in)];
+                for (String[] row : cells) {
+                    for (int col = 0; col < row.length; col++) {
+                        row[col] = StyledTextCodec.readNullableString(in);
+                    }
+                }
+                return () -> ContentInserter.createTable(cells, width, height);
+            }
+            case CONTENTS: {
+                double width = in.readDouble();
+                double height = in.readDouble();
+                return () -> new ResizableTOCView(contents.get(), width, height);
+            }
+            default:
+                // Written by a newer version, or a node that could not be saved
+                return Region::new;
+        }
+    }
+
+    /**
+     * Whether nodes of this kind may only be created on the FX thread: table cells have
+     * context menus, which are windows, and a table of contents follows the live document.
+     */
+    static boolean needsFxThread(int kind) {
+        return kind == TABLE || kind == CONTENTS;
+    }
+}
@@ -0,0 +1,297 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.layout.VBox;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocumentBuilder;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.reactfx.util.Either;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Background import of the native {@link BteFormat}.
+ * Only the header and the index are read up front; every page chunk is read and inflated when
+ * its turn comes, and image bytes are read only for the pages that use them. The file is read
+ * with positioned reads rather than mapped, because a mapping stays open until it is garbage
+ * collected, and on Windows an open mapping keeps a save from replacing the file. The first page
+ * is decoded and shown before anything else, and the remaining pages follow in chunks the way
+ * the {@link DocxImporter} delivers them.
+ */
+public class BteImporter {
+
+    private static final int CHUNK_PARAGRAPHS = 2000;
+    private static final long CHUNK_NANOS = 100_000_000L;
+    // Chunks handed to the FX thread but not applied yet
+    private static final int CHUNKS_IN_FLIGHT = 2;
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts reading the file, cancelling any import still running.
+     *
+     * @param contents creates the box of a table of contents, on the FX thread
+     */
+    public void load(File file, Supplier<VBox> contents, DocxImporter.ImportListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        listener.onProgress(-1);
+        worker = Thread.ofVirtual().name("bte-import").start(() -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                new Reader(channel, contents, myGeneration, listener).read();
+                deliver(myGeneration, listener::onFinished);
+            } catch (CancellationException | InterruptedException e) {
+                // A newer import replaced this one
+            } catch (IOException | RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError(e.getMessage()));
+            } finally {
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running import; nothing more of it is delivered.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+            worker = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    /**
+     * Reads one file.
+     */
+    private class Reader {
+        private final FileChannel channel;
+        private final Supplier<VBox> contents;
+        private final int myGeneration;
+        private final DocxImporter.ImportListener listener;
+        private final Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+
+        private long size;
+        private long[] chunkOffsets;
+        private int[] chunkLengths;
+        private int[] inflatedLengths;
+        private int[] paragraphCounts;
+        private long[] imageOffsets;
+        private int[] imageLengths;
+        // Keys in the ImageStore, filled in as pages use the images
+        private String[] imageKeys;
+
+        Reader(FileChannel channel, Supplier<VBox> contents, int myGeneration,
+                DocxImporter.ImportListener listener) {
+            this.channel = channel;
+            this.contents = contents;
+            this.myGeneration = myGeneration;
+            this.listener = listener;
+        }
+
+        void read() throws IOException, InterruptedException {
+            readIndex();
+            int chunkCount = chunkOffsets.length;
+            ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder = newBuilder(true);
+            int paragraphs = 0;
+            boolean first = true;
+            long started = System.nanoTime();
+            for (int c = 0; c < chunkCount; c++) {
+                if (generation.get() != myGeneration)
+                    throw new CancellationException();
+                readChunk(c, builder);
+                paragraphs += paragraphCounts[c];
+                // The first page goes out on its own, so it shows up at once
+                if (first || paragraphs >= CHUNK_PARAGRAPHS || System.nanoTime() - started > CHUNK_NANOS
+                        || c == chunkCount - 1) {
+                    deliverChunk(builder.build(), first, (double) (c + 1) / chunkCount);
+                    builder = newBuilder(false);
+                    paragraphs = 0;
+                    first = false;
+                    started = System.nanoTime();
+                }
+            }
+            if (first) {
+                // A file without chunks is an empty document
+                builder.addParagraph(List.of(new StyledSegment<>(Either.left(""), CharStyle.EMPTY)), ParStyle.EMPTY);
+                deliverChunk(builder.build(), true, 1);
+            }
+        }
+
+        private void readIndex() throws IOException {
+            size = channel.size();
+            if (size < BteFormat.HEADER_SIZE)
+                throw new IOException("Not a BTE document");
+            ByteBuffer header = readAt(0, BteFormat.HEADER_SIZE);
+            if (header.getInt(0) != BteFormat.MAGIC)
+                throw new IOException("Not a BTE document");
+            if (header.getInt(4) != BteFormat.VERSION)
+                throw new IOException("Unsupported BTE version " + header.getInt(4));
+            long indexOffset = header.getLong(8);
+            int chunkCount = header.getInt(16);
+            int imageCount = header.getInt(24);
+            long indexLength = (long) chunkCount * BteFormat.CHUNK_ENTRY_SIZE
+                    + (long) imageCount * BteFormat.IMAGE_ENTRY_SIZE;
+            if (chunkCount < 0 || imageCount < 0 || indexOffset < BteFormat.HEADER_SIZE
+                    || indexLength > Integer.MAX_VALUE || indexOffset + indexLength > size)
+                throw new IOException("Damaged BTE document");
+            ByteBuffer index = readAt(indexOffset, (int) indexLength);
+
+            chunkOffsets = new long[chunkCount];
+            chunkLengths = new int[chunkCount];
+            inflatedLengths = new int[chunkCount];
+            paragraphCounts = new int[chunkCount];
+            int position = 0;
+            for (int c = 0; c < chunkCount; c++, position += BteFormat.CHUNK_ENTRY_SIZE) {
+                chunkOffsets[c] = index.getLong(position);
+                chunkLengths[c] = index.getInt(position + 8);
+                inflatedLengths[c] = index.getInt(position + 12);
+                paragraphCounts[c] = index.getInt(position + 20);
+                checkRange(chunkOffsets[c], chunkLengths[c]);
+            }
+            imageOffsets = new long[imageCount];
+            imageLengths = new int[imageCount];
+            imageKeys = new String[imageCount];
+            for (int i = 0; i < imageCount; i++, position += BteFormat.IMAGE_ENTRY_SIZE) {
+                imageOffsets[i] = index.getLong(position);
+                imageLengths[i] = index.getInt(position + 8);
+                checkRange(imageOffsets[i], imageLengths[i]);
+            }
+        }
+
+        private void checkRange(long offset, int length) throws IOException {
+            if (offset < BteFormat.HEADER_SIZE || length < 0 || offset + length > size)
+                throw new IOException("Damaged BTE document");
+        }
+
+        // The bytes [offset, offset + length) of the file, in a heap buffer
+        private ByteBuffer readAt(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new EOFException("Damaged BTE document");
+            }
+            return buffer.flip();
+        }
+
+        /**
+         * Adds the paragraphs of one page to the builder.
+         */
+        private void readChunk(int c, ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder)
+                throws IOException, InterruptedException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(c)));
+            Node[] nodes = new Node[StyledTextCodec.readVarInt(in)];
+            List<Runnable> onFxThread = new ArrayList<>();
+            for (int n = 0; n < nodes.length; n++) {
+                int index = n;
+                int kind = in.readByte();
+                Supplier<Node> node = BteFormat.readObject(kind, in, this::imageKey, contents);
+                if (BteFormat.needsFxThread(kind)) {
+                    onFxThread.add(() -> nodes[index] = node.get());
+                } else {
+                    nodes[n] = node.get();
+                }
+            }
+            if (!onFxThread.isEmpty()) {
+                runOnFxThread(onFxThread);
+            }
+            new StyledTextCodec.Reader(in, Arrays.asList(nodes)).readInto(builder);
+        }
+
+        private byte[] inflate(int c) throws IOException {
+            byte[] inflated = new byte[inflatedLengths[c]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(readAt(chunkOffsets[c], chunkLengths[c]));
+                int length = 0;
+                while (length < inflated.length) {
+                    int n = inflater.inflate(inflated, length, inflated.length - length);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("Damaged BTE document");
+                    length += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Damaged BTE document", e);
+            } finally {
+                inflater.end();
+            }
+            return inflated;
+        }
+
+        private String imageKey(int image) throws IOException {
+            if (image < 0 || image >= imageKeys.length)
+                throw new IOException("Damaged BTE document");
+            if (imageKeys[image] == null) {
+                imageKeys[image] = ImageStore.put(readAt(imageOffsets[image], imageLengths[image]).array());
+            }
+            return imageKeys[image];
+        }
+
+        private void runOnFxThread(List<Runnable> actions) throws InterruptedException {
+            FutureTask<Void> task = new FutureTask<>(() -> actions.forEach(Runnable::run), null);
+            Platform.runLater(task);
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        private void deliverChunk(ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> paragraphs,
+                boolean first, double progress) throws InterruptedException {
+            // Waits while the FX thread is still busy with earlier chunks
+            inFlight.acquire();
+            deliver(myGeneration, () -> {
+                inFlight.release();
+                listener.onParagraphs(paragraphs, first);
+                listener.onProgress(progress);
+            });
+        }
+
+        // Chunks after the first start with an empty paragraph, see DocxImporter.ImportListener
+        private ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> newBuilder(boolean first) {
+            ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder =
+                    new ReadOnlyStyledDocumentBuilder<>(CustomEditor.createTextOps(), ParStyle.EMPTY);
+            if (!first) {
+                builder.addParagraph(List.of(new StyledSegment<>(Either.left(""), CharStyle.EMPTY)), ParStyle.EMPTY);
+            }
+            return builder;
+        }
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if the import was cancelled in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+}
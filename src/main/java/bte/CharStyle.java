@@ -0,0 +1,244 @@
+package bte;
+
+import javafx.scene.paint.Color;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable character style used as the segment style of the document.
+ * Styles are interned: every distinct combination of attributes exists exactly once, carries a
+ * small integer id and generates its CSS text a single time. Segments with the same formatting
+ * therefore share one instance, and the inline style handed to each {@code TextExt} is always the
+ * same string.
+ */
+public final class CharStyle {
+
+    private static final ConcurrentHashMap<CharStyle, CharStyle> INTERNED = new ConcurrentHashMap<>();
+
+    /**
+     * No formatting at all; text is rendered with the editor defaults.
+     */
+    public static final CharStyle EMPTY = of(null, 0, false, false, false, false, null, null, "");
+
+    private final int id;
+    private final String fontFamily;
+    private final double fontSize;
+    private final boolean bold;
+    private final boolean italic;
+    private final boolean underline;
+    private final boolean strikethrough;
+    private final Color color;
+    private final Color highlight;
+    private final String extraCss;
+    private final int hash;
+    private final String css;
+
+    private CharStyle(int id, String fontFamily, double fontSize, boolean bold, boolean italic, boolean underline,
+            boolean strikethrough, Color color, Color highlight, String extraCss) {
+        this.id = id;
+        this.fontFamily = fontFamily;
+        this.fontSize = fontSize;
+        this.bold = bold;
+        this.italic = italic;
+        this.underline = underline;
+        this.strikethrough = strikethrough;
+        this.color = color;
+        this.highlight = highlight;
+        this.extraCss = extraCss;
+        this.hash = Objects.hash(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight,
+                extraCss);
+        // Lookup keys never reach a TextExt, so only interned styles build their CSS
+        this.css = id < 0 ? null : buildCss();
+    }
+
+    /**
+     * Returns the interned style with the given attributes.
+     *
+     * @param fontFamily font family, or null for the default
+     * @param fontSize   size in px, or 0 for the default
+     * @param color      text color, or null for the default
+     * @param highlight  background color, or null for none
+     * @param extraCss   further CSS declarations that have no attribute of their own
+     */
+    public static CharStyle of(String fontFamily, double fontSize, boolean bold, boolean italic, boolean underline,
+            boolean strikethrough, Color color, Color highlight, String extraCss) {
+        if (fontFamily != null && fontFamily.isEmpty()) {
+            fontFamily = null;
+        }
+        if (highlight != null && highlight.getOpacity() == 0) {
+            highlight = null;
+        }
+        extraCss = extraCss == null ? "" : extraCss.trim();
+        CharStyle key = new CharStyle(-1, fontFamily, Math.max(0, fontSize), bold, italic, underline, strikethrough,
+                color, highlight, extraCss);
+        CharStyle interned = INTERNED.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        synchronized (INTERNED) {
+            interned = INTERNED.get(key);
+            if (interned == null) {
+                interned = new CharStyle(INTERNED.size(), key.fontFamily, key.fontSize, bold, italic, underline,
+                        strikethrough, key.color, key.highlight, key.extraCss);
+                INTERNED.put(interned, interned);
+            }
+            return interned;
+        }
+    }
+
+    /**
+     * Number of distinct styles created so far.
+     */
+    public static int getInternedCount() {
+        return INTERNED.size();
+    }
+
+    public CharStyle withFontFamily(String fontFamily) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withFontSize(double fontSize) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withBold(boolean bold) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withItalic(boolean italic) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withUnderline(boolean underline) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withColor(Color color) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public CharStyle withHighlight(Color highlight) {
+        return of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, highlight, extraCss);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFontFamily() {
+        return fontFamily;
+    }
+
+    public double getFontSize() {
+        return fontSize;
+    }
+
+    public boolean isBold() {
+        return bold;
+    }
+
+    public boolean isItalic() {
+        return italic;
+    }
+
+    public boolean isUnderline() {
+        return underline;
+    }
+
+    public boolean isStrikethrough() {
+        return strikethrough;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public Color getHighlight() {
+        return highlight;
+    }
+
+    public String getExtraCss() {
+        return extraCss;
+    }
+
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * The inline CSS for this style, built once when the style was interned.
+     */
+    public String toCss() {
+        return css;
+    }
+
+    private String buildCss() {
+        StringBuilder css = new StringBuilder();
+        if (fontFamily != null) {
+            css.append("-fx-font-family: '").append(fontFamily).append("'; ");
+        }
+        if (fontSize > 0) {
+            css.append("-fx-font-size: ").append(formatSize(fontSize)).append("px; ");
+        }
+        if (bold) {
+            css.append("-fx-font-weight: bold; ");
+        }
+        if (italic) {
+            css.append("-fx-font-style: italic; ");
+        }
+        if (underline) {
+            css.append("-fx-underline: true; ");
+        }
+        if (strikethrough) {
+            css.append("-fx-strikethrough: true; ");
+        }
+        if (color != null) {
+            css.append("-fx-fill: ").append(toHex(color)).append("; ");
+        }
+        if (highlight != null) {
+            css.append("-rtfx-background-color: ").append(toHex(highlight)).append("; ");
+        }
+        css.append(extraCss);
+        return css.toString().trim();
+    }
+
+    static String formatSize(double size) {
+        return size == Math.rint(size) ? String.valueOf((long) size) : String.valueOf(size);
+    }
+
+    static String toHex(Color color) {
+        return String.format("#%02X%02X%02X",
+                (int) Math.round(color.getRed() * 255),
+                (int) Math.round(color.getGreen() * 255),
+                (int) Math.round(color.getBlue() * 255));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CharStyle other)) {
+            return false;
+        }
+        // Interned styles are only equal to themselves
+        if (id >= 0 && other.id >= 0) {
+            return false;
+        }
+        return fontSize == other.fontSize && bold == other.bold && italic == other.italic
+                && underline == other.underline && strikethrough == other.strikethrough
+                && Objects.equals(fontFamily, other.fontFamily) && Objects.equals(color, other.color)
+                && Objects.equals(highlight, other.highlight) && extraCss.equals(other.extraCss);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "CharStyle#" + id + "[" + css + "]";
+    }
+}
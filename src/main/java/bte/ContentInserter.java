@@ -11,8 +11,11 @@ import javafx.stage.Stage;
 import javafx.geometry.Insets;
 
 import java.awt.Desktop;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -27,8 +30,21 @@ public class ContentInserter {
 
         File file = fileChooser.showOpenDialog(stage);
         if (file != null) {
-            Image image = new Image(file.toURI().toString());
-            ResizableImageView imageView = new ResizableImageView(image, 400);
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("Hata");
+                alert.setHeaderText("Resim okunamadı");
+                alert.setContentText(e.getMessage());
+                alert.showAndWait();
+                return;
+            }
+            // The file's bytes are kept once, for saving, however often the image is placed
+            String key = ImageStore.put(bytes);
+            Image image = new Image(new ByteArrayInputStream(bytes));
+            ResizableImageView imageView = new ResizableImageView(image, 400, key);
             editor.insertImage(imageView);
         }
     }
@@ -118,6 +134,16 @@ public class ContentInserter {
     }
 
     public static void insertTable(CustomEditor editor, int rows, int cols) {
+        editor.insertTable(createTable(new String[rows][cols], cols * 100, rows * 30));
+    }
+
+    /**
+     * Creates a table holding the given cell texts (null for an empty cell), rows first.
+     * The cells have context menus, so this runs on the FX thread.
+     */
+    public static ResizableTableView createTable(String[][] cells, double width, double height) {
+        int rows = cells.length;
+        int cols = rows == 0 ? 0 : cells[0].length;
         GridPane table = new GridPane();
         table.setHgap(1);
         table.setVgap(1);
@@ -125,11 +151,14 @@ public class ContentInserter {
         table.setStyle("-fx-border-color: #ccc; -fx-padding: 1; -fx-background-color: #ddd;");
 
         // Tabloyu boyutlandırılabilir kapsayıcıya al
-        ResizableTableView resizableTable = new ResizableTableView(table, cols * 100, rows * 30);
+        ResizableTableView resizableTable = new ResizableTableView(table, width, height);
 
         for (int row = 0; row < rows; row++) {
             for (int col = 0; col < cols; col++) {
                 TextField cell = new TextField();
+                if (cells[row][col] != null) {
+                    cell.setText(cells[row][col]);
+                }
                 cell.setStyle("-fx-background-color: white; -fx-border-color: #eee; -fx-border-width: 0.5;");
                 GridPane.setHgrow(cell, Priority.ALWAYS);
 
@@ -163,7 +192,7 @@ public class ContentInserter {
             }
         }
 
-        editor.insertTable(resizableTable);
+        return resizableTable;
     }
 
     // --- YARDIMCI SİLME FONKSİYONLARI ---
@@ -1,45 +1,170 @@
 package bte;
 
+import javafx.geometry.Bounds;
 import javafx.scene.Node;
+import javafx.scene.effect.BlendMode;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
 import org.fxmisc.richtext.GenericStyledArea;
 import org.fxmisc.richtext.TextExt;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.GenericEditableStyledDocument;
 import org.fxmisc.richtext.model.SegmentOps;
 import org.fxmisc.richtext.model.StyledSegment;
 import org.fxmisc.richtext.model.TextOps;
 import org.reactfx.util.Either;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
-public class CustomEditor extends GenericStyledArea<String, Either<String, Node>, String> {
+public class CustomEditor extends GenericStyledArea<ParStyle, Either<String, Node>, CharStyle> {
+
+    private static final Color HIGHLIGHT_COLOR = Color.rgb(255, 225, 64, 0.55);
+
+    // Search hits are painted on this layer instead of being styled into the document
+    private final Pane highlightLayer = new Pane();
+    private final List<Rectangle> highlightPool = new ArrayList<>();
+    private SearchResults highlights;
+    private boolean highlightsDirty = false;
 
     public CustomEditor() {
+        this(createDocument());
+    }
+
+    /**
+     * Creates an editor that views (and edits) the given document. Several editors can share one
+     * document; every edit made through any of them is visible in all of them.
+     */
+    public CustomEditor(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
         super(
-                "", // initial paragraph style
+                ParStyle.EMPTY, // initial paragraph style
                 (textFlow, pStyle) -> {
-                    if (pStyle != null && !pStyle.isEmpty()) {
-                        textFlow.setStyle(pStyle);
+                    if (pStyle != null && !pStyle.getCss().isEmpty()) {
+                        textFlow.setStyle(pStyle.getCss());
                     }
                 },
-                "", // initial segment style
+                CharStyle.EMPTY, // initial segment style
+                document,
                 createTextOps(),
+                true,
                 (styledSegment) -> {
                     Either<String, Node> segment = styledSegment.getSegment();
-                    String style = styledSegment.getStyle();
+                    CharStyle style = styledSegment.getStyle();
                     if (segment.isLeft()) {
                         TextExt text = new TextExt(segment.getLeft());
                         if (style != null && !style.isEmpty()) {
-                            text.setStyle(style);
+                            // The CSS string is shared by every segment with this style
+                            text.setStyle(style.toCss());
                         }
                         return text;
                     } else {
                         return segment.getRight();
                     }
                 });
+
+        highlightLayer.setManaged(false);
+        highlightLayer.setMouseTransparent(true);
+        getChildren().add(highlightLayer);
+        // Scrolling and resizing change which paragraphs are visible
+        viewportDirtyEvents().subscribe(v -> refreshHighlights());
+    }
+
+    /**
+     * Highlights the given search hits, or none for {@code null}. Only the hits inside the visible
+     * paragraphs are painted, so the cost does not depend on how many matches there are. Call
+     * again with the same results after they received more hits.
+     */
+    public void setHighlights(SearchResults results) {
+        if (results == null && highlights == null)
+            return;
+        highlights = results;
+        refreshHighlights();
+    }
+
+    private void refreshHighlights() {
+        if (highlightsDirty)
+            return;
+        highlightsDirty = true;
+        requestLayout();
+    }
+
+    @Override
+    protected void layoutChildren() {
+        super.layoutChildren();
+        highlightLayer.resizeRelocate(0, 0, getWidth(), getHeight());
+        if (highlightsDirty) {
+            highlightsDirty = false;
+            layoutHighlights();
+        }
     }
 
-    private static TextOps<Either<String, Node>, String> createTextOps() {
-        TextOps<String, String> textOps = SegmentOps.styledTextOps();
-        SegmentOps<Node, String> nodeOps = new SegmentOps<Node, String>() {
+    private void layoutHighlights() {
+        int used = 0;
+        if (highlights != null && highlights.size() > 0 && getScene() != null && !getVisibleParagraphs().isEmpty()) {
+            int firstParagraph = firstVisibleParToAllParIndex();
+            int lastParagraph = lastVisibleParToAllParIndex();
+            for (int p = firstParagraph; p <= lastParagraph; p++) {
+                int paragraphStart = getAbsolutePosition(p, 0);
+                int paragraphEnd = paragraphStart + getParagraphLength(p);
+                int i = highlights.indexAtOrAfter(paragraphStart);
+                if (i < 0) {
+                    i = highlights.size();
+                }
+                // A hit starting in an earlier paragraph can reach into this one
+                while (i > 0 && highlights.getEnd(i - 1) > paragraphStart) {
+                    i--;
+                }
+                for (; i < highlights.size() && highlights.getStart(i) < paragraphEnd; i++) {
+                    int from = Math.max(highlights.getStart(i), paragraphStart);
+                    int to = Math.min(highlights.getEnd(i), paragraphEnd);
+                    if (from >= to)
+                        continue;
+                    Optional<Bounds> bounds = getCharacterBoundsOnScreen(from, to);
+                    if (bounds.isPresent()) {
+                        placeHighlight(used++, highlightLayer.screenToLocal(bounds.get()));
+                    }
+                }
+            }
+        }
+        for (int i = used; i < highlightPool.size(); i++) {
+            highlightPool.get(i).setVisible(false);
+        }
+    }
+
+    private void placeHighlight(int index, Bounds bounds) {
+        Rectangle rectangle;
+        if (index < highlightPool.size()) {
+            rectangle = highlightPool.get(index);
+        } else {
+            rectangle = new Rectangle();
+            rectangle.setFill(HIGHLIGHT_COLOR);
+            // Multiplying keeps the text underneath readable
+            rectangle.setBlendMode(BlendMode.MULTIPLY);
+            highlightPool.add(rectangle);
+            highlightLayer.getChildren().add(rectangle);
+        }
+        rectangle.setX(bounds.getMinX());
+        rectangle.setY(bounds.getMinY());
+        rectangle.setWidth(bounds.getWidth());
+        rectangle.setHeight(bounds.getHeight());
+        rectangle.setVisible(true);
+    }
+
+    /**
+     * Creates an empty document using the same segment operations as the editor.
+     */
+    public static GenericEditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> createDocument() {
+        return new GenericEditableStyledDocument<>(ParStyle.EMPTY, CharStyle.EMPTY, createTextOps());
+    }
+
+    /**
+     * Segment operations of the document: styled text runs and embedded nodes.
+     */
+    static TextOps<Either<String, Node>, CharStyle> createTextOps() {
+        TextOps<String, CharStyle> textOps = SegmentOps.styledTextOps();
+        SegmentOps<Node, CharStyle> nodeOps = new SegmentOps<Node, CharStyle>() {
             @Override
             public int length(Node seg) {
                 return 1;
@@ -76,43 +201,92 @@ public class CustomEditor extends GenericStyledArea<String, Either<String, Node>
             }
         };
 
-        return TextOps.<String, Node, String>eitherL(textOps, nodeOps, (s1, s2) -> Optional.of(s1));
+        // Styles are interned, so only identical styles may be joined into one run; joining
+        // anything else would give the right-hand text the left-hand style
+        TextOps<Either<String, Node>, CharStyle> ops = TextOps.<String, Node, CharStyle>eitherL(textOps, nodeOps,
+                (s1, s2) -> s1 == s2 ? Optional.of(s1) : Optional.empty());
+        // An empty piece of a node is empty text, not the node: otherwise the change reported for
+        // a restyle that ends where a paragraph starts with a node wrongly includes the node
+        return new TextOps<Either<String, Node>, CharStyle>() {
+            @Override
+            public Either<String, Node> create(String text) {
+                return ops.create(text);
+            }
+
+            @Override
+            public int length(Either<String, Node> seg) {
+                return ops.length(seg);
+            }
+
+            @Override
+            public char charAt(Either<String, Node> seg, int index) {
+                return ops.charAt(seg, index);
+            }
+
+            @Override
+            public String getText(Either<String, Node> seg) {
+                return ops.getText(seg);
+            }
+
+            @Override
+            public Either<String, Node> subSequence(Either<String, Node> seg, int start, int end) {
+                return seg.isRight() && start >= end ? ops.createEmptySeg() : ops.subSequence(seg, start, end);
+            }
+
+            @Override
+            public Either<String, Node> subSequence(Either<String, Node> seg, int start) {
+                return seg.isRight() && start >= 1 ? ops.createEmptySeg() : ops.subSequence(seg, start);
+            }
+
+            @Override
+            public Optional<Either<String, Node>> joinSeg(Either<String, Node> current, Either<String, Node> next) {
+                return ops.joinSeg(current, next);
+            }
+
+            @Override
+            public Optional<CharStyle> joinStyle(CharStyle style1, CharStyle style2) {
+                return ops.joinStyle(style1, style2);
+            }
+
+            @Override
+            public Either<String, Node> createEmptySeg() {
+                return ops.createEmptySeg();
+            }
+        };
     }
 
     public void insertImage(Node image) {
         int pos = this.getCaretPosition();
-        this.replace(pos, pos, Either.<String, Node>right(image), "");
+        this.replace(pos, pos, Either.<String, Node>right(image), CharStyle.EMPTY);
     }
 
     public void insertTable(Node table) {
         int pos = this.getCaretPosition();
-        this.replace(pos, pos, Either.<String, Node>right(table), "");
+        this.replace(pos, pos, Either.<String, Node>right(table), CharStyle.EMPTY);
     }
 
     public void insertHyperlink(Node hyperlink) {
         int pos = this.getCaretPosition();
-        this.replace(pos, pos, Either.<String, Node>right(hyperlink), "");
+        this.replace(pos, pos, Either.<String, Node>right(hyperlink), CharStyle.EMPTY);
     }
 
-    public void replaceText(int start, int end, String text, String style) {
-        replaceText(start, end, text);
-        setStyle(start, start + text.length(), style);
+    /**
+     * Replaces the CSS of a paragraph, keeping its style name.
+     */
+    public void setParagraphCss(int paragraph, String css) {
+        setParagraphStyle(paragraph, getParagraph(paragraph).getParagraphStyle().withCss(css));
     }
 
     /**
-     * Creates a specialized CustomEditor for header/footer areas.
-     * These editors have constrained height and special styling.
+     * Sets the style name of a paragraph (null for Normal), keeping its CSS.
      */
-    public static CustomEditor createHeaderFooterEditor(boolean isEditable) {
-        CustomEditor editor = new CustomEditor();
-        editor.setMaxHeight(40);
-        editor.setMinHeight(40);
-        editor.setPrefHeight(40);
-        editor.setStyle(
-                "-fx-font-size: 10px; -fx-border-color: #E0E0E0; -fx-border-width: 0 0 1 0; -fx-background-color: #FAFAFA;");
-        editor.setEditable(isEditable);
-        editor.setWrapText(true);
-        return editor;
+    public void setParagraphStyleName(int paragraph, String name) {
+        setParagraphStyle(paragraph, getParagraph(paragraph).getParagraphStyle().withName(name));
+    }
+
+    public void replaceText(int start, int end, String text, CharStyle style) {
+        replaceText(start, end, text);
+        setStyle(start, start + text.length(), style);
     }
 
 }
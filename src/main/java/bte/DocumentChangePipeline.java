@@ -0,0 +1,140 @@
+package bte;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.util.Duration;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Single entry point for reacting to document edits.
+ * Changes from {@code multiPlainChanges()} are collected and handed out at most once per pulse;
+ * expensive consumers (statistics, TOC, autosave...) can additionally ask for a quiet period and
+ * then run once after typing or a paste burst has settled. Consumers get only the changes made
+ * since their last run, so their work can stay proportional to the edit instead of the document.
+ */
+public class DocumentChangePipeline {
+
+    private static class Subscriber {
+        final Consumer<List<PlainTextChange>> consumer;
+        final PauseTransition quietTimer;
+        List<PlainTextChange> pending = new ArrayList<>();
+        long runs;
+
+        Subscriber(Consumer<List<PlainTextChange>> consumer, Duration quietPeriod) {
+            this.consumer = consumer;
+            if (quietPeriod.greaterThan(Duration.ZERO)) {
+                quietTimer = new PauseTransition(quietPeriod);
+                quietTimer.setOnFinished(e -> deliver());
+            } else {
+                quietTimer = null;
+            }
+        }
+
+        void deliver() {
+            if (pending.isEmpty())
+                return;
+            List<PlainTextChange> batch = pending;
+            pending = new ArrayList<>();
+            runs++;
+            consumer.accept(batch);
+        }
+    }
+
+    private final List<Consumer<List<PlainTextChange>>> immediateListeners = new ArrayList<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private List<PlainTextChange> pulseBatch = new ArrayList<>();
+    private boolean pulsePending = false;
+
+    private long eventsReceived;
+    private long pulsesDelivered;
+
+    public DocumentChangePipeline(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
+        document.multiPlainChanges().subscribe(this::onChanges);
+    }
+
+    /**
+     * Registers a listener that sees every change as soon as it happens. Only for cheap
+     * bookkeeping that must follow the edits in order.
+     */
+    public void subscribeImmediate(Consumer<List<PlainTextChange>> listener) {
+        immediateListeners.add(listener);
+    }
+
+    /**
+     * Registers a consumer that runs once per pulse with all changes of that pulse.
+     */
+    public void subscribe(Consumer<List<PlainTextChange>> consumer) {
+        subscribe(Duration.ZERO, consumer);
+    }
+
+    /**
+     * Registers a consumer that runs once no change has arrived for {@code quietPeriod}, with all
+     * changes since its last run. A zero quiet period means once per pulse.
+     */
+    public void subscribe(Duration quietPeriod, Consumer<List<PlainTextChange>> consumer) {
+        subscribers.add(new Subscriber(consumer, quietPeriod));
+    }
+
+    private void onChanges(List<PlainTextChange> changes) {
+        eventsReceived++;
+        for (Consumer<List<PlainTextChange>> listener : immediateListeners) {
+            listener.accept(changes);
+        }
+        pulseBatch.addAll(changes);
+        if (pulsePending)
+            return;
+        pulsePending = true;
+        Platform.runLater(this::flushPulse);
+    }
+
+    private void flushPulse() {
+        if (!pulsePending)
+            return;
+        pulsePending = false;
+        List<PlainTextChange> batch = pulseBatch;
+        pulseBatch = new ArrayList<>();
+        pulsesDelivered++;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.pending.addAll(batch);
+            if (subscriber.quietTimer == null) {
+                subscriber.deliver();
+            } else {
+                subscriber.quietTimer.playFromStart();
+            }
+        }
+    }
+
+    /**
+     * True while changes are waiting for the next pulse.
+     */
+    public boolean isPulsePending() {
+        return pulsePending;
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived;
+    }
+
+    public long getPulsesDelivered() {
+        return pulsesDelivered;
+    }
+
+    /**
+     * Number of change events that did not cause a consumer run of their own, summed over all
+     * consumers.
+     */
+    public long getCoalescedEvents() {
+        long coalesced = 0;
+        for (Subscriber subscriber : subscribers) {
+            coalesced += Math.max(0, eventsReceived - subscriber.runs);
+        }
+        return coalesced;
+    }
+}
@@ -0,0 +1,577 @@
+package bte;
+
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.value.ObservableBooleanValue;
+import javafx.scene.Node;
+import org.fxmisc.richtext.MultiChangeBuilder;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.RichTextChange;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.fxmisc.undo.UndoManager;
+import org.reactfx.EventSource;
+import org.reactfx.SuspendableYes;
+import org.reactfx.Subscription;
+import org.reactfx.util.Either;
+import org.reactfx.value.Val;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Undo history of the whole document, shared by all page views.
+ * Consecutive typing is merged into one entry until the user pauses, presses Enter or does
+ * something else, so a long session produces coarse entries instead of one per keystroke. The
+ * entries held on the heap are capped at {@link #MEMORY_LIMIT} (estimated) bytes: beyond that,
+ * the entries farthest from the current position are encoded with {@link StyledTextCodec} and
+ * moved to an append-only log in a temporary file, and read back when undo or redo reaches
+ * them. Memory use thus stays flat however long the history gets.
+ */
+public class DocumentUndoManager
+        implements UndoManager<List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>>> {
+
+    private static final long MEMORY_LIMIT = 8L * 1024 * 1024;
+    // Typing after a longer pause starts a new entry
+    private static final long MERGE_WINDOW_NANOS = 2_000_000_000L;
+    // Longest insertion or deletion that still counts as typing (a surrogate pair)
+    private static final int MAX_TYPED = 2;
+    // The log is rewritten once it holds this much (and more than half) unreachable data
+    private static final long LOG_COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+
+    // Rough heap cost of the parts of a change, for the memory limit
+    private static final long ENTRY_BYTES = 64;
+    private static final long PARAGRAPH_BYTES = 64;
+    private static final long SEGMENT_BYTES = 48;
+
+    private static final class Entry {
+        long id;
+        // null while the entry is only in the log
+        List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes;
+        long bytes;
+        // Position of the encoded entry in the log, -1 if it was never written
+        long logOffset = -1;
+        int logLength;
+        // Embedded nodes of the encoded entry
+        List<Node> nodes;
+    }
+
+    private final Supplier<CustomEditor> target;
+    private final Subscription subscription;
+    private final List<Entry> history = new ArrayList<>();
+    // history[0, current) can be undone, history[current, size) redone
+    private int current = 0;
+    // Entries outside [resident, residentEnd) are all in the log
+    private int resident = 0;
+    private int residentEnd = 0;
+    private long memoryBytes = 0;
+
+    private long nextId = 1;
+    // Id of the state before the first entry; changes when the history is forgotten
+    private long baseId = 0;
+    private long markedId = 0;
+    private boolean mergeOpen = false;
+    private long lastRecorded;
+
+    private RandomAccessFile log;
+    private Path logPath;
+    private long logLiveBytes = 0;
+    private boolean logFailed = false;
+
+    private final ReadOnlyBooleanWrapper performingAction = new ReadOnlyBooleanWrapper(false);
+    private final ReadOnlyBooleanWrapper atMarkedPosition = new ReadOnlyBooleanWrapper(true);
+    private final EventSource<Void> stateChanges = new EventSource<>();
+    private final Val<Boolean> undoAvailable = Val.create(() -> current > 0, stateChanges);
+    private final Val<Boolean> redoAvailable = Val.create(() -> current < history.size(), stateChanges);
+    private final Val<List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>>> nextUndo = Val
+            .create(() -> current > 0 ? load(current - 1) : null, stateChanges);
+    private final Val<List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>>> nextRedo = Val
+            .create(() -> current < history.size() ? load(current) : null, stateChanges);
+
+    /**
+     * @param recording the edits made while it is suspended are not recorded
+     * @param target    the view whose caret follows undo and redo
+     */
+    public DocumentUndoManager(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document,
+            SuspendableYes recording, Supplier<CustomEditor> target) {
+        this.target = target;
+        this.subscription = document.multiRichChanges().conditionOn(recording).subscribe(this::record);
+    }
+
+    private void record(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        if (performingAction.get())
+            return;
+        List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> recorded = new ArrayList<>(changes.size());
+        for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : changes) {
+            if (!change.isIdentity()) {
+                recorded.add(change);
+            }
+        }
+        if (recorded.isEmpty())
+            return;
+
+        // A new edit ends the redo branch
+        if (current < history.size()) {
+            discard(current);
+        }
+        long now = System.nanoTime();
+        boolean typing = recorded.size() == 1 && isTyping(recorded.get(0));
+        if (!(typing && mergeOpen && now - lastRecorded < MERGE_WINDOW_NANOS && merge(recorded.get(0)))) {
+            Entry entry = new Entry();
+            entry.id = nextId++;
+            entry.changes = recorded;
+            entry.bytes = estimateBytes(recorded);
+            history.add(entry);
+            memoryBytes += entry.bytes;
+            current = history.size();
+            residentEnd = current;
+        }
+        lastRecorded = now;
+        // Typing after a line break starts a new entry
+        mergeOpen = typing && !recorded.get(0).getInserted().getText().endsWith("\n");
+        trimMemory();
+        stateChanged();
+    }
+
+    private static boolean isTyping(RichTextChange<ParStyle, Either<String, Node>, CharStyle> change) {
+        int inserted = change.getInserted().length();
+        int removed = change.getRemoved().length();
+        return inserted <= MAX_TYPED && (removed <= MAX_TYPED || inserted > 0);
+    }
+
+    private boolean merge(RichTextChange<ParStyle, Either<String, Node>, CharStyle> change) {
+        if (current == 0)
+            return false;
+        Entry last = history.get(current - 1);
+        if (last.changes == null || last.changes.size() != 1)
+            return false;
+        Optional<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> merged = last.changes.get(0)
+                .mergeWith(change);
+        if (merged.isEmpty())
+            return false;
+        memoryBytes -= last.bytes;
+        last.changes = List.of(merged.get());
+        last.bytes = estimateBytes(last.changes);
+        memoryBytes += last.bytes;
+        // The entry now stands for a different state, and its copy in the log is stale
+        last.id = nextId++;
+        dropFromLog(last);
+        return true;
+    }
+
+    @Override
+    public boolean undo() {
+        if (current == 0)
+            return false;
+        List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes = load(current - 1);
+        if (changes == null)
+            return false;
+        List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> inverse = new ArrayList<>(changes.size());
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            inverse.add(changes.get(i).invert());
+        }
+        apply(inverse);
+        current--;
+        mergeOpen = false;
+        trimMemory();
+        stateChanged();
+        return true;
+    }
+
+    @Override
+    public boolean redo() {
+        if (current == history.size())
+            return false;
+        List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes = load(current);
+        if (changes == null)
+            return false;
+        apply(changes);
+        current++;
+        mergeOpen = false;
+        trimMemory();
+        stateChanged();
+        return true;
+    }
+
+    private void apply(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        CustomEditor editor = target.get();
+        performingAction.set(true);
+        try {
+            MultiChangeBuilder<ParStyle, Either<String, Node>, CharStyle> builder = editor
+                    .createMultiChange(changes.size());
+            for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : changes) {
+                builder.replaceAbsolutely(change.getPosition(), change.getRemovalEnd(), change.getInserted());
+            }
+            builder.commit();
+        } finally {
+            performingAction.set(false);
+        }
+        editor.moveTo(changes.get(changes.size() - 1).getInsertionEnd());
+    }
+
+    /**
+     * The changes of the entry, read back from the log if necessary; null if the log cannot be
+     * read, in which case this entry and everything older is dropped.
+     */
+    private List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> load(int index) {
+        Entry entry = history.get(index);
+        if (entry.changes != null)
+            return entry.changes;
+        try {
+            byte[] bytes = new byte[entry.logLength];
+            log.seek(entry.logOffset);
+            log.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            StyledTextCodec.Reader reader = new StyledTextCodec.Reader(in, entry.nodes);
+            int count = StyledTextCodec.readVarInt(in);
+            List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int position = StyledTextCodec.readVarInt(in);
+                changes.add(new RichTextChange<>(position, reader.read(), reader.read()));
+            }
+            entry.changes = changes;
+            memoryBytes += entry.bytes;
+        } catch (IOException e) {
+            // Unreadable; the undo and redo states follow the shortened history
+            forgetUpTo(index + 1);
+            return null;
+        }
+        resident = Math.min(resident, index);
+        residentEnd = Math.max(residentEnd, index + 1);
+        return entry.changes;
+    }
+
+    /**
+     * Moves entries to the log, farthest from the current position first, until the ones left
+     * on the heap fit the memory limit. The entries on either side of the current position stay.
+     */
+    private void trimMemory() {
+        while (memoryBytes > MEMORY_LIMIT) {
+            int below = current - 1 - resident;
+            int above = residentEnd - 1 - current;
+            if (below <= 0 && above <= 0)
+                break;
+            if (below >= above) {
+                if (!spill(history.get(resident)))
+                    break;
+                resident++;
+            } else {
+                if (!spill(history.get(residentEnd - 1)))
+                    break;
+                residentEnd--;
+            }
+        }
+    }
+
+    private boolean spill(Entry entry) {
+        if (entry.changes == null)
+            return true;
+        if (entry.logOffset < 0) {
+            if (logFailed)
+                return false;
+            try {
+                write(entry);
+            } catch (IOException e) {
+                // Keep everything on the heap rather than lose history
+                logFailed = true;
+                return false;
+            }
+        }
+        entry.changes = null;
+        memoryBytes -= entry.bytes;
+        return true;
+    }
+
+    private void write(Entry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        List<Node> nodes = new ArrayList<>();
+        StyledTextCodec.Writer writer = new StyledTextCodec.Writer(out, nodes);
+        StyledTextCodec.writeVarInt(out, entry.changes.size());
+        for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : entry.changes) {
+            StyledTextCodec.writeVarInt(out, change.getPosition());
+            writer.write(change.getRemoved());
+            writer.write(change.getInserted());
+        }
+        out.flush();
+
+        if (log == null) {
+            logPath = Files.createTempFile("bte-undo-", ".log");
+            logPath.toFile().deleteOnExit();
+            log = new RandomAccessFile(logPath.toFile(), "rw");
+        }
+        long offset = log.length();
+        log.seek(offset);
+        log.write(buffer.toByteArray());
+        entry.logOffset = offset;
+        entry.logLength = buffer.size();
+        entry.nodes = nodes.isEmpty() ? List.of() : nodes;
+        logLiveBytes += entry.logLength;
+    }
+
+    private void dropFromLog(Entry entry) {
+        if (entry.logOffset >= 0) {
+            logLiveBytes -= entry.logLength;
+            entry.logOffset = -1;
+            entry.nodes = null;
+        }
+    }
+
+    // Drops history[from, size)
+    private void discard(int from) {
+        for (int i = history.size() - 1; i >= from; i--) {
+            Entry entry = history.remove(i);
+            if (entry.changes != null) {
+                memoryBytes -= entry.bytes;
+            }
+            dropFromLog(entry);
+        }
+        resident = Math.min(resident, history.size());
+        residentEnd = Math.min(residentEnd, history.size());
+        compactLog();
+    }
+
+    // Drops history[0, count), after the log became unreadable
+    private void forgetUpTo(int count) {
+        for (int i = 0; i < count; i++) {
+            Entry entry = history.get(i);
+            if (entry.changes != null) {
+                memoryBytes -= entry.bytes;
+            }
+            dropFromLog(entry);
+        }
+        history.subList(0, count).clear();
+        current = Math.max(0, current - count);
+        resident = Math.max(0, resident - count);
+        residentEnd = Math.max(resident, residentEnd - count);
+        baseId = nextId++;
+        stateChanged();
+    }
+
+    /**
+     * Rewrites the log without the entries that are no longer in the history, once they take up
+     * most of it.
+     */
+    private void compactLog() {
+        if (log == null)
+            return;
+        try {
+            long dead = log.length() - logLiveBytes;
+            if (logLiveBytes == 0) {
+                log.setLength(0);
+                return;
+            }
+            if (dead < LOG_COMPACTION_THRESHOLD || dead < logLiveBytes)
+                return;
+            Path compactedPath = Files.createTempFile("bte-undo-", ".log");
+            compactedPath.toFile().deleteOnExit();
+            RandomAccessFile compacted = new RandomAccessFile(compactedPath.toFile(), "rw");
+            // The entries keep their old offsets until the whole log is copied
+            long[] offsets = new long[history.size()];
+            boolean copied = false;
+            try {
+                long position = 0;
+                for (int i = 0; i < history.size(); i++) {
+                    Entry entry = history.get(i);
+                    if (entry.logOffset < 0)
+                        continue;
+                    byte[] bytes = new byte[entry.logLength];
+                    log.seek(entry.logOffset);
+                    log.readFully(bytes);
+                    compacted.write(bytes);
+                    offsets[i] = position;
+                    position += bytes.length;
+                }
+                copied = true;
+            } finally {
+                if (!copied) {
+                    try {
+                        compacted.close();
+                    } finally {
+                        Files.deleteIfExists(compactedPath);
+                    }
+                }
+            }
+            for (int i = 0; i < history.size(); i++) {
+                Entry entry = history.get(i);
+                if (entry.logOffset >= 0) {
+                    entry.logOffset = offsets[i];
+                }
+            }
+            closeLog();
+            log = compacted;
+            logPath = compactedPath;
+        } catch (IOException e) {
+            // The entries still point into the old log; compaction is retried after the next discard
+        }
+    }
+
+    private void closeLog() {
+        if (log == null)
+            return;
+        try {
+            log.close();
+            Files.deleteIfExists(logPath);
+        } catch (IOException e) {
+            // A temp file marked deleteOnExit; it goes away with the process at the latest
+        }
+        log = null;
+        logPath = null;
+    }
+
+    private static long estimateBytes(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        long bytes = ENTRY_BYTES;
+        for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : changes) {
+            bytes += estimateBytes(change.getRemoved()) + estimateBytes(change.getInserted());
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(StyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
+        long bytes = 0;
+        for (Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph : document.getParagraphs()) {
+            // Two bytes per char at worst (Latin-1 strings take one)
+            bytes += PARAGRAPH_BYTES + paragraph.getSegments().size() * SEGMENT_BYTES + 2L * paragraph.length();
+        }
+        return bytes;
+    }
+
+    private long currentId() {
+        return current > 0 ? history.get(current - 1).id : baseId;
+    }
+
+    private void stateChanged() {
+        atMarkedPosition.set(currentId() == markedId);
+        stateChanges.push(null);
+    }
+
+    /**
+     * Estimated heap taken by the entries that are not in the log.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public int getHistorySize() {
+        return history.size();
+    }
+
+    /**
+     * Size of the log file, 0 while nothing was moved there.
+     */
+    public long getLogBytes() {
+        try {
+            return log == null ? 0 : log.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public Val<Boolean> undoAvailableProperty() {
+        return undoAvailable;
+    }
+
+    @Override
+    public boolean isUndoAvailable() {
+        return undoAvailable.getValue();
+    }
+
+    @Override
+    public Val<List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>>> nextUndoProperty() {
+        return nextUndo;
+    }
+
+    @Override
+    public Val<List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>>> nextRedoProperty() {
+        return nextRedo;
+    }
+
+    @Override
+    public Val<Boolean> redoAvailableProperty() {
+        return redoAvailable;
+    }
+
+    @Override
+    public boolean isRedoAvailable() {
+        return redoAvailable.getValue();
+    }
+
+    @Override
+    public ObservableBooleanValue performingActionProperty() {
+        return performingAction.getReadOnlyProperty();
+    }
+
+    @Override
+    public boolean isPerformingAction() {
+        return performingAction.get();
+    }
+
+    @Override
+    public void preventMerge() {
+        mergeOpen = false;
+    }
+
+    @Override
+    public void forgetHistory() {
+        history.clear();
+        current = 0;
+        resident = 0;
+        residentEnd = 0;
+        memoryBytes = 0;
+        logLiveBytes = 0;
+        closeLog();
+        logFailed = false;
+        mergeOpen = false;
+        baseId = nextId++;
+        stateChanged();
+    }
+
+    @Override
+    public UndoPosition getCurrentPosition() {
+        long id = currentId();
+        return new UndoPosition() {
+            @Override
+            public void mark() {
+                markedId = id;
+                stateChanged();
+            }
+
+            @Override
+            public boolean isValid() {
+                if (id == baseId)
+                    return true;
+                for (Entry entry : history) {
+                    if (entry.id == id)
+                        return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public ObservableBooleanValue atMarkedPositionProperty() {
+        return atMarkedPosition.getReadOnlyProperty();
+    }
+
+    @Override
+    public boolean isAtMarkedPosition() {
+        return atMarkedPosition.get();
+    }
+
+    @Override
+    public void close() {
+        subscription.unsubscribe();
+        closeLog();
+    }
+}
@@ -0,0 +1,397 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import org.apache.poi.common.usermodel.PictureType;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.util.Units;
+import org.apache.poi.xwpf.usermodel.IBodyElement;
+import org.apache.poi.xwpf.usermodel.ParagraphAlignment;
+import org.apache.poi.xwpf.usermodel.UnderlinePatterns;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+import org.apache.poi.xwpf.usermodel.XWPFTable;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.openxmlformats.schemas.drawingml.x2006.wordprocessingDrawing.CTInline;
+import org.reactfx.util.Either;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background .docx export.
+ * The exporter works on an immutable snapshot of the whole document, taken on the FX thread in
+ * constant time, so editing can go on while it runs on a virtual thread. The file is written
+ * next to its target under a temporary name and then moved over it in one step: a save that
+ * fails or is cancelled never leaves a half-written document behind.
+ * Images, tables and tables of contents are read from their nodes before the snapshot is
+ * handed over and written as pictures and Word tables; image bytes come from the
+ * {@link ImageStore}, and each distinct image is stored in the file once.
+ */
+public class DocxExporter {
+
+    /**
+     * Receives the outcome of one export, always on the FX thread.
+     */
+    public interface ExportListener {
+        /**
+         * Fraction of the paragraphs converted so far, or a negative value while the file is
+         * being written.
+         */
+        void onProgress(double progress);
+
+        void onSaved();
+
+        void onError(String message);
+    }
+
+    private static final int TWIPS_PER_INCH = 1440;
+    private static final int PIXELS_PER_INCH = 96; // Standard screen DPI
+    private static final long PROGRESS_NANOS = 100_000_000L;
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts writing the snapshot to the file, cancelling any export still running.
+     */
+    public void save(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, File file,
+            ExportListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        Map<Node, EmbeddedObject> embedded = EmbeddedObject.describeAll(snapshot);
+        listener.onProgress(0);
+        worker = Thread.ofVirtual().name("docx-export").start(() -> {
+            Path target = file.toPath().toAbsolutePath();
+            Path temp = null;
+            try (XWPFDocument docx = new XWPFDocument()) {
+                write(snapshot, embedded, docx, myGeneration, listener);
+                deliver(myGeneration, () -> listener.onProgress(-1));
+
+                temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    docx.write(out);
+                }
+                if (generation.get() != myGeneration)
+                    throw new CancellationException();
+                replace(temp, target);
+                temp = null;
+                deliver(myGeneration, listener::onSaved);
+            } catch (CancellationException e) {
+                // Cancelled, or replaced by a newer export
+            } catch (IOException | RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError(e.getMessage()));
+            } finally {
+                deleteQuietly(temp);
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running export; the target file is left as it was.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        worker = null;
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    private void write(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot,
+            Map<Node, EmbeddedObject> embedded, XWPFDocument docx, int myGeneration, ExportListener listener)
+            throws IOException {
+        DocxWriter writer = new DocxWriter(docx, embedded);
+        List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs = snapshot.getParagraphs();
+        long lastProgress = System.nanoTime();
+        for (int i = 0; i < paragraphs.size(); i++) {
+            if (generation.get() != myGeneration)
+                throw new CancellationException();
+            writer.writeParagraph(paragraphs.get(i));
+            if (System.nanoTime() - lastProgress > PROGRESS_NANOS) {
+                lastProgress = System.nanoTime();
+                double progress = (double) (i + 1) / paragraphs.size();
+                deliver(myGeneration, () -> listener.onProgress(progress));
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Converts paragraphs into one XWPF document.
+     * Pictures are stored in the package once per distinct image: the first placement of an
+     * image at a given size adds it, and later ones copy that drawing, which only refers to
+     * the stored picture. Tables and tables of contents are block elements in Word, so a
+     * paragraph containing one is split around it.
+     */
+    private static final class DocxWriter {
+        // Drawing ids of copied pictures; POI hands out its own from 1 upwards
+        private static final long FIRST_COPY_ID = 0x40000000L;
+
+        private final XWPFDocument docx;
+        private final Map<Node, EmbeddedObject> embedded;
+        private final Map<String, CTInline> drawings = new HashMap<>();
+        private long nextCopyId = FIRST_COPY_ID;
+
+        DocxWriter(XWPFDocument docx, Map<Node, EmbeddedObject> embedded) {
+            this.docx = docx;
+            this.embedded = embedded;
+        }
+
+        void writeParagraph(Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph) throws IOException {
+            ParStyle parStyle = paragraph.getParagraphStyle();
+            StyleParser.ParsedStyle paragraphStyle = StyleParser.parse(parStyle.getCss());
+
+            // Created on the first inline content, so that a table on a line of its own
+            // does not get an empty paragraph before it
+            XWPFParagraph docParagraph = null;
+            boolean wroteBlock = false;
+
+            for (StyledSegment<Either<String, Node>, CharStyle> segment : paragraph.getStyledSegments()) {
+                if (segment.getSegment().isLeft()) {
+                    String text = segment.getSegment().getLeft();
+                    if (text.isEmpty())
+                        continue;
+                    if (docParagraph == null)
+                        docParagraph = createParagraph(parStyle, paragraphStyle);
+                    XWPFRun run = docParagraph.createRun();
+                    run.setText(text);
+                    writeRunStyle(segment.getStyle(), run);
+                    continue;
+                }
+                EmbeddedObject object = embedded.get(segment.getSegment().getRight());
+                if (object instanceof EmbeddedObject.Picture picture) {
+                    if (docParagraph == null)
+                        docParagraph = createParagraph(parStyle, paragraphStyle);
+                    writePicture(docParagraph, picture);
+                } else if (object instanceof EmbeddedObject.TableData table) {
+                    writeTable(table);
+                    docParagraph = null;
+                    wroteBlock = true;
+                } else if (object instanceof EmbeddedObject.Contents contents) {
+                    writeContents(contents);
+                    docParagraph = null;
+                    wroteBlock = true;
+                }
+            }
+            if (docParagraph == null && !wroteBlock) {
+                createParagraph(parStyle, paragraphStyle);
+            }
+        }
+
+        void finish() {
+            // Word expects the body to end with a paragraph
+            List<IBodyElement> body = docx.getBodyElements();
+            if (!body.isEmpty() && body.get(body.size() - 1) instanceof XWPFTable) {
+                docx.createParagraph();
+            }
+        }
+
+        private XWPFParagraph createParagraph(ParStyle parStyle, StyleParser.ParsedStyle paragraphStyle) {
+            XWPFParagraph docParagraph = docx.createParagraph();
+
+            // 1. Paragraph Formatting
+
+            // Style name (Heading1...), read back on import
+            if (parStyle.getName() != null) {
+                docParagraph.setStyle(parStyle.getName());
+            }
+
+            // Alignment
+            String align = paragraphStyle.getTextAlignment();
+            if (align != null) {
+                switch (align) {
+                    case "center":
+                        docParagraph.setAlignment(ParagraphAlignment.CENTER);
+                        break;
+                    case "right":
+                        docParagraph.setAlignment(ParagraphAlignment.RIGHT);
+                        break;
+                    case "justify":
+                        docParagraph.setAlignment(ParagraphAlignment.BOTH);
+                        break;
+                    default:
+                        docParagraph.setAlignment(ParagraphAlignment.LEFT);
+                }
+            }
+
+            // Indentation & Spacing (from padding)
+            if (paragraphStyle.getPaddingLeft() > 0)
+                docParagraph.setIndentationLeft(pxToTwips(paragraphStyle.getPaddingLeft()));
+            if (paragraphStyle.getPaddingTop() > 0)
+                docParagraph.setSpacingBefore(pxToTwips(paragraphStyle.getPaddingTop()));
+            if (paragraphStyle.getPaddingBottom() > 0)
+                docParagraph.setSpacingAfter(pxToTwips(paragraphStyle.getPaddingBottom()));
+
+            // Line Spacing
+            if (paragraphStyle.get("-fx-line-spacing") != null) {
+                // CSS line spacing is the extra space in em; the editor sets it to
+                // (spacing - 1.0) * 1.2, so this is the spacing multiplier Word expects
+                double spacingMult = (paragraphStyle.getLineSpacing() / 1.2) + 1.0;
+                docParagraph.setSpacingBetween(spacingMult);
+            }
+            return docParagraph;
+        }
+
+        private void writePicture(XWPFParagraph docParagraph, EmbeddedObject.Picture picture) throws IOException {
+            byte[] bytes = ImageStore.get(picture.key);
+            if (bytes == null)
+                return;
+            String format = ImageStore.formatOf(bytes);
+            PictureType type = pictureType(format);
+            if (type == null)
+                return;
+            int width = Units.pixelToEMU((int) Math.round(picture.width));
+            int height = Units.pixelToEMU((int) Math.round(picture.height));
+
+            XWPFRun run = docParagraph.createRun();
+            String placement = picture.key + "@" + width + "x" + height;
+            CTInline drawing = drawings.get(placement);
+            if (drawing == null) {
+                try {
+                    run.addPicture(new ByteArrayInputStream(bytes), type, "image" + (drawings.size() + 1) + "." + format,
+                            width, height);
+                } catch (InvalidFormatException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                drawings.put(placement, run.getCTR().getDrawingArray(0).getInlineArray(0));
+            } else {
+                CTInline copy = run.getCTR().addNewDrawing().addNewInline();
+                copy.set(drawing);
+                long id = nextCopyId++;
+                copy.getDocPr().setId(id);
+                copy.getDocPr().setName("Drawing " + id);
+            }
+        }
+
+        private void writeTable(EmbeddedObject.TableData table) {
+            int rows = table.cells.length;
+            int columns = rows == 0 ? 0 : table.cells[0].length;
+            if (rows == 0 || columns == 0)
+                return;
+            XWPFTable docTable = docx.createTable(rows, columns);
+            if (table.width > 0)
+                docTable.setWidth(pxToTwips(table.width));
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    String text = table.cells[r][c];
+                    if (text != null && !text.isEmpty()) {
+                        docTable.getRow(r).getCell(c).setText(text);
+                    }
+                }
+            }
+        }
+
+        private void writeContents(EmbeddedObject.Contents contents) {
+            if (contents.title != null) {
+                XWPFRun run = docx.createParagraph().createRun();
+                run.setText(contents.title);
+                run.setBold(true);
+            }
+            for (int i = 0; i < contents.texts.size(); i++) {
+                XWPFParagraph entry = docx.createParagraph();
+                int level = contents.levels.get(i);
+                if (level > 1)
+                    entry.setIndentationLeft(pxToTwips((level - 1) * 20));
+                entry.createRun().setText(contents.texts.get(i));
+            }
+        }
+    }
+
+    private static PictureType pictureType(String format) {
+        if (format == null)
+            return null;
+        switch (format) {
+            case "png":
+                return PictureType.PNG;
+            case "jpeg":
+                return PictureType.JPEG;
+            case "gif":
+                return PictureType.GIF;
+            case "bmp":
+                return PictureType.BMP;
+            default:
+                return null;
+        }
+    }
+
+    private static void writeRunStyle(CharStyle style, XWPFRun run) {
+        if (style == null || style.isEmpty())
+            return;
+        if (style.isBold())
+            run.setBold(true);
+        if (style.isItalic())
+            run.setItalic(true);
+        if (style.isUnderline())
+            run.setUnderline(UnderlinePatterns.SINGLE);
+        if (style.isStrikethrough())
+            run.setStrikeThrough(true);
+
+        // Color
+        if (style.getColor() != null) {
+            run.setColor(CharStyle.toHex(style.getColor()).substring(1));
+        }
+
+        // Highlight: POI specific highlighting is complex enum mapping.
+        // For now, let's skip mapping arbitrary colors to the closest enum.
+
+        if (style.getFontFamily() != null)
+            run.setFontFamily(style.getFontFamily());
+
+        // PX to Points? JavaFX size often roughly equals points
+        if (style.getFontSize() > 0)
+            run.setFontSize((int) style.getFontSize());
+    }
+
+    private static int pxToTwips(double px) {
+        return (int) (px * TWIPS_PER_INCH / PIXELS_PER_INCH);
+    }
+
+    /**
+     * Moves a finished temporary file over its target, atomically where the file system can.
+     */
+    static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void deleteQuietly(Path path) {
+        if (path == null)
+            return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Only a leftover temporary file
+        }
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if the export was cancelled in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,713 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.paint.Color;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocumentBuilder;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.reactfx.util.Either;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Background .docx import.
+ * The main document part is streamed through StAX on a virtual thread, so memory use does not
+ * depend on the size of the file: paragraphs are built as they are read and handed to the FX
+ * thread in chunks, each applied with a single replace. The first chunk is small, so the first
+ * page shows up at once while the rest is still loading, and only a few chunks may wait for
+ * the FX thread at any time. Pictures come in as placeholders of their size whose compressed
+ * bytes wait in the {@link ImageStore}, so opening a file decodes none of them. Starting
+ * another import (or calling {@link #cancel()}) cancels the running one at its next
+ * paragraph, and nothing more of it is delivered.
+ */
+public class DocxImporter {
+
+    /**
+     * Receives the outcome of one import, always on the FX thread.
+     */
+    public interface ImportListener {
+        /**
+         * Fraction of the file read so far, or a negative value while that is not known.
+         */
+        void onProgress(double progress);
+
+        /**
+         * The next paragraphs of the document. The first chunk replaces the document; the
+         * following ones start with an empty paragraph, so that inserting them at the end of the
+         * document starts a new paragraph. The paragraph they are appended to keeps its style.
+         */
+        void onParagraphs(ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> chunk, boolean first);
+
+        void onFinished();
+
+        void onError(String message);
+    }
+
+    private static final String W = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String WORD_DRAWING = "http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing";
+    private static final String DRAWING = "http://schemas.openxmlformats.org/drawingml/2006/main";
+    private static final String OFFICE_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String DEFAULT_MAIN_PART = "word/document.xml";
+
+    private static final int TWIPS_PER_INCH = 1440;
+    private static final int PIXELS_PER_INCH = 96; // Standard screen DPI
+    private static final int EMU_PER_PIXEL = 9525;
+
+    // The first chunk only needs to fill the first pages
+    private static final int FIRST_CHUNK_PARAGRAPHS = 100;
+    private static final int CHUNK_PARAGRAPHS = 2000;
+    private static final long CHUNK_NANOS = 100_000_000L;
+    // Chunks handed to the FX thread but not applied yet
+    private static final int CHUNKS_IN_FLIGHT = 2;
+
+    private static final XMLInputFactory XML_INPUT = createInputFactory();
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts reading the file, cancelling any import still running.
+     */
+    public void load(File file, ImportListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        listener.onProgress(-1);
+        worker = Thread.ofVirtual().name("docx-import").start(() -> {
+            try (ZipFile zip = new ZipFile(file)) {
+                new Reader(zip, myGeneration, listener).read();
+                deliver(myGeneration, listener::onFinished);
+            } catch (CancellationException | InterruptedException e) {
+                // A newer import replaced this one
+            } catch (IOException | XMLStreamException | RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError(e.getMessage()));
+            } finally {
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running import; nothing more of it is delivered.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+            worker = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    /**
+     * Reads one file: the paragraphs of the main document part, with their paragraph style,
+     * alignment, indentation, spacing, direct run formatting and pictures.
+     */
+    private class Reader {
+        private final ZipFile zip;
+        private final int myGeneration;
+        private final ImportListener listener;
+        private final Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+
+        private ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> chunk;
+        private int chunkParagraphs;
+        private int chunkLimit = FIRST_CHUNK_PARAGRAPHS;
+        private long chunkStarted = System.nanoTime();
+        private boolean first = true;
+        private long totalBytes;
+        private long bytesRead;
+
+        // The paragraph being read
+        private ParStyle paragraphStyle;
+        private List<StyledSegment<Either<String, Node>, CharStyle>> segments = new ArrayList<>();
+        private String styleName;
+        private String alignment;
+        private int indentLeft;
+        private int spacingBefore;
+        private int spacingAfter;
+
+        // The run being read
+        private String fontFamily;
+        private double fontSize;
+        private boolean bold;
+        private boolean italic;
+        private boolean underline;
+        private boolean strikethrough;
+        private Color color;
+        private CharStyle runStyle;
+
+        // Image relationships of the main part, read on the first picture
+        private String mainPart;
+        private Map<String, String> imageTargets;
+        private final Map<String, String> imageKeys = new HashMap<>();
+
+        Reader(ZipFile zip, int myGeneration, ImportListener listener) {
+            this.zip = zip;
+            this.myGeneration = myGeneration;
+            this.listener = listener;
+        }
+
+        void read() throws IOException, XMLStreamException, InterruptedException {
+            mainPart = findMainPart();
+            ZipEntry entry = zip.getEntry(mainPart);
+            if (entry == null)
+                throw new IOException("Not a Word document: the main document part is missing");
+            totalBytes = entry.getSize();
+            newChunk();
+
+            try (InputStream in = new CountingStream(zip.getInputStream(entry))) {
+                XMLStreamReader xml = XML_INPUT.createXMLStreamReader(in);
+                try {
+                    readBody(xml);
+                } finally {
+                    xml.close();
+                }
+            }
+            if (first || chunkParagraphs > 0) {
+                if (first && chunkParagraphs == 0) {
+                    chunk.addParagraph(List.of(emptySegment()), ParStyle.EMPTY);
+                }
+                flush();
+            }
+        }
+
+        private void readBody(XMLStreamReader xml) throws XMLStreamException, InterruptedException {
+            while (xml.hasNext()) {
+                if (xml.next() != XMLStreamConstants.START_ELEMENT || !W.equals(xml.getNamespaceURI()))
+                    continue;
+                switch (xml.getLocalName()) {
+                    case "p":
+                        readParagraph(xml);
+                        break;
+                    // Text boxes and the like are not part of the text flow
+                    case "txbxContent":
+                        skip(xml);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void readParagraph(XMLStreamReader xml) throws XMLStreamException, InterruptedException {
+            if (generation.get() != myGeneration)
+                throw new CancellationException();
+            styleName = null;
+            alignment = null;
+            indentLeft = 0;
+            spacingBefore = 0;
+            spacingAfter = 0;
+            paragraphStyle = null;
+
+            int depth = 1;
+            while (depth > 0) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                if (!W.equals(xml.getNamespaceURI())) {
+                    // Drawings, math and other markup we do not show
+                    skip(xml);
+                    continue;
+                }
+                switch (xml.getLocalName()) {
+                    case "pPr":
+                        readParagraphProperties(xml);
+                        break;
+                    case "r":
+                        readRun(xml);
+                        break;
+                    case "txbxContent":
+                    case "del":
+                    case "moveFrom":
+                        skip(xml);
+                        break;
+                    default:
+                        // Hyperlinks, insertions, fields...: their runs are part of the text
+                        depth++;
+                }
+            }
+            finishParagraph();
+        }
+
+        private void readParagraphProperties(XMLStreamReader xml) throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (xml.getLocalName()) {
+                    case "pStyle":
+                        styleName = parseStyleName(attribute(xml, "val"));
+                        break;
+                    case "jc":
+                        alignment = attribute(xml, "val");
+                        break;
+                    case "ind":
+                        indentLeft = parseInt(attribute(xml, "left"), parseInt(attribute(xml, "start"), 0));
+                        break;
+                    case "spacing":
+                        spacingBefore = parseInt(attribute(xml, "before"), 0);
+                        spacingAfter = parseInt(attribute(xml, "after"), 0);
+                        break;
+                    default:
+                        // Only the properties of the paragraph itself (not of its mark, nor
+                        // earlier revisions) apply
+                        break;
+                }
+                skip(xml);
+            }
+        }
+
+        private void readRun(XMLStreamReader xml) throws XMLStreamException {
+            fontFamily = null;
+            fontSize = 0;
+            bold = false;
+            italic = false;
+            underline = false;
+            strikethrough = false;
+            color = null;
+            runStyle = null;
+
+            int depth = 1;
+            while (depth > 0) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                if (!W.equals(xml.getNamespaceURI())) {
+                    skip(xml);
+                    continue;
+                }
+                switch (xml.getLocalName()) {
+                    case "rPr":
+                        readRunProperties(xml);
+                        break;
+                    case "t":
+                        addText(xml.getElementText());
+                        break;
+                    case "drawing":
+                        readDrawing(xml);
+                        break;
+                    case "tab":
+                        addText("\t");
+                        skip(xml);
+                        break;
+                    // A line break starts a new paragraph with the same style
+                    case "br":
+                    case "cr":
+                        skip(xml);
+                        finishParagraph();
+                        break;
+                    default:
+                        skip(xml);
+                }
+            }
+        }
+
+        private void readRunProperties(XMLStreamReader xml) throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (xml.getLocalName()) {
+                    case "rFonts":
+                        fontFamily = attribute(xml, "ascii");
+                        break;
+                    case "sz":
+                        // Half-points
+                        fontSize = parseInt(attribute(xml, "val"), 0) / 2.0;
+                        break;
+                    case "b":
+                        bold = isOn(attribute(xml, "val"));
+                        break;
+                    case "i":
+                        italic = isOn(attribute(xml, "val"));
+                        break;
+                    case "u":
+                        String pattern = attribute(xml, "val");
+                        underline = pattern != null && !pattern.equals("none");
+                        break;
+                    case "strike":
+                        strikethrough = isOn(attribute(xml, "val"));
+                        break;
+                    case "color":
+                        color = parseColor(attribute(xml, "val"));
+                        break;
+                    default:
+                        break;
+                }
+                skip(xml);
+            }
+        }
+
+        /**
+         * Adds the picture of a drawing as a placeholder of its size. Only the compressed bytes
+         * are read, into the {@link ImageStore}; they are decoded once the picture is shown.
+         */
+        private void readDrawing(XMLStreamReader xml) throws XMLStreamException {
+            long width = 0;
+            long height = 0;
+            String relationId = null;
+            int depth = 1;
+            while (depth > 0) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                depth++;
+                if (WORD_DRAWING.equals(xml.getNamespaceURI()) && "extent".equals(xml.getLocalName())) {
+                    width = parseLong(xml.getAttributeValue(null, "cx"));
+                    height = parseLong(xml.getAttributeValue(null, "cy"));
+                } else if (DRAWING.equals(xml.getNamespaceURI()) && "blip".equals(xml.getLocalName())
+                        && relationId == null) {
+                    relationId = xml.getAttributeValue(OFFICE_RELATIONSHIPS, "embed");
+                }
+            }
+            if (relationId == null || width <= 0 || height <= 0)
+                return;
+            String key = imageKey(relationId);
+            if (key == null)
+                return;
+            segments.add(new StyledSegment<>(Either.right(
+                    new ResizableImageView(key, (double) width / EMU_PER_PIXEL, (double) height / EMU_PER_PIXEL)),
+                    CharStyle.EMPTY));
+        }
+
+        // Pictures used more than once are read once
+        private String imageKey(String relationId) {
+            if (imageKeys.containsKey(relationId))
+                return imageKeys.get(relationId);
+            String key = null;
+            try {
+                String target = imageTargets().get(relationId);
+                ZipEntry entry = target == null ? null : zip.getEntry(target);
+                if (entry != null) {
+                    byte[] bytes;
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        bytes = in.readAllBytes();
+                    }
+                    // Formats JavaFX cannot show (EMF, WMF...) are left out
+                    if (ImageStore.formatOf(bytes) != null) {
+                        key = ImageStore.put(bytes);
+                    }
+                }
+            } catch (IOException | XMLStreamException e) {
+                // A damaged picture only loses itself
+            }
+            imageKeys.put(relationId, key);
+            return key;
+        }
+
+        /**
+         * Zip entry names of the embedded pictures, by relationship id.
+         */
+        private Map<String, String> imageTargets() throws IOException, XMLStreamException {
+            if (imageTargets != null)
+                return imageTargets;
+            imageTargets = new HashMap<>();
+            int slash = mainPart.lastIndexOf('/');
+            String folder = mainPart.substring(0, slash + 1);
+            ZipEntry rels = zip.getEntry(folder + "_rels/" + mainPart.substring(slash + 1) + ".rels");
+            if (rels == null)
+                return imageTargets;
+            try (InputStream in = zip.getInputStream(rels)) {
+                XMLStreamReader xml = XML_INPUT.createXMLStreamReader(in);
+                try {
+                    while (xml.hasNext()) {
+                        if (xml.next() == XMLStreamConstants.START_ELEMENT
+                                && RELATIONSHIPS.equals(xml.getNamespaceURI())
+                                && "Relationship".equals(xml.getLocalName())) {
+                            String type = xml.getAttributeValue(null, "Type");
+                            String target = xml.getAttributeValue(null, "Target");
+                            // Linked pictures are not in the package
+                            if (type != null && type.endsWith("/image") && target != null
+                                    && !"External".equals(xml.getAttributeValue(null, "TargetMode"))) {
+                                imageTargets.put(xml.getAttributeValue(null, "Id"),
+                                        target.startsWith("/") ? target.substring(1) : folder + target);
+                            }
+                        }
+                    }
+                } finally {
+                    xml.close();
+                }
+            }
+            return imageTargets;
+        }
+
+        private void addText(String text) {
+            if (text.isEmpty())
+                return;
+            if (runStyle == null) {
+                // Runs with the same formatting share one interned style
+                runStyle = CharStyle.of(fontFamily, fontSize, bold, italic, underline, strikethrough, color, null,
+                        "");
+            }
+            segments.add(new StyledSegment<>(Either.left(text), runStyle));
+        }
+
+        private void finishParagraph() {
+            if (paragraphStyle == null) {
+                paragraphStyle = ParStyle.of(styleName, paragraphCss());
+            }
+            if (segments.isEmpty()) {
+                segments.add(emptySegment());
+            }
+            chunk.addParagraph(segments, paragraphStyle);
+            segments = new ArrayList<>();
+            chunkParagraphs++;
+            if (chunkParagraphs >= chunkLimit || System.nanoTime() - chunkStarted > CHUNK_NANOS) {
+                try {
+                    flush();
+                } catch (InterruptedException e) {
+                    throw new CancellationException();
+                }
+            }
+        }
+
+        private String paragraphCss() {
+            StringBuilder css = new StringBuilder();
+
+            // Alignment
+            String align = alignment == null ? "left" : alignment;
+            switch (align) {
+                case "center":
+                    css.append("-fx-text-alignment: center;");
+                    break;
+                case "right":
+                case "end":
+                    css.append("-fx-text-alignment: right;");
+                    break;
+                case "both":
+                case "distribute":
+                    css.append("-fx-text-alignment: justify;");
+                    break;
+                default:
+                    css.append("-fx-text-alignment: left;");
+            }
+
+            // Indentation & Spacing
+            int leftPx = (int) twipsToPx(indentLeft);
+            int topPx = (int) twipsToPx(spacingBefore);
+            int bottomPx = (int) twipsToPx(spacingAfter);
+
+            if (leftPx > 0 || topPx > 0 || bottomPx > 0) {
+                css.append(String.format("-fx-padding: %dpx 0 %dpx %dpx;", topPx, bottomPx, leftPx));
+            }
+            return css.toString();
+        }
+
+        private void flush() throws InterruptedException {
+            ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> paragraphs = chunk.build();
+            boolean isFirst = first;
+            double progress = totalBytes > 0 ? Math.min(1, (double) bytesRead / totalBytes) : -1;
+            // Waits while the FX thread is still busy with earlier chunks
+            inFlight.acquire();
+            deliver(myGeneration, () -> {
+                inFlight.release();
+                listener.onParagraphs(paragraphs, isFirst);
+                listener.onProgress(progress);
+            });
+            first = false;
+            chunkLimit = CHUNK_PARAGRAPHS;
+            newChunk();
+        }
+
+        private void newChunk() {
+            chunk = new ReadOnlyStyledDocumentBuilder<>(CustomEditor.createTextOps(), ParStyle.EMPTY);
+            chunkParagraphs = 0;
+            chunkStarted = System.nanoTime();
+            if (!first) {
+                chunk.addParagraph(List.of(emptySegment()), ParStyle.EMPTY);
+            }
+        }
+
+        /**
+         * Name of the main document part, from the package relationships.
+         */
+        private String findMainPart() throws IOException, XMLStreamException {
+            ZipEntry rels = zip.getEntry("_rels/.rels");
+            if (rels == null)
+                return DEFAULT_MAIN_PART;
+            try (InputStream in = zip.getInputStream(rels)) {
+                XMLStreamReader xml = XML_INPUT.createXMLStreamReader(in);
+                try {
+                    while (xml.hasNext()) {
+                        if (xml.next() == XMLStreamConstants.START_ELEMENT
+                                && RELATIONSHIPS.equals(xml.getNamespaceURI())
+                                && "Relationship".equals(xml.getLocalName())) {
+                            String type = xml.getAttributeValue(null, "Type");
+                            String target = xml.getAttributeValue(null, "Target");
+                            if (type != null && type.endsWith("/officeDocument") && target != null) {
+                                return target.startsWith("/") ? target.substring(1) : target;
+                            }
+                        }
+                    }
+                } finally {
+                    xml.close();
+                }
+            }
+            return DEFAULT_MAIN_PART;
+        }
+
+        /**
+         * Counts the bytes of the document part read so far, for the progress.
+         */
+        private class CountingStream extends FilterInputStream {
+            CountingStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    // Skips the rest of the current element, its end tag included
+    private static void skip(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String attribute(XMLStreamReader xml, String name) {
+        return xml.getAttributeValue(W, name);
+    }
+
+    // On/off properties: present without a value means on
+    private static boolean isOn(String value) {
+        return value == null || !(value.equals("0") || value.equals("false") || value.equals("off"));
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null)
+            return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static StyledSegment<Either<String, Node>, CharStyle> emptySegment() {
+        return new StyledSegment<>(Either.left(""), CharStyle.EMPTY);
+    }
+
+    private static double twipsToPx(int twips) {
+        return (double) twips * PIXELS_PER_INCH / TWIPS_PER_INCH;
+    }
+
+    private static Color parseColor(String hex) {
+        if (hex == null || hex.equalsIgnoreCase("auto"))
+            return null;
+        try {
+            return Color.web("#" + hex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps a DOCX paragraph style id ("Heading1", "heading 1", "Title"...) to one of our
+     * paragraph style names, or null for Normal and unknown styles.
+     */
+    private static String parseStyleName(String styleId) {
+        if (styleId == null)
+            return null;
+        String normalized = styleId.replace(" ", "");
+        for (StyleManager.TextStyle style : StyleManager.ALL_STYLES) {
+            if (style.getName().equalsIgnoreCase(normalized))
+                return style.getName();
+        }
+        return null;
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if the import was cancelled in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+}
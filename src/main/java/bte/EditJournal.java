@@ -0,0 +1,513 @@
+package bte;
+
+import javafx.scene.Node;
+import javafx.scene.layout.VBox;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.RichTextChange;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of document changes, for recovery after a crash.
+ * Every change is appended as a small record (position, removed length, inserted styled text),
+ * encoded on the FX thread and written by a background thread that syncs the file once per
+ * group of records, at most every {@link #COMMIT_INTERVAL_MILLIS}. Keeping the journal costs in
+ * proportion to the editing, not to the size of the document.
+ * <p>
+ * Each journal starts from a snapshot in the native format, written in the background whenever
+ * the document is saved, opened or started anew; older journals and snapshots are deleted as
+ * soon as the new snapshot is complete. A journal started by a save continues the one before
+ * it, so until its snapshot is written the older snapshot and both journals still describe the
+ * document. A clean exit removes all files: files found at startup mean the last session ended
+ * abnormally, and {@link #findRecovery()} rebuilds its document from them.
+ */
+public class EditJournal {
+
+    private static final long COMMIT_INTERVAL_MILLIS = 200;
+
+    private static final int MAGIC = 0x4254454A; // "BTEJ"
+    private static final int VERSION = 1;
+
+    // Record types
+    private static final int HEADER = 0;
+    private static final int IMAGE = 1;
+    private static final int CHANGE = 2;
+
+    // Ends the writer
+    private static final Object CLOSE = new Object();
+
+    private final Path directory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private volatile boolean failed;
+
+    private final BteExporter snapshotExporter = new BteExporter();
+    private int generation;
+    private boolean recording;
+    // Images already written to the current journal, by their number in it
+    private final Map<String, Integer> images = new HashMap<>();
+
+    /**
+     * Uses the given directory for journals and snapshots. Another instance of the program that
+     * already uses it keeps it; this journal then records nothing.
+     */
+    public EditJournal(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve("journal.lock"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+            for (int existing : listJournals().keySet()) {
+                generation = Math.max(generation, existing);
+            }
+        } catch (IOException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Starts a new journal for a document that was just opened or created, with the document as
+     * it is now as its snapshot.
+     *
+     * @param file the file the document belongs to, or null
+     */
+    public void restart(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, File file) {
+        begin(snapshot, file, false);
+    }
+
+    /**
+     * Compacts the journal after a save: the document as it is now becomes the snapshot, and the
+     * changes before it are dropped once that is written.
+     */
+    public void checkpoint(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, File file) {
+        begin(snapshot, file, true);
+    }
+
+    /**
+     * Stops recording, while the document is replaced by a file being opened. The next
+     * {@link #restart} records again.
+     */
+    public void suspend() {
+        recording = false;
+    }
+
+    /**
+     * Appends the changes to the journal. Called on the FX thread for every change, in order.
+     */
+    public void record(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        if (!recording || failed)
+            return;
+        try {
+            for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : changes) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(payload);
+                out.writeByte(CHANGE);
+                StyledTextCodec.writeVarInt(out, change.getPosition());
+                StyledTextCodec.writeVarInt(out, change.getRemoved().length());
+                writeDocument(out, change.getInserted());
+                append(payload.toByteArray());
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stops the journal after a clean exit and removes its files.
+     */
+    public void close() {
+        if (lock == null)
+            return;
+        recording = false;
+        snapshotExporter.cancel();
+        if (writer != null) {
+            queue.add(CLOSE);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        deleteBefore(Integer.MAX_VALUE);
+        try {
+            lock.release();
+            lockChannel.close();
+            Files.deleteIfExists(directory.resolve("journal.lock"));
+        } catch (IOException e) {
+            // Only the lock file stays behind
+        }
+        lock = null;
+    }
+
+    private void begin(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, File file,
+            boolean continues) {
+        if (failed)
+            return;
+        int myGeneration = ++generation;
+        boolean hasSnapshot = snapshot.length() > 0;
+        try {
+            FileChannel channel = FileChannel.open(journalFile(myGeneration), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            startWriter();
+            queue.add(channel);
+        } catch (IOException e) {
+            failed = true;
+            return;
+        }
+        images.clear();
+        recording = true;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeByte(HEADER);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(continues);
+            out.writeBoolean(hasSnapshot);
+            StyledTextCodec.writeNullableString(out, file == null ? null : file.getAbsolutePath());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(header.toByteArray());
+
+        if (!hasSnapshot) {
+            queue.add((Runnable) () -> deleteBefore(myGeneration));
+            return;
+        }
+        snapshotExporter.save(snapshot, List.of(), snapshotFile(myGeneration).toFile(),
+                new DocxExporter.ExportListener() {
+                    @Override
+                    public void onProgress(double progress) {
+                    }
+
+                    @Override
+                    public void onSaved() {
+                        // Deleted by the writer, after it has moved on to the new journal
+                        queue.add((Runnable) () -> deleteBefore(myGeneration));
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        // The older snapshot and journals stay in use
+                    }
+                });
+    }
+
+    private void writeDocument(DataOutputStream out, StyledDocument<ParStyle, Either<String, Node>, CharStyle> document)
+            throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        List<Node> nodes = new ArrayList<>();
+        DataOutputStream textOut = new DataOutputStream(text);
+        new StyledTextCodec.Writer(textOut, nodes).write(document);
+        textOut.flush();
+
+        StyledTextCodec.writeVarInt(out, nodes.size());
+        for (Node node : nodes) {
+            BteFormat.writeObject(out, EmbeddedObject.describe(node), this::imageNumber);
+        }
+        text.writeTo(out);
+    }
+
+    // An image is written to the journal before the first change that uses it
+    private int imageNumber(String key) {
+        Integer number = images.get(key);
+        if (number != null)
+            return number;
+        byte[] bytes = ImageStore.get(key);
+        if (bytes == null)
+            return -1;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(bytes.length + 8);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeByte(IMAGE);
+            StyledTextCodec.writeVarInt(out, bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(payload.toByteArray());
+        images.put(key, images.size());
+        return images.size() - 1;
+    }
+
+    // A record is its length, the CRC of its payload and the payload
+    private void append(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        queue.add(record);
+    }
+
+    private void startWriter() {
+        if (writer != null)
+            return;
+        writer = Thread.ofVirtual().name("edit-journal").start(() -> {
+            FileChannel channel = null;
+            try {
+                while (true) {
+                    List<Object> group = new ArrayList<>();
+                    group.add(queue.take());
+                    // Records arriving meanwhile share one sync
+                    Thread.sleep(COMMIT_INTERVAL_MILLIS);
+                    queue.drainTo(group);
+                    for (Object item : group) {
+                        if (item == CLOSE) {
+                            if (channel != null) {
+                                channel.close();
+                            }
+                            return;
+                        } else if (item instanceof FileChannel next) {
+                            if (channel != null) {
+                                channel.force(false);
+                                channel.close();
+                            }
+                            channel = next;
+                        } else if (item instanceof ByteBuffer record) {
+                            while (record.hasRemaining()) {
+                                channel.write(record);
+                            }
+                        } else if (item instanceof Runnable task) {
+                            task.run();
+                        }
+                    }
+                    if (channel != null) {
+                        channel.force(false);
+                    }
+                }
+            } catch (IOException e) {
+                // Without a working journal there is nothing to recover from; editing goes on
+                failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private void deleteBefore(int limit) {
+        try {
+            for (int g : listJournals().keySet()) {
+                if (g < limit) {
+                    Files.deleteIfExists(journalFile(g));
+                    Files.deleteIfExists(snapshotFile(g));
+                }
+            }
+        } catch (IOException e) {
+            // Left for the next time
+        }
+    }
+
+    private Path journalFile(int g) {
+        return directory.resolve("journal-" + g + ".log");
+    }
+
+    private Path snapshotFile(int g) {
+        return directory.resolve("snapshot-" + g + ".bte");
+    }
+
+    // Journal files by generation, oldest first
+    private TreeMap<Integer, Path> listJournals() throws IOException {
+        TreeMap<Integer, Path> journals = new TreeMap<>();
+        try (var files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith("journal-") && name.endsWith(".log")) {
+                    try {
+                        journals.put(Integer.parseInt(name.substring(8, name.length() - 4)), path);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        return journals;
+    }
+
+    /**
+     * Looks for the document of a session that ended without a clean exit. Returns null if there
+     * is none, or if it had no changes since its last snapshot.
+     */
+    public Recovery findRecovery() {
+        if (lock == null)
+            return null;
+        try {
+            List<Path> chain = new ArrayList<>();
+            Path snapshot = null;
+            String file = null;
+            boolean found = false;
+            for (Map.Entry<Integer, Path> journal : listJournals().descendingMap().entrySet()) {
+                DataInputStream header = firstRecord(journal.getValue());
+                if (header == null || header.readByte() != HEADER || header.readInt() != MAGIC
+                        || header.readInt() != VERSION)
+                    continue;
+                boolean continues = header.readBoolean();
+                boolean hasSnapshot = header.readBoolean();
+                if (chain.isEmpty()) {
+                    file = StyledTextCodec.readNullableString(header);
+                }
+                chain.add(0, journal.getValue());
+                Path base = snapshotFile(journal.getKey());
+                if (!hasSnapshot || Files.exists(base)) {
+                    snapshot = hasSnapshot ? base : null;
+                    found = true;
+                    break;
+                }
+                // A new document whose snapshot was never written cannot be rebuilt
+                if (!continues)
+                    return null;
+            }
+            if (!found)
+                return null;
+            Recovery recovery = new Recovery(snapshot, file, chain);
+            return recovery.countChanges() > 0 ? recovery : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static DataInputStream firstRecord(Path journal) throws IOException {
+        List<byte[]> records = readRecords(Files.readAllBytes(journal), 1);
+        return records.isEmpty() ? null : new DataInputStream(new ByteArrayInputStream(records.get(0)));
+    }
+
+    /**
+     * The payloads of the intact records at the start of a journal; a record cut short by the
+     * crash, and everything after it, is dropped.
+     */
+    private static List<byte[]> readRecords(byte[] journal, int limit) {
+        List<byte[]> records = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(journal);
+        while (records.size() < limit && buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                break;
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum)
+                break;
+            records.add(payload);
+        }
+        return records;
+    }
+
+    /**
+     * What is left of an interrupted session: the snapshot to open (null for an empty document)
+     * and the journals to replay on top of it.
+     */
+    public static final class Recovery {
+        private final Path snapshot;
+        private final String file;
+        private final List<Path> journals;
+
+        private Recovery(Path snapshot, String file, List<Path> journals) {
+            this.snapshot = snapshot;
+            this.file = file;
+            this.journals = journals;
+        }
+
+        /**
+         * The native snapshot to load before replaying, or null to start from an empty document.
+         */
+        public File getSnapshot() {
+            return snapshot == null ? null : snapshot.toFile();
+        }
+
+        /**
+         * The file the document belonged to, or null.
+         */
+        public File getFile() {
+            return file == null ? null : new File(file);
+        }
+
+        private int countChanges() throws IOException {
+            int changes = 0;
+            for (Path journal : journals) {
+                for (byte[] record : readRecords(Files.readAllBytes(journal), Integer.MAX_VALUE)) {
+                    if (record.length > 0 && record[0] == CHANGE) {
+                        changes++;
+                    }
+                }
+            }
+            return changes;
+        }
+
+        /**
+         * Applies the journaled changes to the document, which holds the snapshot. Runs on the FX
+         * thread; stops at the first change that does not fit, and returns how many were applied.
+         *
+         * @param contents creates the box of a table of contents
+         */
+        public int replay(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document,
+                Supplier<VBox> contents) {
+            int applied = 0;
+            try {
+                for (Path journal : journals) {
+                    List<String> imageKeys = new ArrayList<>();
+                    for (byte[] record : readRecords(Files.readAllBytes(journal), Integer.MAX_VALUE)) {
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                        int type = in.readByte();
+                        if (type == IMAGE) {
+                            byte[] bytes = new byte[StyledTextCodec.readVarInt(in)];
+                            in.readFully(bytes);
+                            imageKeys.add(ImageStore.put(bytes));
+                        } else if (type == CHANGE) {
+                            int position = StyledTextCodec.readVarInt(in);
+                            int removed = StyledTextCodec.readVarInt(in);
+                            List<Node> nodes = new ArrayList<>();
+                            int nodeCount = StyledTextCodec.readVarInt(in);
+                            for (int n = 0; n < nodeCount; n++) {
+                                nodes.add(BteFormat.readObject(in.readByte(), in, image -> {
+                                    if (image < 0 || image >= imageKeys.size())
+                                        throw new IOException("Damaged journal");
+                                    return imageKeys.get(image);
+                                }, contents).get());
+                            }
+                            ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> inserted =
+                                    new StyledTextCodec.Reader(in, nodes).read();
+                            if (position + removed > document.length())
+                                return applied;
+                            document.replace(position, position + removed, inserted);
+                            applied++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Replayed as far as the journal could be read
+            }
+            return applied;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package bte;
+
+import javafx.scene.Node;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.Labeled;
+import javafx.scene.control.TextInputControl;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The content of an embedded node (image, table, table of contents), as the file writers need it.
+ * Node properties belong to the FX thread, so a background save describes the nodes of its
+ * snapshot before it starts and never touches them afterwards.
+ */
+public abstract class EmbeddedObject {
+
+    private EmbeddedObject() {
+    }
+
+    /**
+     * Describes every embedded node of the document; nodes that cannot be written are left out.
+     * Runs on the FX thread.
+     */
+    public static Map<Node, EmbeddedObject> describeAll(
+            StyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
+        Map<Node, EmbeddedObject> objects = new IdentityHashMap<>();
+        for (Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph : document.getParagraphs()) {
+            for (Either<String, Node> segment : paragraph.getSegments()) {
+                if (segment.isRight() && !objects.containsKey(segment.getRight())) {
+                    EmbeddedObject object = describe(segment.getRight());
+                    if (object != null) {
+                        objects.put(segment.getRight(), object);
+                    }
+                }
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Describes one embedded node, or returns null for a node that cannot be written.
+     */
+    public static EmbeddedObject describe(Node node) {
+        if (node instanceof ResizableImageView view) {
+            if (view.getDisplayWidth() <= 0)
+                return null;
+            try {
+                return new Picture(view.getImageKey(), view.getDisplayWidth(), view.getDisplayHeight());
+            } catch (IllegalArgumentException e) {
+                // Still loading, or failed to load
+                return null;
+            }
+        }
+        if (node instanceof ResizableTableView view) {
+            GridPane grid = view.getTable();
+            int rows = 0;
+            int columns = 0;
+            for (Node child : grid.getChildren()) {
+                rows = Math.max(rows, index(GridPane.getRowIndex(child)) + 1);
+                columns = Math.max(columns, index(GridPane.getColumnIndex(child)) + 1);
+            }
+            String[][] cells = new String[rows][columns];
+            for (Node child : grid.getChildren()) {
+                String text = child instanceof TextInputControl field ? field.getText()
+                        : child instanceof Labeled label ? label.getText() : null;
+                cells[index(GridPane.getRowIndex(child))][index(GridPane.getColumnIndex(child))] = text;
+            }
+            return new TableData(cells, grid.getPrefWidth() > 0 ? grid.getPrefWidth() : grid.getWidth(),
+                    grid.getPrefHeight() > 0 ? grid.getPrefHeight() : grid.getHeight());
+        }
+        if (node instanceof ResizableTOCView view) {
+            VBox box = view.getTOCBox();
+            Contents contents = new Contents(box.getChildren().isEmpty()
+                    || !(box.getChildren().get(0) instanceof Text title) ? null : title.getText(),
+                    box.getPrefWidth(), box.getPrefHeight());
+            if (box instanceof LiveTOC toc) {
+                toc.update();
+                toc.forEachEntry(contents::add);
+            } else {
+                for (Node child : box.getChildren()) {
+                    if (child instanceof Hyperlink link) {
+                        contents.add(link.getText(), 1);
+                    }
+                }
+            }
+            return contents;
+        }
+        return null;
+    }
+
+    // GridPane leaves the index unset for row or column 0
+    private static int index(Integer index) {
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * An image, by its key in the {@link ImageStore}, at its size in the text.
+     */
+    public static final class Picture extends EmbeddedObject {
+        final String key;
+        final double width;
+        final double height;
+
+        Picture(String key, double width, double height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A table: the texts of its cells (null for an empty or missing cell) and its size.
+     */
+    public static final class TableData extends EmbeddedObject {
+        final String[][] cells;
+        final double width;
+        final double height;
+
+        TableData(String[][] cells, double width, double height) {
+            this.cells = cells;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A table of contents: its title and the headings it listed when it was described.
+     */
+    public static final class Contents extends EmbeddedObject {
+        final String title;
+        final double width;
+        final double height;
+        final List<String> texts = new ArrayList<>();
+        final List<Integer> levels = new ArrayList<>();
+
+        Contents(String title, double width, double height) {
+            this.title = title;
+            this.width = width;
+            this.height = height;
+        }
+
+        void add(String text, int level) {
+            texts.add(text);
+            levels.add(level);
+        }
+    }
+}
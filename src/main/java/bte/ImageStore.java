@@ -0,0 +1,125 @@
+package bte;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The encoded bytes of the images in documents, keyed by a hash of their content.
+ * An image placed many times, or inserted again from the same file, is stored once; image nodes
+ * only carry the key. The store can be read from any thread, so exporters look images up
+ * without touching the nodes.
+ * <p>
+ * An image stays stored while something holds the key string {@link #put} returned for it: the
+ * image nodes of the document, of the undo history and of snapshots being saved all share that
+ * instance. Once the last of them is gone the bytes go with it, so opening one document after
+ * another does not keep the images of the earlier ones.
+ */
+public final class ImageStore {
+
+    // Weakly keyed; every holder of a key must have it from put, or the entry can go away
+    private static final Map<String, Stored> IMAGES = new WeakHashMap<>();
+
+    private static final class Stored {
+        // The key instance handed out, which keeps the entry alive
+        final WeakReference<String> key;
+        final byte[] bytes;
+
+        Stored(String key, byte[] bytes) {
+            this.key = new WeakReference<>(key);
+            this.bytes = bytes;
+        }
+    }
+
+    private ImageStore() {
+    }
+
+    /**
+     * Stores encoded image bytes (PNG, JPEG, GIF or BMP) and returns their key. The same bytes
+     * get the same key instance as long as it is held anywhere.
+     */
+    public static String put(byte[] bytes) {
+        String key = hash(bytes);
+        synchronized (IMAGES) {
+            Stored stored = IMAGES.get(key);
+            String held = stored == null ? null : stored.key.get();
+            if (held != null)
+                return held;
+            IMAGES.put(key, new Stored(key, bytes));
+        }
+        return key;
+    }
+
+    /**
+     * Stores the pixels of an image whose file is not known, encoded as PNG. Reads the image, so
+     * it runs on the FX thread.
+     */
+    public static String put(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        PixelReader reader = image.getPixelReader();
+        if (reader == null || width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image is not loaded");
+        BufferedImage pixels = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setRGB(x, y, reader.getArgb(x, y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(pixels, "png", out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return put(out.toByteArray());
+    }
+
+    /**
+     * The bytes stored under the key, or null.
+     */
+    public static byte[] get(String key) {
+        if (key == null)
+            return null;
+        synchronized (IMAGES) {
+            Stored stored = IMAGES.get(key);
+            return stored == null ? null : stored.bytes;
+        }
+    }
+
+    /**
+     * The format of encoded image bytes, recognised from their first bytes: "png", "jpeg", "gif",
+     * "bmp", or null for anything else.
+     */
+    public static String formatOf(byte[] bytes) {
+        if (bytes.length >= 4 && (bytes[0] & 0xFF) == 0x89 && bytes[1] == 'P' && bytes[2] == 'N' && bytes[3] == 'G')
+            return "png";
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xD8 && (bytes[2] & 0xFF) == 0xFF)
+            return "jpeg";
+        if (bytes.length >= 3 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F')
+            return "gif";
+        if (bytes.length >= 2 && bytes[0] == 'B' && bytes[1] == 'M')
+            return "bmp";
+        return null;
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package bte;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import org.fxmisc.richtext.model.Paragraph;
+import org.reactfx.util.Either;
+
+/**
+ * Bullet and numbered lists.
+ * Whether a paragraph is a list item, and at which level, is part of its {@link ParStyle}, so
+ * list membership moves with the paragraph when text is inserted or deleted above it. Item
+ * numbers are not stored anywhere: they are read from the {@link ParagraphIndex} aggregates in
+ * O(log n). Markers are paragraph graphics, not text, so they stay out of search, word counts
+ * and exports, and renumbering only means redrawing the markers of the visible paragraphs.
+ */
+public class ListManager {
+
+    public static final int MAX_LEVEL = 3;
+
+    private static final double LEVEL_INDENT = 20;
+    // Room for the marker itself, up to "xviii." in the default font
+    private static final double MARKER_WIDTH = 40;
+    private static final double MARKER_GAP = 6;
+
+    public static String getBulletSymbol(int level) {
+        switch (level % 3) {
+            case 0:
+                return "•"; // Filled circle
+            case 1:
+                return "○"; // Hollow circle
+            case 2:
+                return "■"; // Square
+            default:
+                return "•";
+        }
+    }
+
+    public static String getNumberPrefix(int level, int index) {
+        switch (level % 3) {
+            case 0: // Numbers: 1, 2, 3...
+                return index + ".";
+            case 1: // Lowercase letters: a, b, c...
+                return index <= 26 ? ((char) ('a' + (index - 1))) + "." : index + ".";
+            case 2: // Roman numerals: i, ii, iii...
+                return toRomanNumeral(index) + ".";
+            default:
+                return index + ".";
+        }
+    }
+
+    private static String toRomanNumeral(int number) {
+        if (number >= 10)
+            return String.valueOf(number); // Fallback for large numbers
+        String[] romanNumerals = { "", "i", "ii", "iii", "iv", "v", "vi", "vii", "viii", "ix" };
+        return romanNumerals[number];
+    }
+
+    /**
+     * Horizontal space taken by the marker of a list item (its indent included), 0 for other
+     * paragraphs.
+     */
+    public static double getIndent(ParStyle style) {
+        return style.isListItem() ? MARKER_WIDTH + style.getListLevel() * LEVEL_INDENT : 0;
+    }
+
+    /**
+     * The marker shown in front of a paragraph ("•", "12.", "b."...), or null for a paragraph
+     * that is not a list item.
+     */
+    public static String getMarker(ParagraphIndex index, int paragraph, ParStyle style) {
+        switch (style.getListType()) {
+            case BULLET:
+                return getBulletSymbol(style.getListLevel());
+            case NUMBERED:
+                return getNumberPrefix(style.getListLevel(), index.getListNumber(paragraph));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Paragraph graphic of a list item, or null for other paragraphs. The marker is drawn with
+     * the style of the item's first character and right-aligned in front of the text, so
+     * wrapped lines stay aligned with the first one.
+     */
+    public static Node createMarkerGraphic(CustomEditor editor, ParagraphIndex index, int paragraph) {
+        Paragraph<ParStyle, Either<String, Node>, CharStyle> item = editor.getParagraph(paragraph);
+        String marker = getMarker(index, paragraph, item.getParagraphStyle());
+        if (marker == null)
+            return null;
+        Label label = new Label(marker);
+        CharStyle style = item.length() > 0 ? item.getStyleAtPosition(0) : editor.getInitialTextStyle();
+        label.setStyle(markerCss(style));
+        label.setAlignment(Pos.TOP_RIGHT);
+        label.setPadding(new Insets(0, MARKER_GAP, 0, 0));
+        double width = getIndent(item.getParagraphStyle());
+        label.setMinWidth(width);
+        label.setPrefWidth(width);
+        label.setMaxWidth(width);
+        return label;
+    }
+
+    // Only the font and color of the character style apply to the marker
+    private static String markerCss(CharStyle style) {
+        StringBuilder css = new StringBuilder();
+        if (style.getFontFamily() != null) {
+            css.append("-fx-font-family: '").append(style.getFontFamily()).append("'; ");
+        }
+        if (style.getFontSize() > 0) {
+            css.append("-fx-font-size: ").append(CharStyle.formatSize(style.getFontSize())).append("px; ");
+        }
+        if (style.isBold()) {
+            css.append("-fx-font-weight: bold; ");
+        }
+        if (style.isItalic()) {
+            css.append("-fx-font-style: italic; ");
+        }
+        if (style.getColor() != null) {
+            css.append("-fx-text-fill: ").append(CharStyle.toHex(style.getColor())).append("; ");
+        }
+        return css.toString().trim();
+    }
+}
@@ -0,0 +1,176 @@
+package bte;
+
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
+import javafx.scene.Node;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.Separator;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
+import javafx.util.Duration;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.reactfx.Subscription;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Table of contents that follows the headings of the document.
+ * Each link is anchored to the heading's {@link ParagraphIndex.Record} instead of its paragraph
+ * index, so edits above a heading never make its link point elsewhere. While the TOC is shown,
+ * document changes schedule an update at most every {@link #UPDATE_INTERVAL}; an update reads
+ * only the heading paragraphs, does nothing if no heading changed since the last one, and
+ * touches only the links whose heading was added, removed or edited.
+ * A link hands its heading's paragraph to a navigator, since page views are pooled and rebound
+ * to other pages: only the application knows which view shows the heading.
+ */
+public class LiveTOC extends VBox {
+
+    private static final Duration UPDATE_INTERVAL = Duration.millis(250);
+
+    private static class Entry {
+        final Hyperlink link = new Hyperlink();
+        String text;
+        int level;
+    }
+
+    private final EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private final ParagraphIndex index;
+    private final IntConsumer navigator;
+    private final PauseTransition updateTimer = new PauseTransition(UPDATE_INTERVAL);
+    // Title and separator come before the links
+    private final int firstLink;
+
+    private Map<ParagraphIndex.Record, Entry> entries = new HashMap<>();
+    private List<Entry> shown = new ArrayList<>();
+    private long shownVersion = -1;
+    private Subscription subscription;
+
+    /**
+     * @param navigator moves the caret to the paragraph with the given index
+     */
+    public LiveTOC(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document, ParagraphIndex index,
+            IntConsumer navigator) {
+        super(5);
+        this.document = document;
+        this.index = index;
+        this.navigator = navigator;
+        setStyle("-fx-padding: 10; -fx-background-color: #F5F5F5; -fx-border-color: #CCCCCC; -fx-border-width: 1;");
+
+        // Başlık ekle
+        Text title = new Text("İçindekiler");
+        title.setStyle("-fx-font-size: 18px; -fx-font-weight: bold;");
+        getChildren().addAll(title, new Separator());
+        firstLink = getChildren().size();
+
+        updateTimer.setOnFinished(e -> update());
+        // Only a TOC that is on a page listens; one that comes back catches up at once
+        sceneProperty().addListener((obs, oldScene, newScene) -> {
+            if (newScene != null) {
+                listen();
+            } else {
+                stopListening();
+            }
+        });
+        update();
+    }
+
+    private void listen() {
+        if (subscription == null) {
+            // Rich changes, so that applying a heading style counts too
+            subscription = document.multiRichChanges().subscribe(changes -> scheduleUpdate());
+        }
+        update();
+    }
+
+    private void stopListening() {
+        if (subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+        }
+        updateTimer.stop();
+    }
+
+    private void scheduleUpdate() {
+        // Not restarted by further changes, so continuous typing still updates a few times a second
+        if (updateTimer.getStatus() != Animation.Status.RUNNING) {
+            updateTimer.playFromStart();
+        }
+    }
+
+    /**
+     * Brings the links up to date with the headings of the document.
+     */
+    public void update() {
+        updateTimer.stop();
+        if (index.getHeadingVersion() == shownVersion)
+            return;
+        shownVersion = index.getHeadingVersion();
+
+        Map<ParagraphIndex.Record, Entry> current = new HashMap<>();
+        List<Entry> headings = new ArrayList<>(index.getHeadingCount());
+        index.forEachHeading((record, i, offset) -> {
+            String text = document.getParagraph(i).getText().trim();
+
+            // Boş başlıkları atla
+            if (text.isEmpty())
+                return;
+            Entry entry = entries.get(record);
+            if (entry == null) {
+                entry = new Entry();
+                entry.link.setOnAction(e -> navigate(record));
+            }
+            setHeading(entry, text, record.getHeadingLevel());
+            current.put(record, entry);
+            headings.add(entry);
+        });
+        entries = current;
+
+        // The links are only re-attached when headings were added, removed or reordered
+        if (!headings.equals(shown)) {
+            List<Node> links = new ArrayList<>(headings.size());
+            for (Entry entry : headings) {
+                links.add(entry.link);
+            }
+            getChildren().remove(firstLink, getChildren().size());
+            getChildren().addAll(links);
+            shown = headings;
+        }
+    }
+
+    /**
+     * Calls the action with the text and level of each listed heading, in order.
+     */
+    public void forEachEntry(ObjIntConsumer<String> action) {
+        for (Entry entry : shown) {
+            action.accept(entry.text, entry.level);
+        }
+    }
+
+    private static void setHeading(Entry entry, String text, int level) {
+        if (!text.equals(entry.text)) {
+            entry.text = text;
+            entry.link.setText(text);
+        }
+        if (level != entry.level) {
+            entry.level = level;
+            // Seviyeye göre girintileme
+            double leftPadding = (level - 1) * 20;
+            // Headings from files can go down to level 9; those below the third keep its size
+            entry.link.setStyle(String.format("-fx-padding: 2 0 2 %.0fpx; -fx-font-size: %dpx;",
+                    leftPadding, Math.max(8, 14 - (level * 2))));
+        }
+    }
+
+    private void navigate(ParagraphIndex.Record record) {
+        // A heading deleted since the last update has no position anymore
+        if (!record.isRemoved()) {
+            navigator.accept(index.indexOf(record));
+        }
+    }
+}
@@ -3,40 +3,47 @@ package bte;
 import javafx.application.Application;
 
 import javafx.collections.FXCollections;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javafx.geometry.Bounds;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import org.apache.poi.xwpf.usermodel.ParagraphAlignment;
-import org.apache.poi.xwpf.usermodel.XWPFDocument;
-import org.apache.poi.xwpf.usermodel.XWPFParagraph;
-import org.apache.poi.xwpf.usermodel.XWPFRun;
-import org.apache.poi.xwpf.usermodel.UnderlinePatterns;
 import org.apache.poi.xwpf.usermodel.Borders;
 
+import org.fxmisc.richtext.MultiChangeBuilder;
+import org.fxmisc.richtext.model.GenericEditableStyledDocument;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
+import org.reactfx.SuspendableYes;
 import org.reactfx.util.Either;
 
 import javafx.print.PrinterJob;
-import javafx.scene.effect.DropShadow;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.shape.SVGPath;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.file.Path;
 
 // TODO
 public class MainApp extends Application {
@@ -45,9 +52,18 @@ public class MainApp extends Application {
     private static final double PAGE_HEIGHT = 842;
     private static final double MARGIN = 50;
 
-    private List<CustomEditor> editors = new ArrayList<>();
-    private List<CustomEditor> headerEditors = new ArrayList<>();
-    private List<CustomEditor> footerEditors = new ArrayList<>();
+    // The whole document lives in a single model; every page is a view over a window of it
+    private final GenericEditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document = CustomEditor
+            .createDocument();
+    // One lightweight placeholder per page; only the pages near the viewport hold a PageView
+    private final List<StackPane> pageSlots = new ArrayList<>();
+    private final Map<Integer, PageView> livePages = new HashMap<>();
+    private final Deque<PageView> pagePool = new ArrayDeque<>();
+    // Recording of the shared undo history; suspended for edits the user did not make
+    private final SuspendableYes undoRecording = new SuspendableYes();
+    // One history for the whole document, so undo works across pages
+    private final DocumentUndoManager documentUndoManager = new DocumentUndoManager(document, undoRecording,
+            this::getCurrentEditor);
     private int currentEditorIndex = 0;
     private File currentFile;
     private boolean isDirty = false;
@@ -57,6 +73,27 @@ public class MainApp extends Application {
 
     private Label wordCountLabel;
     private Label charCountLabel;
+    private Label selectionCountLabel;
+    private HBox progressStatus;
+    private Label progressLabel;
+    private ProgressBar progressBar;
+    private final DocxImporter docxImporter = new DocxImporter();
+    private final DocxExporter docxExporter = new DocxExporter();
+    private final BteImporter bteImporter = new BteImporter();
+    private final BteExporter bteExporter = new BteExporter();
+    private final TextImporter textImporter = new TextImporter();
+    // Journal of the edits since the last save, replayed after a crash
+    private final EditJournal editJournal = new EditJournal(
+            Path.of(System.getProperty("user.home"), ".bte", "recovery"));
+    // Counts the edits, so that a save can tell whether the document changed while it ran
+    private long documentVersion = 0;
+    // Changes whenever another document replaces the current one, so that a save still running
+    // for the old document does not take over the new one
+    private int documentSession = 0;
+    // Runs once the save about to start has written the document, see confirmDiscard
+    private Runnable afterSave;
+    // The document holds the first part of a file that is still being read
+    private boolean partiallyLoaded = false;
 
     private ToggleButton boldBtn;
     private ToggleButton italicBtn;
@@ -82,6 +119,8 @@ public class MainApp extends Application {
     private Button decreaseIndentBtn;
     private MenuButton paragraphSpacingBtn;
     private ComboBox<String> stylesCombo;
+    // Set while the styles box follows the caret, so that does not apply the style again
+    private boolean showingCurrentStyle = false;
 
     // Microsoft Word Standard Color Palette (4 rows x 5 colors = 20 total)
     // Row 1: Theme Colors - Dark variants
@@ -138,103 +177,445 @@ public class MainApp extends Application {
             Color.web("#5B9BD5") // Blue
     };
 
-    // List state tracking for multi-level bullets and numbering
-    private Map<Integer, ListInfo> listState = new HashMap<>();
-
-    // Inner class to track list information per paragraph
-    static class ListInfo {
-        boolean isList;
-        boolean isBullet; // true = bullet, false = number
-        int level; // 0-3 for different styles
-        int numberIndex; // sequential number for numbered lists
-
-        ListInfo(boolean isBullet, int level, int numberIndex) {
-            this.isList = true;
-            this.isBullet = isBullet;
-            this.level = level;
-            this.numberIndex = numberIndex;
-        }
-    }
+    private CharStyle currentTypingStyle = CharStyle.EMPTY;
+    // Set while the editor inserts text that already carries its own styles
+    private boolean preserveInsertedStyles = false;
 
-    private String currentTypingStyle = "";
-
-    private static final double MAX_CONTENT_HEIGHT = PAGE_HEIGHT - (MARGIN * 2);
+    // 40px each for header and footer
+    private static final double HEADER_FOOTER_HEIGHT = 80;
 
     private VBox documentBackground;
     private ScrollPane scrollPane;
 
+    private static final double PAGE_SPACING = 30;
+    // Pages materialized above and below the visible ones
+    private static final int PAGE_OVERSCAN = 1;
+
     // Helper method to get the current active editor
     private CustomEditor getCurrentEditor() {
-        if (editors.isEmpty()) {
+        if (pageSlots.isEmpty()) {
             return null;
         }
-        return editors.get(currentEditorIndex);
-    }
+        return materializePage(currentEditorIndex).getEditor();
+    }
+
+    private final PaginationEngine paginationEngine = new PaginationEngine(
+            PAGE_HEIGHT - (MARGIN * 2) - HEADER_FOOTER_HEIGHT, PAGE_WIDTH - (MARGIN * 2));
+    // Quiet period before the status bar statistics are recomputed
+    private static final javafx.util.Duration STATS_QUIET_PERIOD = javafx.util.Duration.millis(150);
+    private static final javafx.util.Duration HIGHLIGHT_QUIET_PERIOD = javafx.util.Duration.millis(300);
+    private final DocumentChangePipeline changePipeline = new DocumentChangePipeline(document);
+    // Per-paragraph word/character counts, updated from the change deltas
+    private final ParagraphIndex paragraphIndex = new ParagraphIndex(document);
+    private final SearchIndex searchIndex = new SearchIndex(document, paragraphIndex);
+    private static final javafx.util.Duration COMPACTION_QUIET_PERIOD = javafx.util.Duration.seconds(1);
+    // Merges the style runs that editing leaves behind
+    private final SegmentCompactor segmentCompactor = new SegmentCompactor(document, undoRecording,
+            COMPACTION_QUIET_PERIOD);
+    private boolean caretCheckScheduled = false;
+    private long listMarkersVersion = -1;
+    private boolean listMarkerRefreshScheduled = false;
+
+    private void setupDocumentListeners() {
+        changePipeline.subscribeImmediate(paragraphIndex::applyChanges);
+        // Style-only edits (e.g. applying a heading style) are not plain text changes
+        document.multiRichChanges().subscribe(paragraphIndex::applyStyleChanges);
+        document.multiRichChanges().subscribe(changes -> scheduleListMarkerRefresh());
+        document.multiRichChanges().subscribe(changes -> {
+            documentVersion++;
+            // Style-only edits (lists, headings) count too; imports, recovery and run compaction
+            // suspend the undo recording and do not
+            if (undoRecording.get()) {
+                isDirty = true;
+            }
+        });
+        document.multiRichChanges().subscribe(editJournal::record);
+        // Page breaks are shifted immediately so they follow the edits in order
+        changePipeline.subscribeImmediate(changes -> {
+            if (changes.size() == 1) {
+                PlainTextChange change = changes.get(0);
+                int paragraph = document.offsetToPosition(change.getPosition(), Bias.Forward).getMajor();
+                paginationEngine.paragraphsChanged(paragraph, countLineBreaks(change.getRemoved()),
+                        countLineBreaks(change.getInserted()));
+            } else {
+                // Positions of later changes depend on the earlier ones, so re-measure everything after the first
+                int first = Integer.MAX_VALUE;
+                for (PlainTextChange change : changes) {
+                    first = Math.min(first, change.getPosition());
+                }
+                int paragraph = document.offsetToPosition(Math.min(first, document.length()), Bias.Forward)
+                        .getMajor();
+                paginationEngine.markDirty(paragraph, Integer.MAX_VALUE);
+            }
+        });
+        // Pagination once per pulse, statistics once typing settles
+        changePipeline.subscribe(changes -> repaginate());
+        changePipeline.subscribe(STATS_QUIET_PERIOD, changes -> updateWordCount());
+        // Highlights point into the old text; drop them at once and search again once typing settles
+        changePipeline.subscribe(changes -> {
+            if (highlightedResults != null && highlightedResults.getVersion() != paragraphIndex.getVersion()) {
+                showHighlights(null);
+            }
+        });
+        changePipeline.subscribe(HIGHLIGHT_QUIET_PERIOD, changes -> refreshHighlightedSearch());
 
-    private void checkPageOverflow() {
-        // Layout güncellendikten SONRA ölçüm yapması için runLater kullanıyoruz
-        javafx.application.Platform.runLater(() -> {
-            CustomEditor currentEditor = getCurrentEditor();
-            if (currentEditor == null)
+        document.multiPlainChanges().subscribe(changes -> {
+            // Undone and redone text comes back with its own styles
+            if (preserveInsertedStyles || documentUndoManager.isPerformingAction())
                 return;
+            CustomEditor editor = getCurrentEditor();
+            for (var change : changes) {
+                if (!change.getInserted().isEmpty()) {
+                    int pos = change.getPosition();
+                    int length = change.getInserted().length();
+                    String inserted = change.getInserted();
 
-            double contentHeight = currentEditor.getTotalHeightEstimate();
-
-            // Debug için konsola yüksekliği yazdıralım
-            System.out.println("Yükseklik: " + contentHeight + " / Sınır: " + MAX_CONTENT_HEIGHT);
+                    // Convert to Unicode super/subscript if those modes are active
+                    if (superBtn.isSelected()) {
+                        String converted = UnicodeConverter.toSuperscript(inserted);
+                        if (!converted.equals(inserted)) {
+                            editor.replaceText(pos, pos + length, converted);
+                            length = converted.length();
+                        }
+                    } else if (subBtn.isSelected()) {
+                        String converted = UnicodeConverter.toSubscript(inserted);
+                        if (!converted.equals(inserted)) {
+                            editor.replaceText(pos, pos + length, converted);
+                            length = converted.length();
+                        }
+                    }
 
-            if (contentHeight > MAX_CONTENT_HEIGHT) {
-                System.out.println("Taşma gerçekleşti! Yeni sayfa açılıyor...");
-                addNewPage();
+                    // Typed text usually inherits the typing style already; restyling it anyway
+                    // would only add a change (and an undo step) that does nothing
+                    StyleSpans<CharStyle> spans = document.getStyleSpans(pos, pos + length);
+                    if (spans.getSpanCount() != 1 || spans.getStyleSpan(0).getStyle() != currentTypingStyle) {
+                        editor.setStyle(pos, pos + length, currentTypingStyle);
+                    }
+                }
             }
         });
     }
 
-    private void addNewPage() {
-        // Make the current (overflowing) editor read-only
-        CustomEditor oldEditor = getCurrentEditor();
-        if (oldEditor != null) {
-            oldEditor.setEditable(false); // Eski sayfayı read-only yap
+    private static int countLineBreaks(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
         }
+        return count;
+    }
 
-        CustomEditor newEditor = new CustomEditor();
-        newEditor.setWrapText(true);
-        newEditor.setStyle("-fx-font-family: 'Segoe UI'; -fx-font-size: 14px;");
+    private void repaginate() {
+        int firstChanged = paginationEngine.reflow(document);
+        if (firstChanged >= 0) {
+            int pageCount = paginationEngine.getPageCount();
+            boolean pageCountChanged = pageCount != pageSlots.size();
+            while (pageSlots.size() < pageCount) {
+                addPageSlot();
+            }
+            // Move the caret off pages that are about to disappear
+            ensureCaretOnOwnPage();
+            while (pageSlots.size() > pageCount) {
+                removeLastPageSlot();
+            }
+            for (PageView page : livePages.values()) {
+                if (page.getPageIndex() >= firstChanged) {
+                    pinPageView(page.getPageIndex());
+                }
+            }
+            if (pageCountChanged) {
+                updateAllPageHeadersFooters();
+                updateVisiblePages();
+            }
+        } else {
+            ensureCaretOnOwnPage();
+        }
+    }
 
-        // Add to editors list
-        editors.add(newEditor);
-        currentEditorIndex = editors.size() - 1;
+    /**
+     * Sizes the page view to the paragraphs of its page and scrolls it so the first of them is at
+     * the top.
+     */
+    private void pinPageView(int pageIndex) {
+        PageView page = livePages.get(pageIndex);
+        if (page == null)
+            return;
+        CustomEditor view = page.getEditor();
+        double contentHeight = PAGE_HEIGHT - (MARGIN * 2) - HEADER_FOOTER_HEIGHT;
+        view.setPrefHeight(Math.min(contentHeight, Math.max(1, paginationEngine.getPageHeight(pageIndex))));
+        view.showParagraphAtTop(paginationEngine.getPageStart(pageIndex));
+    }
+
+    /**
+     * Materializes the pages around the viewport and releases the others back to the pool.
+     * Page positions follow from the fixed page size, so no layout pass is needed to find them.
+     */
+    private void updateVisiblePages() {
+        int count = pageSlots.size();
+        double pitch = PAGE_HEIGHT + PAGE_SPACING;
+        double viewportHeight = scrollPane.getViewportBounds().getHeight();
+        double contentHeight = PAGE_SPACING + count * pitch;
+        double top = scrollPane.getVvalue() * Math.max(0, contentHeight - viewportHeight);
+
+        int first = Math.max(0, (int) Math.floor((top - PAGE_SPACING) / pitch) - PAGE_OVERSCAN);
+        int last = Math.min(count - 1,
+                (int) Math.floor((top + viewportHeight - PAGE_SPACING) / pitch) + PAGE_OVERSCAN);
+
+        for (Integer index : new ArrayList<>(livePages.keySet())) {
+            // The page being edited stays alive so it keeps focus and caret
+            if ((index < first || index > last) && index != currentEditorIndex) {
+                releasePage(index);
+            }
+        }
+        for (int i = first; i <= last; i++) {
+            materializePage(i);
+        }
+    }
 
-        setupEditorListeners(newEditor);
+    private PageView materializePage(int pageIndex) {
+        PageView page = livePages.get(pageIndex);
+        if (page != null)
+            return page;
 
-        int pageNumber = editors.size();
-        VBox newPage = createPage(newEditor, pageNumber);
-        documentBackground.getChildren().add(newPage);
+        page = pagePool.poll();
+        if (page == null) {
+            page = createPageView();
+        }
+        page.bind(pageIndex, headerFooterManager.getCompleteHeaderForPage(pageIndex + 1),
+                headerFooterManager.getCompleteFooterForPage(pageIndex + 1));
+        page.getEditor().setHighlights(highlightedResults);
+        livePages.put(pageIndex, page);
+        pageSlots.get(pageIndex).getChildren().setAll(page);
+        pinPageView(pageIndex);
+        return page;
+    }
 
-        // Forcefully set focus to new editor
+    private void releasePage(int pageIndex) {
+        PageView page = livePages.remove(pageIndex);
+        if (page == null)
+            return;
+        page.unbind();
+        pageSlots.get(pageIndex).getChildren().clear();
+        pagePool.push(page);
+    }
+
+    private int pageIndexOf(CustomEditor editor) {
+        for (PageView page : livePages.values()) {
+            if (page.getEditor() == editor) {
+                return page.getPageIndex();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the focus (together with caret and selection) to the page that owns the caret's
+     * paragraph, after the caret was moved past the window of the focused page.
+     */
+    private void ensureCaretOnOwnPage() {
+        CustomEditor view = getCurrentEditor();
+        int owner = paginationEngine.pageOf(view.getCurrentParagraph());
+        if (owner >= pageSlots.size())
+            return;
+        if (owner == currentEditorIndex) {
+            revealCaret(view);
+            return;
+        }
+
+        int oldIndex = currentEditorIndex;
+        CustomEditor target = materializePage(owner).getEditor();
+        target.selectRange(view.getAnchor(), view.getCaretPosition());
+        view.deselect();
+        currentEditorIndex = owner;
+        target.requestFocus();
+        pinPageView(oldIndex);
+        revealCaret(target);
+    }
+
+    private void scheduleCaretCheck() {
+        if (caretCheckScheduled)
+            return;
+        caretCheckScheduled = true;
         javafx.application.Platform.runLater(() -> {
-            newEditor.requestFocus();
-            newEditor.moveTo(0); // Cursor'u başa al
+            caretCheckScheduled = false;
+            // A pending pagination pass checks the caret itself once the page windows are up to date
+            if (!changePipeline.isPulsePending()) {
+                ensureCaretOnOwnPage();
+            }
+        });
+    }
+
+    /**
+     * Puts the caret at the start of the paragraph, on the page that shows it, and scrolls that
+     * page into view.
+     */
+    private void navigateToParagraph(int paragraph) {
+        if (paragraph < 0 || paragraph >= document.getParagraphs().size())
+            return;
+        int page = paginationEngine.pageOf(paragraph);
+        if (page >= pageSlots.size())
+            return;
+        // Page positions follow from the fixed page size; scrolling there materializes the page
+        double pitch = PAGE_HEIGHT + PAGE_SPACING;
+        double range = PAGE_SPACING + pageSlots.size() * pitch - scrollPane.getViewportBounds().getHeight();
+        if (range > 0) {
+            scrollPane.setVvalue(Math.min(1, page * pitch / range));
+        }
+
+        CustomEditor view = getCurrentEditor();
+        CustomEditor target = materializePage(page).getEditor();
+        if (target != view) {
+            view.deselect();
+        }
+        currentEditorIndex = page;
+        target.moveTo(target.getAbsolutePosition(paragraph, 0));
+        target.requestFocus();
+        revealCaret(target);
+    }
+
+    /**
+     * Scrolls the outer scroll pane so the caret of the given page view is visible.
+     */
+    private void revealCaret(CustomEditor view) {
+        javafx.application.Platform.runLater(() -> view.getCaretBounds().ifPresent(screenBounds -> {
+            Bounds bounds = documentBackground.screenToLocal(screenBounds);
+            double viewportHeight = scrollPane.getViewportBounds().getHeight();
+            double range = documentBackground.getHeight() - viewportHeight;
+            if (bounds == null || range <= 0)
+                return;
+            double top = scrollPane.getVvalue() * range;
+            if (bounds.getMinY() < top) {
+                top = bounds.getMinY();
+            } else if (bounds.getMaxY() > top + viewportHeight) {
+                top = bounds.getMaxY() - viewportHeight;
+            } else {
+                return;
+            }
+            scrollPane.setVvalue(Math.max(0, Math.min(1, top / range)));
+        }));
+    }
+
+    private PageView createPageView() {
+        CustomEditor view = new CustomEditor(document);
+        view.setWrapText(true);
+        view.setStyle("-fx-font-family: 'Segoe UI'; -fx-font-size: 14px;");
+        view.setUndoManager(documentUndoManager);
+        setListMarkers(view);
+        setupEditorListeners(view);
+
+        PageView page = new PageView(view, PAGE_WIDTH, PAGE_HEIGHT, MARGIN, HEADER_FOOTER_HEIGHT);
+        // Clicking the empty part of the page puts the caret at the end of the page
+        page.getFiller().setOnMouseClicked(e -> {
+            int index = page.getPageIndex();
+            if (index < 0)
+                return;
+            int end = paginationEngine.getPageEnd(index, document.getParagraphs().size()) - 1;
+            view.moveTo(end, document.getParagraph(end).length());
+            view.requestFocus();
+        });
+        return page;
+    }
+
+    // A new factory instance makes the view recreate the graphics of its visible paragraphs
+    private void setListMarkers(CustomEditor view) {
+        view.setParagraphGraphicFactory(paragraph -> ListManager.createMarkerGraphic(view, paragraphIndex, paragraph));
+    }
 
-            // Scroll to the new page automatically
-            if (scrollPane != null) {
-                scrollPane.setVvalue(1.0); // Scroll to bottom
+    /**
+     * Redraws the list markers of the live pages once per pulse after the numbering changed.
+     * Only visible paragraphs have a marker, so this does not depend on the length of the list.
+     */
+    private void scheduleListMarkerRefresh() {
+        if (listMarkersVersion == paragraphIndex.getListVersion() || listMarkerRefreshScheduled)
+            return;
+        listMarkerRefreshScheduled = true;
+        javafx.application.Platform.runLater(() -> {
+            listMarkerRefreshScheduled = false;
+            listMarkersVersion = paragraphIndex.getListVersion();
+            for (PageView page : livePages.values()) {
+                setListMarkers(page.getEditor());
             }
         });
     }
 
+    private void addPageSlot() {
+        // Placeholder with the size of a page, so the scroll bar matches the whole document
+        StackPane slot = new StackPane();
+        slot.setPrefSize(PAGE_WIDTH, PAGE_HEIGHT);
+        slot.setMinSize(PAGE_WIDTH, PAGE_HEIGHT);
+        slot.setMaxSize(PAGE_WIDTH, PAGE_HEIGHT);
+        slot.setStyle("-fx-background-color: white;");
+        pageSlots.add(slot);
+        documentBackground.getChildren().add(slot);
+    }
+
+    private void removeLastPageSlot() {
+        int pageIndex = pageSlots.size() - 1;
+        // The first page always stays, even when it is empty
+        if (pageIndex <= 0)
+            return;
+
+        releasePage(pageIndex);
+        pageSlots.remove(pageIndex);
+        documentBackground.getChildren().remove(pageIndex);
+
+        if (currentEditorIndex >= pageSlots.size()) {
+            currentEditorIndex = pageSlots.size() - 1;
+        }
+    }
+
     private void setupEditorListeners(CustomEditor targetEditor) {
-        targetEditor.textProperty().addListener((obs, oldText, newText) -> {
-            isDirty = true;
-            updateWordCount();
-            checkPageOverflow();
+        // The view only shows its own page: scrolling moves the pages, not the view
+        targetEditor.addEventFilter(ScrollEvent.SCROLL, e -> {
+            e.consume();
+            double range = documentBackground.getHeight() - scrollPane.getViewportBounds().getHeight();
+            if (range > 0) {
+                scrollPane.setVvalue(Math.max(0, Math.min(1, scrollPane.getVvalue() - e.getDeltaY() / range)));
+            }
+        });
 
-            // Auto-scroll to keep cursor visible
+        // Keep the view pinned to its page if something else scrolled it (e.g. keyboard paging)
+        targetEditor.estimatedScrollYProperty().addListener((obs, oldY, newY) -> {
             javafx.application.Platform.runLater(() -> {
-                targetEditor.requestFollowCaret();
+                int index = pageIndexOf(targetEditor);
+                if (index >= 0 && !changePipeline.isPulsePending() && !targetEditor.getVisibleParagraphs().isEmpty()
+                        && targetEditor.firstVisibleParToAllParIndex() != paginationEngine.getPageStart(index)) {
+                    pinPageView(index);
+                }
             });
         });
 
+        // Hand the caret over to the next/previous page when it leaves this page
+        targetEditor.caretPositionProperty().addListener((obs, oldPos, newPos) -> {
+            if (pageIndexOf(targetEditor) == currentEditorIndex) {
+                scheduleCaretCheck();
+            }
+        });
+
+        targetEditor.currentParagraphProperty().addListener((obs, oldParagraph, newParagraph) -> {
+            if (pageIndexOf(targetEditor) == currentEditorIndex) {
+                showCurrentStyle(targetEditor);
+                showListState(targetEditor.getParagraph(newParagraph).getParagraphStyle());
+            }
+        });
+
+        targetEditor.selectionProperty().addListener((obs, oldSelection, newSelection) -> {
+            if (pageIndexOf(targetEditor) == currentEditorIndex) {
+                updateSelectionCount(newSelection);
+            }
+        });
+
+        // Track which page the user is working on so edits reflow from that page
+        targetEditor.focusedProperty().addListener((obs, wasFocused, isFocused) -> {
+            if (isFocused) {
+                int index = pageIndexOf(targetEditor);
+                if (index >= 0) {
+                    currentEditorIndex = index;
+                }
+            }
+        });
+
         // Handle Tab/Shift+Tab for list level changes
         targetEditor.addEventFilter(KeyEvent.KEY_PRESSED, e -> {
             if (e.getCode() == KeyCode.TAB) {
@@ -256,48 +637,25 @@ public class MainApp extends Application {
                 int currentParagraph = targetEditor.getCurrentParagraph();
                 int paraStart = targetEditor.getAbsolutePosition(currentParagraph, 0);
                 int paraEnd = paraStart + targetEditor.getParagraphLength(currentParagraph);
-                String currentText = targetEditor.getText(paraStart, paraEnd).trim();
-
-                // Check if current line is a bullet list
-                if (currentText.startsWith("• ")) {
-                    e.consume();
-                    // If the bullet is empty (just "• "), remove it and exit list mode
-                    if (currentText.equals("•") || currentText.equals("• ")) {
-                        targetEditor.replaceText(paraStart, paraEnd, "");
-                        bulletListBtn.setSelected(false);
-                        targetEditor.setParagraphStyle(currentParagraph, "");
-                    } else {
-                        // Add new line with bullet
-                        targetEditor.insertText(targetEditor.getCaretPosition(), "\n• ");
-                        // Apply padding to the new paragraph
-                        javafx.application.Platform.runLater(() -> {
-                            int newParagraph = targetEditor.getCurrentParagraph();
-                            targetEditor.setParagraphStyle(newParagraph, "-fx-padding: 0 0 0 20;");
-                        });
+                ParStyle paragraphStyle = targetEditor.getParagraph(currentParagraph).getParagraphStyle();
+
+                // Enter on an empty list item leaves the list; otherwise the new paragraph
+                // inherits the list style and gets its marker from the graphic factory
+                if (paragraphStyle.isListItem()) {
+                    if (paraStart == paraEnd) {
+                        e.consume();
+                        targetEditor.setParagraphStyle(currentParagraph,
+                                paragraphStyle.withList(ParStyle.ListType.NONE, 0));
+                        showListState(ParStyle.EMPTY);
                     }
                 }
-                // Check if current line is a numbered list
-                else if (currentText.matches("^\\d+\\.\\s.*")) {
+                // As in Word, the paragraph after a heading starts out as Normal
+                else if (paragraphStyle.getHeadingLevel() > 0
+                        && targetEditor.getCaretPosition() == paraEnd && targetEditor.getSelection().getLength() == 0) {
                     e.consume();
-                    // Extract the number
-                    String numPart = currentText.split("\\.")[0];
-                    int currentNum = Integer.parseInt(numPart);
-
-                    // If the numbered item is empty (just "1. "), remove it and exit list mode
-                    if (currentText.matches("^\\d+\\.\\s*$")) {
-                        targetEditor.replaceText(paraStart, paraEnd, "");
-                        numberedListBtn.setSelected(false);
-                        targetEditor.setParagraphStyle(currentParagraph, "");
-                    } else {
-                        // Add new line with incremented number
-                        int nextNum = currentNum + 1;
-                        targetEditor.insertText(targetEditor.getCaretPosition(), "\n" + nextNum + ". ");
-                        // Apply padding to the new paragraph
-                        javafx.application.Platform.runLater(() -> {
-                            int newParagraph = targetEditor.getCurrentParagraph();
-                            targetEditor.setParagraphStyle(newParagraph, "-fx-padding: 0 0 0 20;");
-                        });
-                    }
+                    targetEditor.insertText(paraEnd, "\n");
+                    targetEditor.setParagraphStyleName(currentParagraph + 1, null);
+                    targetEditor.moveTo(paraEnd + 1);
                 }
             }
         });
@@ -322,17 +680,6 @@ public class MainApp extends Application {
                         if (charBeforeSpace.equals(".") || charBeforeSpace.equals("?") || charBeforeSpace.equals("!")) {
                             shouldCapitilazize = true;
                         }
-                        // Check for bullet list marker (• )
-                        else if (charBeforeSpace.equals("•")) {
-                            shouldCapitilazize = true;
-                        }
-                        // Check for numbered list marker (e.g., "1. ", "2. ", etc.)
-                        else if (checkPos >= 3 && charBeforeSpace.equals(".")) {
-                            String charBeforeDot = targetEditor.getText(checkPos - 3, checkPos - 2);
-                            if (Character.isDigit(charBeforeDot.charAt(0))) {
-                                shouldCapitilazize = true;
-                            }
-                        }
                     }
                 }
                 if (shouldCapitilazize) {
@@ -341,53 +688,21 @@ public class MainApp extends Application {
                 }
             }
         });
-
-        targetEditor.multiPlainChanges().subscribe(changes -> {
-            for (var change : changes) {
-                if (!change.getInserted().isEmpty()) {
-                    int pos = change.getPosition();
-                    int length = change.getInserted().length();
-                    String inserted = change.getInserted();
-
-                    // Convert to Unicode super/subscript if those modes are active
-                    if (superBtn.isSelected()) {
-                        String converted = UnicodeConverter.toSuperscript(inserted);
-                        if (!converted.equals(inserted)) {
-                            targetEditor.replaceText(pos, pos + length, converted);
-                            length = converted.length();
-                        }
-                    } else if (subBtn.isSelected()) {
-                        String converted = UnicodeConverter.toSubscript(inserted);
-                        if (!converted.equals(inserted)) {
-                            targetEditor.replaceText(pos, pos + length, converted);
-                            length = converted.length();
-                        }
-                    }
-
-                    targetEditor.setStyle(pos, pos + length, currentTypingStyle);
-                }
-            }
-        });
     }
 
     @Override
     public void start(Stage stage) {
-        documentBackground = new VBox(30);
-        // Create the first rich text editor
-        CustomEditor firstEditor = new CustomEditor();
-        firstEditor.setWrapText(true);
-        firstEditor.setStyle("-fx-font-family: 'Segoe UI'; -fx-font-size: 14px;");
-
-        // Add to editors list
-        editors.add(firstEditor);
-        currentEditorIndex = 0;
+        documentBackground = new VBox(PAGE_SPACING);
+        setupDocumentListeners();
 
         documentBackground.setStyle("-fx-background-color:#505050;");
         documentBackground.setAlignment(Pos.TOP_CENTER);
-        documentBackground.setPadding(new Insets(30));
+        documentBackground.setPadding(new Insets(PAGE_SPACING));
 
-        VBox firstPage = createPage(firstEditor, 1);
-        documentBackground.getChildren().add(firstPage);
+        // Create the first page
+        addPageSlot();
+        currentEditorIndex = 0;
+        CustomEditor firstEditor = materializePage(0).getEditor();
         // Layout
         BorderPane root = new BorderPane();
 
@@ -405,6 +720,8 @@ public class MainApp extends Application {
         scrollPane.setFitToWidth(true);
         scrollPane.setFitToHeight(false);
         scrollPane.setStyle("-fx-background: #505050; -fx-border-color:transparent;");
+        scrollPane.vvalueProperty().addListener((obs, oldValue, newValue) -> updateVisiblePages());
+        scrollPane.viewportBoundsProperty().addListener((obs, oldBounds, newBounds) -> updateVisiblePages());
         root.setCenter(scrollPane);
         // Status Bar
         HBox statusBar = createStatusBar();
@@ -424,19 +741,71 @@ public class MainApp extends Application {
         setupKeyboardShortcuts(scene, stage);
 
         // Başlangıç stilini ayarla
-        currentTypingStyle = buildStyleString();
+        currentTypingStyle = buildCharStyle();
 
-        setupEditorListeners(firstEditor);
+        paginationEngine.reset();
+        // Layout güncellendikten SONRA ölçüm yapması için runLater kullanıyoruz
+        javafx.application.Platform.runLater(this::repaginate);
         stage.setTitle("Burak's Word Processor");
         stage.setScene(scene);
         stage.setOnCloseRequest(e -> {
-            if (!confirmDiscard(stage)) {
-                e.consume();
-            }
+            // Closed by confirmDiscard, possibly only after a save has finished
+            e.consume();
+            confirmDiscard(stage, stage::close);
         });
         stage.show();
 
         getCurrentEditor().requestFocus();
+        offerRecovery(stage);
+    }
+
+    @Override
+    public void stop() {
+        // Nothing to recover after a clean exit
+        editJournal.close();
+    }
+
+    /**
+     * Offers to restore the document of a session that ended without a clean exit: its last
+     * snapshot is opened and the journaled edits are applied on top of it.
+     */
+    private void offerRecovery(Stage stage) {
+        EditJournal.Recovery recovery = editJournal.findRecovery();
+        if (recovery == null) {
+            editJournal.restart(document.snapshot(), null);
+            return;
+        }
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.initOwner(stage);
+        alert.setTitle("Recover Document");
+        alert.setHeaderText("The last session did not end normally");
+        alert.setContentText("Do you want to recover the unsaved changes?");
+        var result = alert.showAndWait();
+        if (result.isEmpty() || result.get() != ButtonType.OK) {
+            editJournal.restart(document.snapshot(), null);
+        } else if (recovery.getSnapshot() == null) {
+            replayJournal(recovery, stage);
+        } else {
+            bteImporter.load(recovery.getSnapshot(), () -> new LiveTOC(document, paragraphIndex, this::navigateToParagraph),
+                    createImportListener("Recovered document", stage, () -> replayJournal(recovery, stage)));
+        }
+    }
+
+    private void replayJournal(EditJournal.Recovery recovery, Stage stage) {
+        preserveInsertedStyles = true;
+        try {
+            undoRecording.suspendWhile(() -> recovery.replay(document,
+                    () -> new LiveTOC(document, paragraphIndex, this::navigateToParagraph)));
+        } finally {
+            preserveInsertedStyles = false;
+        }
+        documentUndoManager.forgetHistory();
+        documentSession++;
+        currentFile = recovery.getFile();
+        isDirty = true;
+        stage.setTitle("Burak's Word Processor" + (currentFile == null ? "" : " - " + currentFile.getName()));
+        updateWordCount();
+        editJournal.restart(document.snapshot(), currentFile);
     }
 
     private void printDocument(Stage stage) {
@@ -480,11 +849,7 @@ public class MainApp extends Application {
         SeparatorMenuItem separator = new SeparatorMenuItem();
 
         MenuItem exitItem = new MenuItem("Exit");
-        exitItem.setOnAction(e -> {
-            if (confirmDiscard(stage)) {
-                stage.close();
-            }
-        });
+        exitItem.setOnAction(e -> confirmDiscard(stage, stage::close));
 
         MenuItem printItem = new MenuItem("Print...");
         printItem.setAccelerator(new KeyCodeCombination(KeyCode.P, KeyCombination.CONTROL_DOWN));
@@ -839,7 +1204,7 @@ public class MainApp extends Application {
         int currentParagraph = getCurrentEditor().getCurrentParagraph();
         String style = String.format("-fx-line-spacing: %.2fem;", lineSpacing);
 
-        getCurrentEditor().setParagraphStyle(currentParagraph, style);
+        getCurrentEditor().setParagraphCss(currentParagraph, style);
         getCurrentEditor().requestFocus();
     }
 
@@ -887,7 +1252,7 @@ public class MainApp extends Application {
 
         stylesCombo.setOnAction(e -> {
             String selectedStyleName = stylesCombo.getValue();
-            if (selectedStyleName == null)
+            if (selectedStyleName == null || showingCurrentStyle)
                 return;
 
             // Display name'den TextStyle bul
@@ -907,57 +1272,38 @@ public class MainApp extends Application {
         return stylesCombo;
     }
 
+    /**
+     * Shows the style of the paragraph at the caret in the styles box.
+     */
+    private void showCurrentStyle(CustomEditor editor) {
+        if (stylesCombo == null)
+            return;
+        String displayName = StyleManager.getStyleByName(StyleManager.getCurrentStyleName(editor)).getDisplayName();
+        if (displayName.equals(stylesCombo.getValue()))
+            return;
+        showingCurrentStyle = true;
+        try {
+            stylesCombo.setValue(displayName);
+        } finally {
+            showingCurrentStyle = false;
+        }
+    }
+
     private void applyParagraphSpacing(Integer before, Integer after) {
         int currentParagraph = getCurrentEditor().getCurrentParagraph();
-        String currentStyle = getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle();
+        StyleParser.ParsedStyle currentStyle = StyleParser
+                .parse(getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle().getCss());
 
         // Extract current padding values
-        int topPadding = (before != null) ? before : extractPaddingValue(currentStyle, "top");
-        int bottomPadding = (after != null) ? after : extractPaddingValue(currentStyle, "bottom");
-        int leftPadding = extractPaddingValue(currentStyle, "left");
+        int topPadding = (before != null) ? before : (int) currentStyle.getPaddingTop();
+        int bottomPadding = (after != null) ? after : (int) currentStyle.getPaddingBottom();
+        int leftPadding = (int) currentStyle.getPaddingLeft();
 
         String style = String.format("-fx-padding: %dpx 0 %dpx %dpx;", topPadding, bottomPadding, leftPadding);
-        getCurrentEditor().setParagraphStyle(currentParagraph, style);
+        getCurrentEditor().setParagraphCss(currentParagraph, style);
         getCurrentEditor().requestFocus();
     }
 
-    private int extractPaddingValue(String style, String side) {
-        if (style == null || style.isEmpty())
-            return 0;
-
-        int index = style.indexOf("-fx-padding:");
-        if (index == -1)
-            return 0;
-
-        int start = style.indexOf(":", index) + 1;
-        int end = style.indexOf(";", start);
-        if (end == -1)
-            end = style.length();
-
-        try {
-            String value = style.substring(start, end).trim();
-            String[] parts = value.split("\\s+");
-
-            if (parts.length == 4) {
-                // top right bottom left
-                switch (side) {
-                    case "top":
-                        return Integer.parseInt(parts[0].replace("px", ""));
-                    case "right":
-                        return Integer.parseInt(parts[1].replace("px", ""));
-                    case "bottom":
-                        return Integer.parseInt(parts[2].replace("px", ""));
-                    case "left":
-                        return Integer.parseInt(parts[3].replace("px", ""));
-                }
-            }
-        } catch (Exception e) {
-            // Ignore parsing errors
-        }
-
-        return 0;
-    }
-
     private HBox createIndentButtons() {
         HBox indentBox = new HBox(5);
 
@@ -989,12 +1335,12 @@ public class MainApp extends Application {
         }
 
         // Regular indent for non-list paragraphs
-        String currentStyle = getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle();
-        int currentPadding = extractPadding(currentStyle, "left");
+        String currentStyle = getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle().getCss();
+        int currentPadding = (int) StyleParser.parse(currentStyle).getPaddingLeft();
         int newPadding = currentPadding + 36; // 36px per indent level
 
         String style = String.format("-fx-padding: 0 0 0 %dpx;", newPadding);
-        getCurrentEditor().setParagraphStyle(currentParagraph, style);
+        getCurrentEditor().setParagraphCss(currentParagraph, style);
         getCurrentEditor().requestFocus();
     }
 
@@ -1008,50 +1354,15 @@ public class MainApp extends Application {
         }
 
         // Regular outdent for non-list paragraphs
-        String currentStyle = getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle();
-        int currentPadding = extractPadding(currentStyle, "left");
+        String currentStyle = getCurrentEditor().getParagraph(currentParagraph).getParagraphStyle().getCss();
+        int currentPadding = (int) StyleParser.parse(currentStyle).getPaddingLeft();
         int newPadding = Math.max(0, currentPadding - 36); // Can't go below 0
 
         String style = String.format("-fx-padding: 0 0 0 %dpx;", newPadding);
-        getCurrentEditor().setParagraphStyle(currentParagraph, style);
+        getCurrentEditor().setParagraphCss(currentParagraph, style);
         getCurrentEditor().requestFocus();
     }
 
-    private int extractPadding(String style, String side) {
-        if (style == null || style.isEmpty())
-            return 0;
-
-        // Try to find -fx-padding-left or -fx-padding
-        String pattern = "-fx-padding";
-        if (side.equals("left")) {
-            pattern += "-left";
-        }
-
-        int index = style.indexOf(pattern);
-        if (index == -1)
-            return 0;
-
-        // Extract number
-        int start = style.indexOf(":", index) + 1;
-        int end = style.indexOf("px", start);
-        if (end == -1)
-            return 0;
-
-        try {
-            String value = style.substring(start, end).trim();
-            // If it's -fx-padding (4 values), take the 4th one (left)
-            if (!pattern.contains("-left")) {
-                String[] parts = value.split("\\s+");
-                if (parts.length == 4) {
-                    return Integer.parseInt(parts[3]);
-                }
-            }
-            return Integer.parseInt(value);
-        } catch (Exception e) {
-            return 0;
-        }
-    }
-
     private MenuButton createWordColorButton(String iconPath, Color defaultColor, boolean isHighlight) {
         MenuButton menuBtn = new MenuButton();
         menuBtn.getStyleClass().add("word-color-button"); // CSS için sınıf
@@ -1158,87 +1469,194 @@ public class MainApp extends Application {
         return menuBtn;
     }
 
-    private VBox createPage(CustomEditor contentEditor, int pageNumber) {
-        VBox page = new VBox();
-
-        page.setPrefWidth(PAGE_WIDTH);
-        page.setPrefHeight(PAGE_HEIGHT);
-        page.setMinHeight(PAGE_HEIGHT);
-        page.setMaxHeight(PAGE_HEIGHT);
-        page.setStyle("-fx-background-color: white;");
-        page.setPadding(new Insets(MARGIN));
-
-        // Create header editor
-        CustomEditor headerEditor = CustomEditor.createHeaderFooterEditor(false);
-        String headerContent = headerFooterManager.getCompleteHeaderForPage(pageNumber);
-        headerEditor.replaceText(0, 0, headerContent);
-        headerEditors.add(headerEditor);
-
-        // Create footer editor
-        CustomEditor footerEditor = CustomEditor.createHeaderFooterEditor(false);
-        String footerContent = headerFooterManager.getCompleteFooterForPage(pageNumber);
-        footerEditor.replaceText(0, 0, footerContent);
-        footerEditors.add(footerEditor);
-
-        // Calculate adjusted height for content editor
-        double headerFooterHeight = 80; // 40px each for header and footer
-        double contentHeight = PAGE_HEIGHT - (MARGIN * 2) - headerFooterHeight;
-
-        if (contentEditor != null) {
-            contentEditor.setPrefWidth(PAGE_WIDTH - (MARGIN * 2));
-            contentEditor.setPrefHeight(contentHeight);
-        }
-
-        // Add all components: header, content, footer
-        page.getChildren().addAll(headerEditor, contentEditor, footerEditor);
-
-        DropShadow shadow = new DropShadow();
-        shadow.setRadius(20);
-        shadow.setOffsetX(0);
-        shadow.setOffsetY(5);
-        shadow.setColor(Color.rgb(0, 0, 0, 0.2));
-        page.setEffect(shadow);
-        return page;
-    }
-
     private void showFindDialog(Stage stage) {
-        Dialog<String> dialog = new Dialog<>();
+        Dialog<SearchEngine.Query> dialog = new Dialog<>();
         dialog.setTitle("Find");
         dialog.setHeaderText("Enter text to find:");
         TextField searchField = new TextField();
         searchField.setPromptText("Search text ...");
-        dialog.getDialogPane().setContent(searchField);
+        SearchOptions options = new SearchOptions();
+        dialog.getDialogPane().setContent(new VBox(10, searchField, options.getNode()));
         dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
         dialog.setResultConverter(button -> {
             if (button == ButtonType.OK) {
-                return searchField.getText();
+                return options.toQuery(searchField.getText());
             }
             return null;
         });
-        dialog.showAndWait().ifPresent(searchText -> {
-            findText(searchText);
+        dialog.showAndWait().ifPresent(query -> {
+            findText(query);
+        });
+
+    }
+
+    /**
+     * Check boxes for the search modes, shared by the Find and Replace dialogs.
+     */
+    private static class SearchOptions {
+        final CheckBox matchCase = new CheckBox("Match case");
+        final CheckBox wholeWord = new CheckBox("Whole word");
+        final CheckBox regex = new CheckBox("Regular expression");
+        final CheckBox multiTerm = new CheckBox("Multiple terms (a|b|c)");
+
+        SearchOptions() {
+            matchCase.setSelected(true);
+        }
+
+        HBox getNode() {
+            return new HBox(10, matchCase, wholeWord, regex, multiTerm);
+        }
+
+        SearchEngine.Query toQuery(String text) {
+            return new SearchEngine.Query(text, regex.isSelected(), wholeWord.isSelected(), matchCase.isSelected(),
+                    multiTerm.isSelected());
+        }
+
+        void onChange(Runnable action) {
+            for (CheckBox box : List.of(matchCase, wholeWord, regex, multiTerm)) {
+                box.selectedProperty().addListener((obs, wasSelected, isSelected) -> action.run());
+            }
+        }
+    }
+
+    private final SearchEngine searchEngine = new SearchEngine();
+    private SearchResults searchResults;
+    // Runs once the current search has delivered all its hits
+    private Runnable afterSearch;
+    // While the Find and Replace dialog is open every hit is highlighted on the pages
+    private boolean highlightMatches = false;
+    private Label highlightStatus;
+    private SearchResults highlightedResults;
+
+    /**
+     * Searches the whole document in the background, cancelling the previous search. Plain
+     * literals are answered by the search index right away. {@code whenDone} runs on the FX
+     * thread once all hits are in.
+     */
+    private void runSearch(SearchEngine.Query query, Label status, Runnable whenDone) {
+        SearchResults results = new SearchResults(query, paragraphIndex.getVersion());
+        searchResults = results;
+        afterSearch = whenDone;
+        if (highlightMatches) {
+            showHighlights(results);
+        }
+        if (query.isPlainLiteral() || query.getText().isEmpty()) {
+            searchEngine.cancel();
+            int[] starts = searchIndex.findAll(query.getText());
+            int[] ends = new int[starts.length];
+            for (int i = 0; i < starts.length; i++) {
+                ends[i] = starts[i] + query.getText().length();
+            }
+            results.add(starts, ends);
+            results.finish();
+            showSearchStatus(status, results.size() + " match(es)");
+            runAfterSearch();
+            return;
+        }
+
+        showSearchStatus(status, "Searching...");
+        searchEngine.search(document.snapshot(), query, new SearchEngine.SearchListener() {
+            @Override
+            public void onHits(int[] starts, int[] ends) {
+                results.add(starts, ends);
+                if (highlightedResults == results) {
+                    showHighlights(results);
+                }
+                showSearchStatus(status, results.size() + " match(es) so far...");
+            }
+
+            @Override
+            public void onFinished(int totalHits) {
+                results.finish();
+                if (highlightedResults == results) {
+                    showHighlights(results);
+                }
+                showSearchStatus(status, totalHits + " match(es)");
+                runAfterSearch();
+            }
+
+            @Override
+            public void onError(String message) {
+                searchResults = null;
+                afterSearch = null;
+                showHighlights(null);
+                if (status != null) {
+                    showSearchStatus(status, message);
+                } else {
+                    showError("Find", message);
+                }
+            }
         });
+    }
 
+    /**
+     * Paints the hits on every live page. The pages only draw what is visible, so this stays
+     * cheap with thousands of hits and is called again for every batch that arrives.
+     */
+    private void showHighlights(SearchResults results) {
+        if (results == null && highlightedResults == null)
+            return;
+        highlightedResults = results;
+        for (PageView page : livePages.values()) {
+            page.getEditor().setHighlights(results);
+        }
     }
 
-    private void findText(String searchText) {
-        if (searchText == null || searchText.isEmpty()) {
+    private void refreshHighlightedSearch() {
+        if (!highlightMatches || searchResults == null)
             return;
+        // A search started by the user after the edit is already up to date
+        if (searchResults.getVersion() != paragraphIndex.getVersion()) {
+            runSearch(searchResults.getQuery(), highlightStatus, null);
+        } else {
+            showHighlights(searchResults);
+        }
+    }
+
+    private void runAfterSearch() {
+        Runnable action = afterSearch;
+        afterSearch = null;
+        if (action != null) {
+            action.run();
         }
-        String content = getCurrentEditor().getText();
-        int index = content.indexOf(searchText);
-        if (index >= 0) {
-            getCurrentEditor().selectRange(index, index + searchText.length());
-            getCurrentEditor().requestFollowCaret();
+    }
+
+    private void showSearchStatus(Label status, String text) {
+        if (status != null) {
+            status.setText(text);
+        }
+    }
 
+    /**
+     * Runs {@code action} with up-to-date results for the query, searching again only if the
+     * query or the document changed since the last search.
+     */
+    private void withSearchResults(SearchEngine.Query query, Label status, Runnable action) {
+        if (searchResults != null && searchResults.isFor(query, paragraphIndex.getVersion())) {
+            if (searchResults.isComplete()) {
+                action.run();
+            } else {
+                // The same search is still running; act when it is done
+                afterSearch = action;
+            }
         } else {
-            Alert alert = new Alert(Alert.AlertType.INFORMATION);
-            alert.setTitle("Find");
-            alert.setHeaderText(null);
-            alert.setContentText("Text not found: " + searchText);
-            alert.showAndWait();
+            runSearch(query, status, action);
         }
+    }
 
+    private void findText(SearchEngine.Query query) {
+        if (query.getText() == null || query.getText().isEmpty()) {
+            return;
+        }
+        // Searches every page; the caret moves to the page holding the match
+        withSearchResults(query, null, () -> {
+            if (searchResults.size() > 0) {
+                lastSearchIndex = searchResults.getStart(0) + 1;
+                getCurrentEditor().selectRange(searchResults.getStart(0), searchResults.getEnd(0));
+            } else {
+                showNotFound(query.getText());
+            }
+        });
     }
 
     private int lastSearchIndex = 0;
@@ -1271,6 +1689,15 @@ public class MainApp extends Application {
         replaceField.setPrefWidth(250);
         replaceRow.getChildren().addAll(replaceLabel, replaceField);
 
+        // Search options and live match count
+        SearchOptions options = new SearchOptions();
+        Label statusLabel = new Label();
+
+        // Search again (cancelling the running search) whenever the query changes
+        Runnable liveSearch = () -> runSearch(options.toQuery(findField.getText()), statusLabel, null);
+        findField.textProperty().addListener((obs, oldText, newText) -> liveSearch.run());
+        options.onChange(liveSearch);
+
         // Buttons
         HBox buttonRow = new HBox(10);
         buttonRow.setAlignment(javafx.geometry.Pos.CENTER_RIGHT);
@@ -1283,7 +1710,7 @@ public class MainApp extends Application {
         findNextBtn.setOnAction(e -> {
             String searchText = findField.getText();
             if (!searchText.isEmpty()) {
-                findNextText(searchText);
+                findNextText(options.toQuery(searchText), statusLabel);
             }
         });
 
@@ -1291,7 +1718,7 @@ public class MainApp extends Application {
             String searchText = findField.getText();
             String replaceText = replaceField.getText();
             if (!searchText.isEmpty()) {
-                replaceCurrentSelection(searchText, replaceText);
+                replaceCurrentSelection(options.toQuery(searchText), replaceText, statusLabel);
             }
         });
 
@@ -1299,7 +1726,7 @@ public class MainApp extends Application {
             String searchText = findField.getText();
             String replaceText = replaceField.getText();
             if (!searchText.isEmpty()) {
-                replaceAllText(searchText, replaceText);
+                replaceAllText(options.toQuery(searchText), replaceText, statusLabel);
             }
         });
 
@@ -1310,71 +1737,106 @@ public class MainApp extends Application {
 
         buttonRow.getChildren().addAll(findNextBtn, replaceBtn, replaceAllBtn, closeBtn);
 
-        content.getChildren().addAll(findRow, replaceRow, buttonRow);
+        content.getChildren().addAll(findRow, replaceRow, options.getNode(), statusLabel, buttonRow);
         dialog.getDialogPane().setContent(content);
         dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
         dialog.getDialogPane().lookupButton(ButtonType.CLOSE).setVisible(false);
 
-        dialog.setOnCloseRequest(e -> lastSearchIndex = 0);
+        dialog.setOnCloseRequest(e -> {
+            lastSearchIndex = 0;
+            searchEngine.cancel();
+        });
+        dialog.setOnHidden(e -> {
+            highlightMatches = false;
+            highlightStatus = null;
+            showHighlights(null);
+        });
+        highlightMatches = true;
+        highlightStatus = statusLabel;
         dialog.show();
     }
 
-    private void findNextText(String searchText) {
-        String content = getCurrentEditor().getText();
-        int index = content.indexOf(searchText, lastSearchIndex);
+    private void findNextText(SearchEngine.Query query, Label status) {
+        withSearchResults(query, status, () -> {
+            // Wraps around to the beginning when there is no match after the last one
+            int index = searchResults.indexAtOrAfter(lastSearchIndex);
+            if (index < 0 && searchResults.size() > 0) {
+                index = 0;
+            }
 
-        if (index >= 0) {
-            getCurrentEditor().selectRange(index, index + searchText.length());
-            getCurrentEditor().requestFollowCaret();
-            lastSearchIndex = index + 1;
-        } else if (lastSearchIndex > 0) {
-            // Wrap around to beginning
-            lastSearchIndex = 0;
-            index = content.indexOf(searchText, 0);
             if (index >= 0) {
-                getCurrentEditor().selectRange(index, index + searchText.length());
-                getCurrentEditor().requestFollowCaret();
-                lastSearchIndex = index + 1;
+                getCurrentEditor().selectRange(searchResults.getStart(index), searchResults.getEnd(index));
+                lastSearchIndex = searchResults.getStart(index) + 1;
             } else {
-                showNotFound(searchText);
+                lastSearchIndex = 0;
+                showNotFound(query.getText());
             }
-        } else {
-            showNotFound(searchText);
-        }
+        });
     }
 
-    private void replaceCurrentSelection(String searchText, String replaceText) {
-        String selectedText = getCurrentEditor().getSelectedText();
-        if (selectedText.equals(searchText)) {
-            getCurrentEditor().replaceSelection(replaceText);
-            findNextText(searchText);
-        } else {
-            findNextText(searchText);
-        }
+    private void replaceCurrentSelection(SearchEngine.Query query, String replaceText, Label status) {
+        IndexRange selection = getCurrentEditor().getSelection();
+        withSearchResults(query, status, () -> {
+            if (searchResults.contains(selection.getStart(), selection.getEnd())) {
+                getCurrentEditor().replaceSelection(replaceText);
+            }
+            findNextText(query, status);
+        });
     }
 
-    private void replaceAllText(String searchText, String replaceText) {
-        String content = getCurrentEditor().getText();
-        int count = 0;
-        int index = 0;
+    private void replaceAllText(SearchEngine.Query query, String replaceText, Label status) {
+        withSearchResults(query, status, () -> {
+            // Overlapping matches are skipped, like String.replace does
+            int size = searchResults.size();
+            int[] starts = new int[size];
+            int[] ends = new int[size];
+            int count = 0;
+            int lastEnd = 0;
+            for (int i = 0; i < size; i++) {
+                if (searchResults.getStart(i) >= lastEnd) {
+                    starts[count] = searchResults.getStart(i);
+                    ends[count] = searchResults.getEnd(i);
+                    lastEnd = ends[count];
+                    count++;
+                }
+            }
 
-        while ((index = content.indexOf(searchText, index)) >= 0) {
-            count++;
-            index += searchText.length();
-        }
+            if (count > 0) {
+                replaceRanges(starts, ends, count, replaceText);
 
-        if (count > 0) {
-            String newContent = content.replace(searchText, replaceText);
-            getCurrentEditor().replaceText(newContent);
+                Alert alert = new Alert(Alert.AlertType.INFORMATION);
+                alert.setTitle("Replace All");
+                alert.setHeaderText(null);
+                alert.setContentText("Replaced " + count + " occurrence(s).");
+                alert.showAndWait();
+            } else {
+                showNotFound(query.getText());
+            }
+        });
+    }
 
-            Alert alert = new Alert(Alert.AlertType.INFORMATION);
-            alert.setTitle("Replace All");
-            alert.setHeaderText(null);
-            alert.setContentText("Replaced " + count + " occurrence(s).");
-            alert.showAndWait();
-        } else {
-            showNotFound(searchText);
+    /**
+     * Replaces the given ranges in one multi-change: a single undo entry and a single layout
+     * pass. Each replacement takes the style of the text it replaces.
+     */
+    private void replaceRanges(int[] starts, int[] ends, int count, String replaceText) {
+        // Applied back to front so earlier offsets stay valid
+        CustomEditor editor = getCurrentEditor();
+        MultiChangeBuilder<ParStyle, Either<String, Node>, CharStyle> change = editor.createMultiChange(count);
+        for (int i = count - 1; i >= 0; i--) {
+            int start = starts[i];
+            ParStyle paragraphStyle = document.getParagraph(paragraphIndex.indexAtOffset(start)).getParagraphStyle();
+            change.replaceAbsolutely(start, ends[i], ReadOnlyStyledDocument
+                    .fromString(replaceText, paragraphStyle, document.getStyleOfChar(start), editor.getSegOps()));
+        }
+        documentUndoManager.preventMerge();
+        preserveInsertedStyles = true;
+        try {
+            change.commit();
+        } finally {
+            preserveInsertedStyles = false;
         }
+        documentUndoManager.preventMerge();
     }
 
     private void showNotFound(String searchText) {
@@ -1414,267 +1876,73 @@ public class MainApp extends Application {
         }
 
         // Apply paragraph style to current paragraph
-        getCurrentEditor().setParagraphStyle(currentParagraph, alignStyle);
+        getCurrentEditor().setParagraphCss(currentParagraph, alignStyle);
     }
 
     // ===== LIST HELPER METHODS =====
 
-    private String getBulletSymbol(int level) {
-        switch (level % 3) {
-            case 0:
-                return "•"; // Filled circle
-            case 1:
-                return "○"; // Hollow circle
-            case 2:
-                return "■"; // Square
-            default:
-                return "•";
-        }
-    }
-
-    private String getNumberPrefix(int level, int index) {
-        switch (level % 3) {
-            case 0: // Numbers: 1, 2, 3...
-                return index + ".";
-            case 1: // Lowercase letters: a, b, c...
-                return ((char) ('a' + (index - 1))) + ".";
-            case 2: // Roman numerals: i, ii, iii...
-                return toRomanNumeral(index) + ".";
-            default:
-                return index + ".";
-        }
-    }
-
-    private String toRomanNumeral(int number) {
-        if (number >= 10)
-            return String.valueOf(number); // Fallback for large numbers
-        String[] romanNumerals = { "", "i", "ii", "iii", "iv", "v", "vi", "vii", "viii", "ix" };
-        return romanNumerals[number];
-    }
-
-    private int getListLevel(int paragraph) {
-        ListInfo info = listState.get(paragraph);
-        return (info != null) ? info.level : 0;
-    }
-
+    // List membership is part of the paragraph style, see ListManager
     private boolean isInList(int paragraph) {
-        ListInfo info = listState.get(paragraph);
-        return info != null && info.isList;
+        return getCurrentEditor().getParagraph(paragraph).getParagraphStyle().isListItem();
     }
 
-    // ===== LIST TOGGLE METHODS =====
-
-    private void toggleBulletList() {
+    /**
+     * Turns the current paragraph into a list item of the given type, or back into a normal
+     * paragraph if it already is one.
+     */
+    private void toggleList(ParStyle.ListType type) {
         CustomEditor editor = getCurrentEditor();
         int currentParagraph = editor.getCurrentParagraph();
+        ParStyle style = editor.getParagraph(currentParagraph).getParagraphStyle();
 
-        // Get current paragraph text
-        int paraStart = editor.getAbsolutePosition(currentParagraph, 0);
-        int paraEnd = paraStart + editor.getParagraphLength(currentParagraph);
-        String currentText = editor.getText(paraStart, paraEnd).trim();
-
-        // Check if already in a list
-        ListInfo info = listState.get(currentParagraph);
-
-        if (info != null && info.isBullet) {
-            // Remove bullet
-            String cleanText = removeListPrefix(currentText);
-            editor.replaceText(paraStart, paraEnd, cleanText + "\n");
-            editor.setParagraphStyle(currentParagraph, "");
-            listState.remove(currentParagraph);
-            bulletListBtn.setSelected(false);
+        if (style.getListType() == type) {
+            editor.setParagraphStyle(currentParagraph, style.withList(ParStyle.ListType.NONE, 0));
         } else {
-            // Add bullet
-            int level = (info != null) ? info.level : 0;
-            String cleanText = removeListPrefix(currentText);
-            String bullet = getBulletSymbol(level);
-            String newText = bullet + " " + cleanText;
-
-            editor.replaceText(paraStart, paraEnd, newText + "\n");
-            int leftPadding = 20 + (level * 20); // 20px per level
-            editor.setParagraphStyle(currentParagraph, String.format("-fx-padding: 0 0 0 %dpx;", leftPadding));
-
-            listState.put(currentParagraph, new ListInfo(true, level, 1));
-            bulletListBtn.setSelected(true);
-            if (numberedListBtn.isSelected()) {
-                numberedListBtn.setSelected(false);
-            }
+            // Switching between bullets and numbers keeps the level
+            editor.setParagraphStyle(currentParagraph, style.withList(type, style.getListLevel()));
         }
-
+        showListState(editor.getParagraph(currentParagraph).getParagraphStyle());
         editor.requestFocus();
     }
 
-    private String removeListPrefix(String text) {
-        // Remove bullet
-        if (text.startsWith("• ") || text.startsWith("○ ") || text.startsWith("■ ")) {
-            return text.substring(2).trim();
-        }
-        // Remove numbering
-        text = text.replaceFirst("^\\d+\\.\\s+", ""); // Numbers
-        text = text.replaceFirst("^[a-z]\\.\\s+", ""); // Letters
-        text = text.replaceFirst("^[ivx]+\\.\\s+", ""); // Roman numerals
-        return text.trim();
+    private void toggleBulletList() {
+        toggleList(ParStyle.ListType.BULLET);
     }
 
     private void toggleNumberedList() {
-        CustomEditor editor = getCurrentEditor();
-        int currentParagraph = editor.getCurrentParagraph();
-
-        // Get current paragraph text
-        int paraStart = editor.getAbsolutePosition(currentParagraph, 0);
-        int paraEnd = paraStart + editor.getParagraphLength(currentParagraph);
-        String currentText = editor.getText(paraStart, paraEnd).trim();
-
-        // Check if already in a list
-        ListInfo info = listState.get(currentParagraph);
-
-        if (info != null && !info.isBullet) {
-            // Remove numbering
-            String cleanText = removeListPrefix(currentText);
-            editor.replaceText(paraStart, paraEnd, cleanText + "\n");
-            editor.setParagraphStyle(currentParagraph, "");
-            listState.remove(currentParagraph);
-            numberedListBtn.setSelected(false);
-        } else {
-            // Add numbering
-            int level = (info != null) ? info.level : 0;
-            String cleanText = removeListPrefix(currentText);
-
-            // Calculate number index (count previous numbered items at same level)
-            int numberIndex = calculateNumberIndex(currentParagraph, level);
-            String numberPrefix = getNumberPrefix(level, numberIndex);
-            String newText = numberPrefix + " " + cleanText;
-
-            editor.replaceText(paraStart, paraEnd, newText + "\n");
-            int leftPadding = 20 + (level * 20); // 20px per level
-            editor.setParagraphStyle(currentParagraph, String.format("-fx-padding: 0 0 0 %dpx;", leftPadding));
-
-            listState.put(currentParagraph, new ListInfo(false, level, numberIndex));
-            numberedListBtn.setSelected(true);
-            if (bulletListBtn.isSelected()) {
-                bulletListBtn.setSelected(false);
-            }
-
-            // Renumber subsequent items
-            renumberFollowingItems(currentParagraph + 1, level, numberIndex);
-        }
-
-        editor.requestFocus();
-    }
-
-    private int calculateNumberIndex(int currentParagraph, int level) {
-        int index = 1;
-        // Count backward to find previous numbered items at same level
-        for (int i = currentParagraph - 1; i >= 0; i--) {
-            ListInfo info = listState.get(i);
-            if (info == null || info.isBullet)
-                break; // Stop at non-list or bullet
-            if (info.level == level) {
-                index = info.numberIndex + 1;
-                break;
-            }
-            if (info.level < level)
-                break; // Stop at parent level
-        }
-        return index;
+        toggleList(ParStyle.ListType.NUMBERED);
     }
 
-    private void renumberFollowingItems(int startParagraph, int level, int startIndex) {
-        CustomEditor editor = getCurrentEditor();
-        int totalParagraphs = editor.getParagraphs().size();
-        int currentIndex = startIndex + 1;
-
-        for (int i = startParagraph; i < totalParagraphs; i++) {
-            ListInfo info = listState.get(i);
-            if (info == null || info.isBullet || info.level != level)
-                continue;
-
-            // Update this item's number
-            int paraStart = editor.getAbsolutePosition(i, 0);
-            int paraEnd = paraStart + editor.getParagraphLength(i);
-            String currentText = editor.getText(paraStart, paraEnd).trim();
-            String cleanText = removeListPrefix(currentText);
-            String numberPrefix = getNumberPrefix(level, currentIndex);
-            String newText = numberPrefix + " " + cleanText;
-
-            editor.replaceText(paraStart, paraEnd, newText + "\n");
-            info.numberIndex = currentIndex;
-            currentIndex++;
-        }
+    private void showListState(ParStyle style) {
+        if (bulletListBtn == null)
+            return;
+        bulletListBtn.setSelected(style.getListType() == ParStyle.ListType.BULLET);
+        numberedListBtn.setSelected(style.getListType() == ParStyle.ListType.NUMBERED);
     }
 
     // ===== LIST LEVEL MANAGEMENT =====
 
     private void increaseListLevel() {
-        CustomEditor editor = getCurrentEditor();
-        int currentParagraph = editor.getCurrentParagraph();
-        ListInfo info = listState.get(currentParagraph);
-
-        if (info == null || !info.isList)
-            return; // Not in a list
-        if (info.level >= 3)
-            return; // Max level reached
-
-        int newLevel = info.level + 1;
-        info.level = newLevel;
-
-        // Update visual presentation
-        int paraStart = editor.getAbsolutePosition(currentParagraph, 0);
-        int paraEnd = paraStart + editor.getParagraphLength(currentParagraph);
-        String currentText = editor.getText(paraStart, paraEnd).trim();
-        String cleanText = removeListPrefix(currentText);
-
-        String newPrefix;
-        if (info.isBullet) {
-            newPrefix = getBulletSymbol(newLevel);
-        } else {
-            // Reset numbering for new level
-            info.numberIndex = 1;
-            newPrefix = getNumberPrefix(newLevel, 1);
-        }
-
-        String newText = newPrefix + " " + cleanText;
-        editor.replaceText(paraStart, paraEnd, newText + "\n");
-
-        int leftPadding = 20 + (newLevel * 20);
-        editor.setParagraphStyle(currentParagraph, String.format("-fx-padding: 0 0 0 %dpx;", leftPadding));
-
-        editor.requestFocus();
+        changeListLevel(1);
     }
 
     private void decreaseListLevel() {
+        changeListLevel(-1);
+    }
+
+    private void changeListLevel(int delta) {
         CustomEditor editor = getCurrentEditor();
         int currentParagraph = editor.getCurrentParagraph();
-        ListInfo info = listState.get(currentParagraph);
+        ParStyle style = editor.getParagraph(currentParagraph).getParagraphStyle();
 
-        if (info == null || !info.isList)
+        if (!style.isListItem())
             return; // Not in a list
-        if (info.level <= 0)
-            return; // Already at level 0
-
-        int newLevel = info.level - 1;
-        info.level = newLevel;
-
-        // Update visual presentation
-        int paraStart = editor.getAbsolutePosition(currentParagraph, 0);
-        int paraEnd = paraStart + editor.getParagraphLength(currentParagraph);
-        String currentText = editor.getText(paraStart, paraEnd).trim();
-        String cleanText = removeListPrefix(currentText);
-
-        String newPrefix;
-        if (info.isBullet) {
-            newPrefix = getBulletSymbol(newLevel);
-        } else {
-            // Recalculate number for this level
-            info.numberIndex = calculateNumberIndex(currentParagraph, newLevel);
-            newPrefix = getNumberPrefix(newLevel, info.numberIndex);
-        }
-
-        String newText = newPrefix + " " + cleanText;
-        editor.replaceText(paraStart, paraEnd, newText + "\n");
+        int newLevel = style.getListLevel() + delta;
+        if (newLevel < 0 || newLevel > ListManager.MAX_LEVEL)
+            return;
 
-        int leftPadding = 20 + (newLevel * 20);
-        editor.setParagraphStyle(currentParagraph, String.format("-fx-padding: 0 0 0 %dpx;", leftPadding));
+        // The numbers of this item and the ones after it follow from the new level
+        editor.setParagraphStyle(currentParagraph, style.withList(style.getListType(), newLevel));
 
         editor.requestFocus();
     }
@@ -1686,8 +1954,29 @@ public class MainApp extends Application {
 
         wordCountLabel = new Label("Words: 0");
         charCountLabel = new Label("Characters: 0");
+        selectionCountLabel = new Label();
+
+        // Shown while a document is being opened or saved
+        progressLabel = new Label();
+        progressBar = new ProgressBar();
+        progressBar.setPrefWidth(160);
+        Button cancelButton = new Button("Cancel");
+        cancelButton.setOnAction(e -> {
+            if (docxExporter.isRunning() || bteExporter.isRunning()) {
+                docxExporter.cancel();
+                bteExporter.cancel();
+                hideProgress();
+            } else {
+                stopLoading((Stage) cancelButton.getScene().getWindow());
+                cancelLoading();
+            }
+        });
+        progressStatus = new HBox(8, progressLabel, progressBar, cancelButton);
+        progressStatus.setAlignment(Pos.CENTER_LEFT);
+        progressStatus.setVisible(false);
+        progressStatus.setManaged(false);
 
-        statusBar.getChildren().addAll(wordCountLabel, charCountLabel);
+        statusBar.getChildren().addAll(wordCountLabel, charCountLabel, selectionCountLabel, progressStatus);
         return statusBar;
     }
 
@@ -1718,7 +2007,7 @@ public class MainApp extends Application {
     }
 
     private void applyStyle() {
-        String style = buildStyleString();
+        CharStyle style = buildCharStyle();
         IndexRange selection = getCurrentEditor().getSelection();
 
         if (selection.getLength() > 0) {
@@ -1736,58 +2025,13 @@ public class MainApp extends Application {
         getCurrentEditor().requestFocus();
     }
 
-    private String buildStyleString() {
-        StringBuilder style = new StringBuilder();
-
-        // Font family
-        style.append("-fx-font-family: '").append(fontFamilyCombo.getValue()).append("'; ");
-
-        // Font size
-        style.append("-fx-font-size: ").append(fontSizeCombo.getValue()).append("px; ");
-
-        // Bold
-        if (boldBtn.isSelected()) {
-            style.append("-fx-font-weight: bold; ");
-        }
-
-        // Italic
-        if (italicBtn.isSelected()) {
-            style.append("-fx-font-style: italic; ");
-        }
-
-        // Underline
-        if (underlineBtn.isSelected()) {
-            style.append("-fx-underline: true; ");
-        }
-
-        // Strikethrough
-        if (strikeBtn.isSelected()) {
-            style.append("-fx-strikethrough: true; ");
-        }
-
+    private CharStyle buildCharStyle() {
         // Note: Superscript/Subscript now handled via Unicode character conversion (see
-        // UnicodeConverter)
-
-        // Color
-        Color color = textColorPicker.getValue();
-        String hexColor = toHexString(color);
-        style.append("-fx-fill: ").append(hexColor).append("; ");
-        style.append("-fx-text-fill: ").append(hexColor).append("; ");
-
-        // Highlight
-        Color highlight = highlightPicker.getValue();
-        if (highlight != null && !highlight.equals(Color.TRANSPARENT)) {
-            style.append("-rtfx-background-color: ").append(toRgbString(highlight)).append("; ");
-        }
-
-        return style.toString();
-    }
-
-    private String toRgbString(Color color) {
-        return String.format("rgb(%d, %d, %d)",
-                (int) (color.getRed() * 255),
-                (int) (color.getGreen() * 255),
-                (int) (color.getBlue() * 255));
+        // UnicodeConverter). A transparent highlight means none.
+        Integer size = fontSizeCombo.getValue();
+        return CharStyle.of(fontFamilyCombo.getValue(), size != null ? size : 0, boldBtn.isSelected(),
+                italicBtn.isSelected(), underlineBtn.isSelected(), strikeBtn.isSelected(), textColorPicker.getValue(),
+                highlightPicker.getValue(), "");
     }
 
     private String toHexString(Color color) {
@@ -1807,54 +2051,62 @@ public class MainApp extends Application {
     }
 
     private void updateWordCount() {
-        // Aggregate text from all editors
-        StringBuilder allText = new StringBuilder();
-        for (CustomEditor ed : editors) {
-            if (ed != null) {
-                allText.append(ed.getText());
-            }
-        }
-        String text = allText.toString();
-        int chars = text.length();
-        int words = text.trim().isEmpty() ? 0 : text.trim().split("\\s+").length;
+        long chars = paragraphIndex.getTotalCharacters();
+        long words = paragraphIndex.getTotalWords();
 
         wordCountLabel.setText("Words: " + words);
         charCountLabel.setText("Characters: " + chars);
+        if (wordCountLabel.getTooltip() == null) {
+            Tooltip diagnostics = new Tooltip();
+            // Computed when shown, since the segment statistics walk the whole document
+            diagnostics.setOnShowing(e -> diagnostics.setText("Edits: " + changePipeline.getEventsReceived()
+                    + ", pulses: " + changePipeline.getPulsesDelivered()
+                    + ", coalesced: " + changePipeline.getCoalescedEvents() + "\n"
+                    + segmentCompactor.describeSegments()));
+            wordCountLabel.setTooltip(diagnostics);
+        }
     }
 
-    private void newDocument(Stage stage) {
-        if (!confirmDiscard(stage))
+    private void updateSelectionCount(IndexRange selection) {
+        if (selection.getLength() == 0) {
+            selectionCountLabel.setText("");
             return;
+        }
+        long words = paragraphIndex.countWords(selection.getStart(), selection.getEnd());
+        selectionCountLabel.setText("Selected: " + words + " words, " + selection.getLength() + " characters");
+    }
 
-        // Clear all editors and pages
-        editors.clear();
-        documentBackground.getChildren().clear();
-
-        // Create a new first editor
-        CustomEditor firstEditor = new CustomEditor();
-        firstEditor.setWrapText(true);
-        firstEditor.setStyle("-fx-font-family: 'Segoe UI'; -fx-font-size: 14px;");
+    private void newDocument(Stage stage) {
+        confirmDiscard(stage, () -> clearDocument(stage));
+    }
 
-        editors.add(firstEditor);
+    private void clearDocument(Stage stage) {
+        cancelLoading();
+        documentSession++;
+        // Clear the document; the extra pages go away with the next pagination pass
+        CustomEditor firstEditor = materializePage(0).getEditor();
+        firstEditor.clear();
+        firstEditor.setParagraphStyle(0, ParStyle.EMPTY);
+        documentUndoManager.forgetHistory();
         currentEditorIndex = 0;
-
-        VBox firstPage = createPage(firstEditor, 1);
-        documentBackground.getChildren().add(firstPage);
-
-        setupEditorListeners(firstEditor);
+        firstEditor.requestFocus();
 
         currentFile = null;
         isDirty = false;
         stage.setTitle("Burak's Word Processor");
         updateWordCount();
+        editJournal.restart(document.snapshot(), null);
     }
 
     private void openFile(Stage stage) {
-        if (!confirmDiscard(stage))
-            return;
+        confirmDiscard(stage, () -> chooseAndOpen(stage));
+    }
+
+    private void chooseAndOpen(Stage stage) {
         FileChooser chooser = new FileChooser();
         chooser.setTitle("Open Document");
         chooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("BTE Documents", "*.bte"),
                 new FileChooser.ExtensionFilter("Text Files", "*.txt"),
                 new FileChooser.ExtensionFilter("Word Documents", "*.docx"),
                 new FileChooser.ExtensionFilter("All Files", "*.*"));
@@ -1862,298 +2114,220 @@ public class MainApp extends Application {
         File file = chooser.showOpenDialog(stage);
         if (file != null) {
             if (file.getName().endsWith(".docx")) {
-                openDocx(file);
-                currentFile = file;
-                isDirty = false;
-                stage.setTitle("Burak's Word Processor - " + file.getName());
-                updateWordCount();
+                openDocx(file, stage);
+            } else if (file.getName().endsWith(".bte")) {
+                openBte(file, stage);
             } else {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    StringBuilder content = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        content.append(line).append("\n");
-                    }
-                    getCurrentEditor().replaceText(content.toString());
-                    currentFile = file;
-                    isDirty = false;
-                    stage.setTitle("Burak's Word Processor - " + file.getName());
-                    updateWordCount();
-                } catch (IOException e) {
-                    showError("Error opening file", e.getMessage());
-                }
+                openText(file, stage);
             }
         }
     }
 
     private void saveOrSaveAs(Stage stage) {
-        if (currentFile != null) {
+        if (currentFile != null && currentFile.getName().toLowerCase().endsWith(".docx")) {
+            saveAsDocx(currentFile, stage);
+        } else if (currentFile != null && currentFile.getName().toLowerCase().endsWith(".bte")) {
+            saveAsBte(currentFile, stage);
+        } else if (currentFile != null) {
             saveToFile(currentFile, stage);
         } else {
             saveFile(stage);
         }
     }
 
-    private void openDocx(File file) {
-        try {
-            FileInputStream fis = new FileInputStream(file);
-            XWPFDocument document = new XWPFDocument(fis);
-            CustomEditor editor = getCurrentEditor();
-
-            // Clear existing content
-            editor.replaceText("");
-
-            List<XWPFParagraph> paragraphs = document.getParagraphs();
-            int pIndex = 0;
-
-            for (XWPFParagraph paragraph : paragraphs) {
-                // 1. Build Paragraph Style
-                StringBuilder pStyle = new StringBuilder();
-
-                // Alignment
-                ParagraphAlignment align = paragraph.getAlignment();
-                if (align != null) {
-                    switch (align) {
-                        case CENTER:
-                            pStyle.append("-fx-text-alignment: center;");
-                            break;
-                        case RIGHT:
-                            pStyle.append("-fx-text-alignment: right;");
-                            break;
-                        case BOTH:
-                            pStyle.append("-fx-text-alignment: justify;");
-                            break;
-                        default:
-                            pStyle.append("-fx-text-alignment: left;");
-                    }
-                }
+    /**
+     * Streams the .docx file into the document in the background. The first pages can be read
+     * (and edited) while the rest is still loading.
+     */
+    private void openDocx(File file, Stage stage) {
+        cancelLoading();
+        docxImporter.load(file, createImportListener(file, stage));
+    }
 
-                // Indentation & Spacing
-                int leftPx = (int) convertTwipsToPx(paragraph.getIndentationLeft());
-                int topPx = (int) convertTwipsToPx(paragraph.getSpacingBefore());
-                int bottomPx = (int) convertTwipsToPx(paragraph.getSpacingAfter());
+    /**
+     * Streams a plain text file into the document in the background, one paragraph per line.
+     */
+    private void openText(File file, Stage stage) {
+        cancelLoading();
+        textImporter.load(file, createImportListener(file, stage));
+    }
 
-                if (leftPx > 0 || topPx > 0 || bottomPx > 0) {
-                    pStyle.append(String.format("-fx-padding: %dpx 0 %dpx %dpx;", topPx, bottomPx, leftPx));
-                }
+    /**
+     * Opens a native document. Only the first page is decoded before it is shown; the other
+     * pages follow in the background.
+     */
+    private void openBte(File file, Stage stage) {
+        cancelLoading();
+        bteImporter.load(file, () -> new LiveTOC(document, paragraphIndex, this::navigateToParagraph),
+                createImportListener(file, stage));
+    }
 
-                // 2. Process Runs
-                for (XWPFRun run : paragraph.getRuns()) {
-                    StringBuilder rStyle = new StringBuilder();
-                    String text = run.text();
-                    if (text == null)
-                        continue;
-
-                    if (run.isBold())
-                        rStyle.append("-fx-font-weight: bold;");
-                    if (run.isItalic())
-                        rStyle.append("-fx-font-style: italic;");
-                    if (run.getUnderline() != UnderlinePatterns.NONE)
-                        rStyle.append("-fx-underline: true;");
-
-                    String color = run.getColor();
-                    if (color != null)
-                        rStyle.append("-fx-fill: #").append(color).append(";");
-
-                    String family = run.getFontFamily();
-                    if (family != null)
-                        rStyle.append("-fx-font-family: '").append(family).append("';");
-
-                    int size = run.getFontSize();
-                    if (size > 0)
-                        rStyle.append("-fx-font-size: ").append(size).append("px;");
-
-                    // Insert text with style
-                    int start = editor.getLength();
-                    editor.replaceText(start, start, text, rStyle.toString());
-                }
+    private DocxImporter.ImportListener createImportListener(File file, Stage stage) {
+        return createImportListener(file.getName(), stage, () -> {
+            currentFile = file;
+            // isDirty stays set if the first pages were edited while the rest was loading
+            stage.setTitle("Burak's Word Processor - " + file.getName());
+            updateWordCount();
+            editJournal.restart(document.snapshot(), file);
+        });
+    }
 
-                // End of paragraph - insert newline
-                int len = editor.getLength();
-                editor.replaceText(len, len, "\n", "");
+    /**
+     * Applies the chunks of an import to the document.
+     *
+     * @param name shown in the title while loading
+     * @param finished runs once the whole file is in the document
+     */
+    private DocxImporter.ImportListener createImportListener(String name, Stage stage, Runnable finished) {
+        return new DocxImporter.ImportListener() {
+            @Override
+            public void onProgress(double progress) {
+                showProgress("Opening...", progress);
+            }
 
-                // Apply Paragraph Style
-                if (pIndex < editor.getParagraphs().size()) {
-                    editor.setParagraphStyle(pIndex, pStyle.toString());
+            @Override
+            public void onParagraphs(ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> chunk,
+                    boolean first) {
+                // Imported runs keep their own styles, and opening a file is not an undoable edit
+                preserveInsertedStyles = true;
+                try {
+                    undoRecording.suspendWhile(() -> {
+                        if (first) {
+                            // The journal starts over once the file is complete
+                            editJournal.suspend();
+                            document.replace(0, document.getLength(), chunk);
+                        } else {
+                            // The chunk's leading empty paragraph takes over the style of an empty last paragraph
+                            int last = document.getParagraphs().size() - 1;
+                            ParStyle lastStyle = document.getParagraphStyle(last);
+                            document.replace(document.getLength(), document.getLength(), chunk);
+                            if (!document.getParagraphStyle(last).equals(lastStyle)) {
+                                document.setParagraphStyle(last, lastStyle);
+                            }
+                        }
+                    });
+                } finally {
+                    preserveInsertedStyles = false;
                 }
+                if (first) {
+                    documentUndoManager.forgetHistory();
+                    documentSession++;
+                    CustomEditor editor = getCurrentEditor();
+                    editor.moveTo(0);
+                    editor.requestFocus();
+                    partiallyLoaded = true;
+                    currentFile = null;
+                    // The chunks are not edits; from here on only the user's own edits set it
+                    isDirty = false;
+                    stage.setTitle("Burak's Word Processor - " + name + " (loading)");
+                }
+            }
 
-                pIndex++;
+            @Override
+            public void onFinished() {
+                hideProgress();
+                partiallyLoaded = false;
+                finished.run();
             }
 
-            document.close();
-            fis.close();
-        } catch (IOException e) {
-            showError("Error opening file", e.getMessage());
-        }
+            @Override
+            public void onError(String message) {
+                hideProgress();
+                stopLoading(stage);
+                showError("Error opening file", message);
+            }
+        };
     }
 
-    // ===== DOCX HELPER METHODS =====
-
-    private static final int TWIPS_PER_INCH = 1440;
-    private static final int PIXELS_PER_INCH = 96; // Standard screen DPI
-
-    private int convertPxToTwips(double px) {
-        return (int) (px * TWIPS_PER_INCH / PIXELS_PER_INCH);
+    private void cancelLoading() {
+        docxImporter.cancel();
+        bteImporter.cancel();
+        textImporter.cancel();
+        hideProgress();
+        partiallyLoaded = false;
     }
 
-    private double convertTwipsToPx(int twips) {
-        return (double) twips * PIXELS_PER_INCH / TWIPS_PER_INCH;
+    /**
+     * What was loaded of a file whose import did not finish is kept, but as an unsaved document,
+     * so that saving it can never overwrite the complete file.
+     */
+    private void stopLoading(Stage stage) {
+        if (partiallyLoaded) {
+            partiallyLoaded = false;
+            currentFile = null;
+            isDirty = true;
+            stage.setTitle("Burak's Word Processor");
+            editJournal.restart(document.snapshot(), null);
+        }
     }
 
-    private String extractStyleValue(String style, String property) {
-        if (style == null || style.isEmpty())
-            return null;
-
-        int index = style.indexOf(property + ":");
-        if (index == -1)
-            return null;
+    private void showProgress(String task, double progress) {
+        progressLabel.setText(task);
+        progressBar.setProgress(progress < 0 ? ProgressBar.INDETERMINATE_PROGRESS : progress);
+        progressStatus.setVisible(true);
+        progressStatus.setManaged(true);
+    }
 
-        int start = index + property.length() + 1;
-        int end = style.indexOf(";", start);
-        if (end == -1)
-            end = style.length();
+    private void hideProgress() {
+        progressStatus.setVisible(false);
+        progressStatus.setManaged(false);
+    }
 
-        return style.substring(start, end).trim();
+    /**
+     * Writes the whole document to the .docx file in the background; editing can go on
+     * meanwhile.
+     */
+    private void saveAsDocx(File file, Stage stage) {
+        showProgress("Saving...", 0);
+        docxExporter.save(document.snapshot(), file, createExportListener(file, stage));
     }
 
-    private void saveAsDocx(File file) {
-        try (XWPFDocument document = new XWPFDocument()) {
-            CustomEditor editor = getCurrentEditor();
-            int numParagraphs = editor.getParagraphs().size();
-
-            for (int i = 0; i < numParagraphs; i++) {
-                XWPFParagraph docParagraph = document.createParagraph();
-                String paragraphStyle = editor.getParagraph(i).getParagraphStyle();
-
-                // 1. Paragraph Formatting
-
-                // Alignment
-                String align = extractStyleValue(paragraphStyle, "-fx-text-alignment");
-                if (align != null) {
-                    switch (align.toLowerCase()) {
-                        case "center":
-                            docParagraph.setAlignment(ParagraphAlignment.CENTER);
-                            break;
-                        case "right":
-                            docParagraph.setAlignment(ParagraphAlignment.RIGHT);
-                            break;
-                        case "justify":
-                            docParagraph.setAlignment(ParagraphAlignment.BOTH);
-                            break;
-                        default:
-                            docParagraph.setAlignment(ParagraphAlignment.LEFT);
-                    }
-                }
+    /**
+     * Writes the document in the native format, one chunk per page, in the background.
+     */
+    private void saveAsBte(File file, Stage stage) {
+        showProgress("Saving...", 0);
+        bteExporter.save(document.snapshot(), paginationEngine.getPageStarts(), file,
+                createExportListener(file, stage));
+    }
 
-                // Indentation & Spacing (from padding)
-                // Format: top right bottom left
-                String padding = extractStyleValue(paragraphStyle, "-fx-padding");
-                if (padding != null) {
-                    // Extract values, remove "px", trim
-                    String[] parts = padding.replaceAll("px", "").trim().split("\\s+");
-                    if (parts.length == 4) {
-                        try {
-                            int top = Integer.parseInt(parts[0]);
-                            int bottom = Integer.parseInt(parts[2]);
-                            int left = Integer.parseInt(parts[3]);
-
-                            if (left > 0)
-                                docParagraph.setIndentationLeft(convertPxToTwips(left));
-                            if (top > 0)
-                                docParagraph.setSpacingBefore(convertPxToTwips(top));
-                            if (bottom > 0)
-                                docParagraph.setSpacingAfter(convertPxToTwips(bottom));
-                        } catch (NumberFormatException e) {
-                            // Ignore style parsing errors
-                        }
-                    }
+    private DocxExporter.ExportListener createExportListener(File file, Stage stage) {
+        long savedVersion = documentVersion;
+        int session = documentSession;
+        Runnable then = afterSave;
+        afterSave = null;
+        return new DocxExporter.ExportListener() {
+            @Override
+            public void onProgress(double progress) {
+                if (session == documentSession) {
+                    showProgress("Saving...", progress);
                 }
+            }
 
-                // Line Spacing
-                String lineSpacing = extractStyleValue(paragraphStyle, "-fx-line-spacing");
-                if (lineSpacing != null) {
-                    try {
-                        String clean = lineSpacing.replace("em", "").trim();
-                        double val = Double.parseDouble(clean);
-                        // POI line spacing: 240 = 1 line. Logic: (val / 1.2 + 1) roughly?
-                        // Simplified: CSS line-spacing adds EXTRA space.
-                        // approximate mapping: 1.0 -> 240, 1.5 -> 360
-                        // Our val is like "0.6em" for 1.5 spacing (offset).
-                        // Let's use ComboBox value logic reverse?
-                        // apply logic was: (spacingValue - 1.0) * 1.2
-                        // so spacingValue = (val / 1.2) + 1.0
-                        double spacingMult = (val / 1.2) + 1.0;
-                        // Set to "Auto" line spacing with multiplier
-                        docParagraph.setSpacingBetween(spacingMult);
-                    } catch (Exception e) {
-                    }
+            @Override
+            public void onSaved() {
+                // The file is written, but it no longer belongs to the document on screen
+                if (session != documentSession)
+                    return;
+                hideProgress();
+                currentFile = file;
+                // Edits made while saving are not in the file
+                isDirty = documentVersion != savedVersion;
+                stage.setTitle("Burak's Word Processor - " + file.getName());
+                editJournal.checkpoint(document.snapshot(), file);
+                if (then != null && !isDirty) {
+                    then.run();
                 }
+            }
 
-                // 2. Run Styling (Character formatting)
-                var segments = editor.getParagraph(i).getStyledSegments();
-                for (var segment : segments) {
-                    // Check if it's a text segment
-                    if (segment.getSegment().isLeft()) {
-                        String text = segment.getSegment().getLeft();
-                        if (text.isEmpty())
-                            continue;
-
-                        XWPFRun run = docParagraph.createRun();
-                        run.setText(text);
-
-                        String style = segment.getStyle();
-                        if (style != null && !style.isEmpty()) {
-                            // Bold
-                            if (style.contains("-fx-font-weight: bold"))
-                                run.setBold(true);
-
-                            // Italic
-                            if (style.contains("-fx-font-style: italic"))
-                                run.setItalic(true);
-
-                            // Underline
-                            if (style.contains("-fx-underline: true"))
-                                run.setUnderline(UnderlinePatterns.SINGLE);
-
-                            // Color
-                            String color = extractStyleValue(style, "-fx-fill");
-                            if (color != null) {
-                                // Remove # and set
-                                run.setColor(color.replace("#", ""));
-                            }
-
-                            // Highlight
-                            String highlight = extractStyleValue(style, "-fx-background-color");
-                            if (highlight != null) {
-                                // POI specific highlighting is complex enum mapping.
-                                // For now, let's skip mapping arbitrary hex to closest enum.
-                            }
-
-                            // Font Family
-                            String family = extractStyleValue(style, "-fx-font-family");
-                            if (family != null)
-                                run.setFontFamily(family.replace("'", ""));
-
-                            // Font Size
-                            String size = extractStyleValue(style, "-fx-font-size");
-                            if (size != null) {
-                                try {
-                                    double sizePx = Double.parseDouble(size.replace("px", ""));
-                                    // PX to Points? JavaFX size often roughly equals points
-                                    run.setFontSize((int) sizePx);
-                                } catch (Exception e) {
-                                }
-                            }
-                        }
-                    }
-                    // TODO: Handle Images (Either.right)
+            @Override
+            public void onError(String message) {
+                if (session == documentSession) {
+                    hideProgress();
                 }
+                showError("Error saving file", message);
             }
-
-            document.write(new FileOutputStream(file));
-        } catch (IOException e) {
-            showError("Error saving file", e.getMessage());
-        }
+        };
     }
 
     private void saveFile(Stage stage) {
@@ -2161,9 +2335,10 @@ public class MainApp extends Application {
         chooser.setTitle("Save Document");
         FileChooser.ExtensionFilter txtFilter = new FileChooser.ExtensionFilter("Text Files (*.txt)", "*.txt");
         FileChooser.ExtensionFilter docxFilter = new FileChooser.ExtensionFilter("Word Documents (*.docx)", "*.docx");
+        FileChooser.ExtensionFilter bteFilter = new FileChooser.ExtensionFilter("BTE Documents (*.bte)", "*.bte");
         FileChooser.ExtensionFilter allFilter = new FileChooser.ExtensionFilter("All Files", "*.*");
 
-        chooser.getExtensionFilters().addAll(txtFilter, docxFilter, allFilter);
+        chooser.getExtensionFilters().addAll(txtFilter, docxFilter, bteFilter, allFilter);
 
         if (currentFile != null) {
             chooser.setInitialFileName(currentFile.getName());
@@ -2181,7 +2356,12 @@ public class MainApp extends Application {
                 if (!path.toLowerCase().endsWith(".docx")) {
                     file = new File(path + ".docx");
                 }
-                saveAsDocx(file);
+                saveAsDocx(file, stage);
+            } else if (selectedFilter == bteFilter) {
+                if (!path.toLowerCase().endsWith(".bte")) {
+                    file = new File(path + ".bte");
+                }
+                saveAsBte(file, stage);
             } else if (selectedFilter == txtFilter) {
                 if (!path.toLowerCase().endsWith(".txt")) {
                     file = new File(path + ".txt");
@@ -2190,7 +2370,9 @@ public class MainApp extends Application {
             } else {
                 // All files or logic fallback
                 if (path.toLowerCase().endsWith(".docx")) {
-                    saveAsDocx(file);
+                    saveAsDocx(file, stage);
+                } else if (path.toLowerCase().endsWith(".bte")) {
+                    saveAsBte(file, stage);
                 } else {
                     saveToFile(file, stage);
                 }
@@ -2204,14 +2386,22 @@ public class MainApp extends Application {
             currentFile = file;
             isDirty = false;
             stage.setTitle("Burak's Word Processor - " + file.getName());
+            editJournal.checkpoint(document.snapshot(), file);
         } catch (IOException e) {
             showError("Error saving file", e.getMessage());
         }
     }
 
-    private boolean confirmDiscard(Stage stage) {
-        if (!isDirty)
-            return true;
+    /**
+     * Runs the action once the unsaved changes are saved or the user chose to discard them.
+     * .docx and .bte files are saved in the background, so for those the action only runs after
+     * the save has finished, and not at all if it failed, was cancelled or more edits came in.
+     */
+    private void confirmDiscard(Stage stage, Runnable proceed) {
+        if (!isDirty) {
+            proceed.run();
+            return;
+        }
 
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
         alert.setTitle("Unsaved Changes");
@@ -2227,13 +2417,19 @@ public class MainApp extends Application {
         var result = alert.showAndWait();
         if (result.isPresent()) {
             if (result.get() == saveBtn) {
+                // Taken over by the listener of a background save
+                afterSave = proceed;
                 saveOrSaveAs(stage);
-                return !isDirty; // Return true if save was successful
+                if (afterSave != null) {
+                    afterSave = null;
+                    if (!isDirty) { // Saved as plain text
+                        proceed.run();
+                    }
+                }
             } else if (result.get() == discardBtn) {
-                return true;
+                proceed.run();
             }
         }
-        return false;
     }
 
     private void showAbout() {
@@ -2281,8 +2477,8 @@ public class MainApp extends Application {
         File file = chooser.showSaveDialog(stage);
         if (file != null) {
             try {
-                // Export all pages instead of just the current one
-                PDFExporter.export(editors, file);
+                // Export the whole document, breaking pages where the editor does
+                PDFExporter.export(document, paginationEngine.getPageStarts(), file);
                 Alert alert = new Alert(Alert.AlertType.INFORMATION);
                 alert.setTitle("Export Successful");
                 alert.setHeaderText(null);
@@ -2428,7 +2624,7 @@ public class MainApp extends Application {
         }
 
         // TOC oluştur ve ekle
-        javafx.scene.layout.VBox tocBox = TOCManager.createAndInsertTOC(editor);
+        LiveTOC tocBox = TOCManager.createAndInsertTOC(editor, paragraphIndex, this::navigateToParagraph);
 
         if (tocBox == null) {
             // Başlık bulunamadı
@@ -2499,20 +2695,11 @@ public class MainApp extends Application {
     }
 
     private void updateAllPageHeadersFooters() {
-        for (int i = 0; i < headerEditors.size(); i++) {
-            int pageNumber = i + 1;
-
-            // Update header
-            CustomEditor headerEditor = headerEditors.get(i);
-            String headerContent = headerFooterManager.getCompleteHeaderForPage(pageNumber);
-            headerEditor.clear();
-            headerEditor.replaceText(0, 0, headerContent);
-
-            // Update footer
-            CustomEditor footerEditor = footerEditors.get(i);
-            String footerContent = headerFooterManager.getCompleteFooterForPage(pageNumber);
-            footerEditor.clear();
-            footerEditor.replaceText(0, 0, footerContent);
+        // Pages that are not materialized get their texts when they are bound
+        for (PageView page : livePages.values()) {
+            int pageNumber = page.getPageIndex() + 1;
+            page.setHeaderFooter(headerFooterManager.getCompleteHeaderForPage(pageNumber),
+                    headerFooterManager.getCompleteFooterForPage(pageNumber));
         }
     }
 
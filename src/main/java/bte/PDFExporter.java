@@ -4,6 +4,7 @@ import org.openpdf.text.*;
 import org.openpdf.text.Font;
 import org.openpdf.text.pdf.PdfWriter;
 import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.StyledDocument;
 import org.fxmisc.richtext.model.StyledSegment;
 import org.reactfx.util.Either;
 import javafx.scene.Node;
@@ -11,28 +12,33 @@ import javafx.scene.Node;
 import java.awt.Color;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 public class PDFExporter {
 
     /**
-     * Export all editors (pages) to PDF
+     * Export the whole document to PDF, starting a new PDF page at every page start
+     * (first paragraph index of each page)
      */
-    public static void export(List<CustomEditor> editors, File file) throws Exception {
+    public static void export(StyledDocument<ParStyle, Either<String, Node>, CharStyle> content, List<Integer> pageStarts,
+            File file) throws Exception {
         Document document = new Document(PageSize.A4);
         PdfWriter.getInstance(document, new FileOutputStream(file));
         document.open();
 
-        for (int i = 0; i < editors.size(); i++) {
-            CustomEditor editor = editors.get(i);
+        List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs = content.getParagraphs();
+        Map<CharStyle, Font> fonts = new HashMap<>();
+        for (int i = 0; i < pageStarts.size(); i++) {
+            int start = pageStarts.get(i);
+            int end = i + 1 < pageStarts.size() ? pageStarts.get(i + 1) : paragraphs.size();
 
-            // Add content from each editor
-            exportEditorContent(editor, document);
+            // Add content of each page
+            exportParagraphs(paragraphs.subList(start, end), document, fonts);
 
             // Add page break between pages (except after the last page)
-            if (i < editors.size() - 1) {
+            if (i < pageStarts.size() - 1) {
                 document.newPage();
             }
         }
@@ -48,39 +54,45 @@ public class PDFExporter {
         PdfWriter.getInstance(document, new FileOutputStream(file));
         document.open();
 
-        exportEditorContent(editor, document);
+        exportParagraphs(editor.getParagraphs(), document, new HashMap<>());
 
         document.close();
     }
 
     /**
-     * Helper method to export content from a single editor to an existing PDF
-     * document
+     * Helper method to export paragraphs to an existing PDF document.
+     * Fonts are created once per distinct character style and shared by all its runs.
      */
-    private static void exportEditorContent(CustomEditor editor, Document document) throws Exception {
-        for (Paragraph<String, Either<String, Node>, String> p : editor.getParagraphs()) {
+    private static void exportParagraphs(List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs,
+            Document document, Map<CharStyle, Font> fonts) throws Exception {
+        for (Paragraph<ParStyle, Either<String, Node>, CharStyle> p : paragraphs) {
             org.openpdf.text.Paragraph pdfParagraph = new org.openpdf.text.Paragraph();
 
             // Handle Paragraph Alignment
-            String pStyle = p.getParagraphStyle();
-            if (pStyle != null) {
-                if (pStyle.contains("center"))
-                    pdfParagraph.setAlignment(Element.ALIGN_CENTER);
-                else if (pStyle.contains("right"))
-                    pdfParagraph.setAlignment(Element.ALIGN_RIGHT);
-                else if (pStyle.contains("justify"))
-                    pdfParagraph.setAlignment(Element.ALIGN_JUSTIFIED);
-                else
-                    pdfParagraph.setAlignment(Element.ALIGN_LEFT);
+            String align = StyleParser.parse(p.getParagraphStyle().getCss()).getTextAlignment();
+            if (align != null) {
+                switch (align) {
+                    case "center":
+                        pdfParagraph.setAlignment(Element.ALIGN_CENTER);
+                        break;
+                    case "right":
+                        pdfParagraph.setAlignment(Element.ALIGN_RIGHT);
+                        break;
+                    case "justify":
+                        pdfParagraph.setAlignment(Element.ALIGN_JUSTIFIED);
+                        break;
+                    default:
+                        pdfParagraph.setAlignment(Element.ALIGN_LEFT);
+                }
             }
 
-            for (StyledSegment<Either<String, Node>, String> styledSegment : p.getStyledSegments()) {
+            for (StyledSegment<Either<String, Node>, CharStyle> styledSegment : p.getStyledSegments()) {
                 Either<String, Node> segment = styledSegment.getSegment();
-                String style = styledSegment.getStyle();
+                CharStyle style = styledSegment.getStyle();
 
                 if (segment.isLeft()) {
                     String text = segment.getLeft();
-                    Font font = parseFont(style);
+                    Font font = fonts.computeIfAbsent(style, PDFExporter::parseFont);
                     Chunk chunk = new Chunk(text, font);
 
                     // Handle Highlight (Background Color)
@@ -99,57 +111,41 @@ public class PDFExporter {
         }
     }
 
-    private static Font parseFont(String style) {
+    private static Font parseFont(CharStyle style) {
         if (style == null || style.isEmpty())
             return new Font(Font.HELVETICA, 12);
 
         int styleFlags = Font.NORMAL;
-        if (style.contains("bold"))
+        if (style.isBold())
             styleFlags |= Font.BOLD;
-        if (style.contains("italic"))
+        if (style.isItalic())
             styleFlags |= Font.ITALIC;
-        if (style.contains("underline"))
+        if (style.isUnderline())
             styleFlags |= Font.UNDERLINE;
-        if (style.contains("strikethrough"))
+        if (style.isStrikethrough())
             styleFlags |= Font.STRIKETHRU;
 
-        float size = 12;
-        Pattern sizePattern = Pattern.compile("-fx-font-size:\\s*(\\d+)px");
-        Matcher sizeMatcher = sizePattern.matcher(style);
-        if (sizeMatcher.find()) {
-            size = Float.parseFloat(sizeMatcher.group(1));
-        }
+        float size = style.getFontSize() > 0 ? (float) style.getFontSize() : 12;
 
-        Color color = Color.BLACK;
-        Pattern colorPattern = Pattern.compile("-fx-fill:\\s*rgb\\((\\d+),\\s*(\\d+),\\s*(\\d+)\\)");
-        Matcher colorMatcher = colorPattern.matcher(style);
-        if (colorMatcher.find()) {
-            color = new Color(
-                    Integer.parseInt(colorMatcher.group(1)),
-                    Integer.parseInt(colorMatcher.group(2)),
-                    Integer.parseInt(colorMatcher.group(3)));
-        }
+        Color color = style.getColor() != null ? toAwtColor(style.getColor()) : Color.BLACK;
 
         int family = Font.HELVETICA;
-        if (style.contains("Times New Roman") || style.contains("Georgia"))
+        String fontFamily = style.getFontFamily() != null ? style.getFontFamily() : "";
+        if (fontFamily.contains("Times New Roman") || fontFamily.contains("Georgia"))
             family = Font.TIMES_ROMAN;
-        else if (style.contains("Courier New"))
+        else if (fontFamily.contains("Courier New"))
             family = Font.COURIER;
 
         return new Font(family, size, styleFlags, color);
     }
 
-    private static Color parseHighlight(String style) {
-        if (style == null)
+    private static Color parseHighlight(CharStyle style) {
+        if (style == null || style.getHighlight() == null)
             return null;
-        Pattern highlightPattern = Pattern.compile("-rtfx-background-color:\\s*rgb\\((\\d+),\\s*(\\d+),\\s*(\\d+)\\)");
-        Matcher matcher = highlightPattern.matcher(style);
-        if (matcher.find()) {
-            return new Color(
-                    Integer.parseInt(matcher.group(1)),
-                    Integer.parseInt(matcher.group(2)),
-                    Integer.parseInt(matcher.group(3)));
-        }
-        return null;
+        return toAwtColor(style.getHighlight());
+    }
+
+    private static Color toAwtColor(javafx.scene.paint.Color color) {
+        return new Color((float) color.getRed(), (float) color.getGreen(), (float) color.getBlue());
     }
 }
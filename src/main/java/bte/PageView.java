@@ -0,0 +1,103 @@
+package bte;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.effect.DropShadow;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+
+/**
+ * A materialized page: header, a content view over the shared document and footer.
+ * Page views are pooled and rebound to other pages while scrolling, so only the pages near
+ * the viewport exist in the scene graph; all other pages are plain placeholders.
+ */
+public class PageView extends VBox {
+
+    private final CustomEditor editor;
+    private final Label headerLabel;
+    private final Label footerLabel;
+    private final Region filler = new Region();
+    private int pageIndex = -1;
+
+    public PageView(CustomEditor editor, double width, double height, double margin, double headerFooterHeight) {
+        this.editor = editor;
+
+        setPrefWidth(width);
+        setPrefHeight(height);
+        setMinHeight(height);
+        setMaxHeight(height);
+        setStyle("-fx-background-color: white;");
+        setPadding(new Insets(margin));
+
+        // Header and footer are read-only, so plain labels are enough
+        headerLabel = createHeaderFooterLabel(Pos.TOP_LEFT, headerFooterHeight / 2);
+        footerLabel = createHeaderFooterLabel(Pos.BOTTOM_LEFT, headerFooterHeight / 2);
+
+        // The content view is sized to its page's paragraphs by the pagination pass
+        editor.setPrefWidth(width - (margin * 2));
+        editor.setPrefHeight(1);
+        editor.setMinHeight(Region.USE_PREF_SIZE);
+        editor.setMaxHeight(Region.USE_PREF_SIZE);
+
+        VBox.setVgrow(filler, Priority.ALWAYS);
+
+        getChildren().addAll(headerLabel, editor, filler, footerLabel);
+
+        DropShadow shadow = new DropShadow();
+        shadow.setRadius(20);
+        shadow.setOffsetX(0);
+        shadow.setOffsetY(5);
+        shadow.setColor(Color.rgb(0, 0, 0, 0.2));
+        setEffect(shadow);
+    }
+
+    private static Label createHeaderFooterLabel(Pos alignment, double height) {
+        Label label = new Label();
+        label.setWrapText(true);
+        label.setMaxWidth(Double.MAX_VALUE);
+        label.setPrefHeight(height);
+        label.setMinHeight(height);
+        label.setAlignment(alignment);
+        label.setStyle("-fx-font-size: 10px; -fx-text-fill: #666666;");
+        return label;
+    }
+
+    /**
+     * Attaches this view to a page.
+     */
+    public void bind(int pageIndex, String header, String footer) {
+        this.pageIndex = pageIndex;
+        setHeaderFooter(header, footer);
+    }
+
+    /**
+     * Detaches this view from its page so it can be reused for another one.
+     */
+    public void unbind() {
+        pageIndex = -1;
+        editor.deselect();
+    }
+
+    public void setHeaderFooter(String header, String footer) {
+        headerLabel.setText(header);
+        footerLabel.setText(footer);
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    public CustomEditor getEditor() {
+        return editor;
+    }
+
+    /**
+     * The empty area between the content and the footer.
+     */
+    public Region getFiller() {
+        return filler;
+    }
+}
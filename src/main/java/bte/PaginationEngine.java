@@ -0,0 +1,304 @@
+package bte;
+
+import javafx.scene.Node;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontPosture;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.Text;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Incremental pagination over the single document model.
+ * The engine does not move any text: it only keeps the index of the first paragraph of every
+ * page, which the page views use as their windows into the shared document. Paragraph heights
+ * are measured off-screen and cached per (immutable) paragraph, so a reflow only measures the
+ * paragraphs that actually changed. Reflow starts at the page holding the edit and stops at the
+ * first page break that ends up where it already was.
+ */
+public class PaginationEngine {
+
+    private static final String DEFAULT_FAMILY = "Segoe UI";
+    private static final double DEFAULT_SIZE = 14;
+
+    private final double maxContentHeight;
+    private final double contentWidth;
+
+    // Paragraphs are immutable, so a cached height stays valid until the paragraph is replaced
+    private final Map<Paragraph<ParStyle, Either<String, Node>, CharStyle>, Double> heightCache = new WeakHashMap<>();
+    private final Text measureText = new Text();
+
+    // First paragraph of every page, strictly increasing, pageStarts[0] == 0
+    private final List<Integer> pageStarts = new ArrayList<>(List.of(0));
+    // Measured content height of every page
+    private final List<Double> pageHeights = new ArrayList<>(List.of(0.0));
+
+    // Paragraph range touched since the last reflow (-1 = clean)
+    private int dirtyFrom = -1;
+    private int dirtyTo = -1;
+    // First page whose break was shifted or dropped since the last reflow
+    private int shiftedFrom = Integer.MAX_VALUE;
+
+    private long lastReflowNanos;
+    private int lastPagesVisited;
+    private int lastParagraphsMeasured;
+
+    public PaginationEngine(double maxContentHeight, double contentWidth) {
+        this.maxContentHeight = maxContentHeight;
+        this.contentWidth = contentWidth;
+    }
+
+    /**
+     * Records an edit of the document: {@code paragraph} is the first paragraph touched,
+     * {@code removedBreaks}/{@code insertedBreaks} are the line breaks removed and inserted there.
+     * Page breaks after the edit are shifted so they keep pointing at the same paragraphs.
+     */
+    public void paragraphsChanged(int paragraph, int removedBreaks, int insertedBreaks) {
+        int delta = insertedBreaks - removedBreaks;
+        if (removedBreaks == 0 && insertedBreaks == 0) {
+            // Edit inside one paragraph: no page break moves
+            markDirty(paragraph, paragraph);
+            return;
+        }
+        for (int i = pageStarts.size() - 1; i > 0; i--) {
+            int start = pageStarts.get(i);
+            if (start <= paragraph) {
+                break;
+            }
+            if (start <= paragraph + removedBreaks) {
+                // The page started inside the removed text
+                pageStarts.remove(i);
+                pageHeights.remove(i);
+            } else if (delta != 0) {
+                pageStarts.set(i, start + delta);
+            } else {
+                continue;
+            }
+            shiftedFrom = Math.min(shiftedFrom, i);
+        }
+        markDirty(paragraph, paragraph + insertedBreaks);
+    }
+
+    /**
+     * Marks a paragraph range for re-measuring without shifting any page break
+     * (used when the exact shape of an edit is unknown).
+     */
+    public void markDirty(int fromParagraph, int toParagraph) {
+        dirtyFrom = dirtyFrom < 0 ? fromParagraph : Math.min(dirtyFrom, fromParagraph);
+        dirtyTo = Math.max(dirtyTo, toParagraph);
+    }
+
+    /**
+     * Forgets all page breaks, e.g. after the whole document was replaced.
+     */
+    public void reset() {
+        pageStarts.clear();
+        pageStarts.add(0);
+        pageHeights.clear();
+        pageHeights.add(0.0);
+        shiftedFrom = 0;
+        markDirty(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Re-paginates the dirty part of the document.
+     *
+     * @return the index of the first page whose window changed, or -1 if no page changed
+     */
+    public int reflow(StyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
+        if (dirtyFrom < 0) {
+            return -1;
+        }
+        long begin = System.nanoTime();
+        lastPagesVisited = 0;
+        lastParagraphsMeasured = 0;
+
+        int paragraphCount = document.getParagraphs().size();
+        int to = Math.min(dirtyTo, paragraphCount - 1);
+        int page = pageOf(Math.min(dirtyFrom, paragraphCount - 1));
+        // A paragraph that shrank at the top of a page may now fit on the previous one
+        if (page > 0 && pageStarts.get(page) >= dirtyFrom) {
+            page--;
+        }
+        dirtyFrom = dirtyTo = -1;
+
+        int firstChanged = -1;
+        while (true) {
+            lastPagesVisited++;
+            int start = pageStarts.get(page);
+            double total = 0;
+            int next = start;
+            while (next < paragraphCount) {
+                double h = measure(document.getParagraphs().get(next));
+                // At least one paragraph always stays on the page
+                if (total + h > maxContentHeight && next > start) {
+                    break;
+                }
+                total += h;
+                next++;
+            }
+            if (pageHeights.get(page) != total && firstChanged < 0) {
+                firstChanged = page;
+            }
+            pageHeights.set(page, total);
+
+            if (next >= paragraphCount) {
+                // Last page: drop any pages after it
+                if (pageStarts.size() > page + 1) {
+                    pageStarts.subList(page + 1, pageStarts.size()).clear();
+                    pageHeights.subList(page + 1, pageHeights.size()).clear();
+                    if (firstChanged < 0) {
+                        firstChanged = page + 1;
+                    }
+                }
+                break;
+            }
+
+            boolean hasNext = page + 1 < pageStarts.size();
+            if (hasNext && pageStarts.get(page + 1) == next) {
+                if (next > to) {
+                    // Same break as before, past the edit: the rest of the document is unchanged
+                    break;
+                }
+            } else {
+                if (hasNext) {
+                    pageStarts.set(page + 1, next);
+                } else {
+                    pageStarts.add(next);
+                    pageHeights.add(0.0);
+                }
+                if (firstChanged < 0) {
+                    firstChanged = page;
+                }
+            }
+            // Drop breaks that the new break has overtaken
+            while (page + 2 < pageStarts.size() && pageStarts.get(page + 2) <= next) {
+                pageStarts.remove(page + 2);
+                pageHeights.remove(page + 2);
+            }
+            page++;
+        }
+
+        if (shiftedFrom != Integer.MAX_VALUE) {
+            firstChanged = firstChanged < 0 ? shiftedFrom : Math.min(firstChanged, shiftedFrom);
+            shiftedFrom = Integer.MAX_VALUE;
+        }
+        lastReflowNanos = System.nanoTime() - begin;
+        return Math.min(firstChanged, pageStarts.size());
+    }
+
+    public int getPageCount() {
+        return pageStarts.size();
+    }
+
+    /**
+     * First paragraph of the given page.
+     */
+    public int getPageStart(int page) {
+        return pageStarts.get(page);
+    }
+
+    /**
+     * Paragraph after the last paragraph of the given page.
+     */
+    public int getPageEnd(int page, int paragraphCount) {
+        return page + 1 < pageStarts.size() ? pageStarts.get(page + 1) : paragraphCount;
+    }
+
+    public List<Integer> getPageStarts() {
+        return Collections.unmodifiableList(pageStarts);
+    }
+
+    public double getPageHeight(int page) {
+        return pageHeights.get(page);
+    }
+
+    /**
+     * Returns the page that holds the given paragraph.
+     */
+    public int pageOf(int paragraph) {
+        int index = Collections.binarySearch(pageStarts, paragraph);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * Returns the rendered height of a paragraph, measuring it only if it has not been seen before.
+     */
+    public double measure(Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph) {
+        Double cached = heightCache.get(paragraph);
+        if (cached != null) {
+            return cached;
+        }
+
+        lastParagraphsMeasured++;
+        boolean hasNodes = false;
+        double nodeHeight = 0;
+        double fontSize = 0;
+        CharStyle fontStyle = CharStyle.EMPTY;
+        StringBuilder text = new StringBuilder();
+
+        for (StyledSegment<Either<String, Node>, CharStyle> segment : paragraph.getStyledSegments()) {
+            if (segment.getSegment().isLeft()) {
+                text.append(segment.getSegment().getLeft());
+                double size = segment.getStyle().getFontSize() > 0 ? segment.getStyle().getFontSize() : DEFAULT_SIZE;
+                if (size > fontSize) {
+                    fontSize = size;
+                    fontStyle = segment.getStyle();
+                }
+            } else {
+                hasNodes = true;
+                Node node = segment.getSegment().getRight();
+                nodeHeight = Math.max(nodeHeight, node.prefHeight(-1));
+            }
+        }
+        if (fontSize == 0) {
+            fontSize = DEFAULT_SIZE;
+        }
+
+        StyleParser.ParsedStyle pStyle = StyleParser.parse(paragraph.getParagraphStyle().getCss());
+
+        measureText.setFont(toFont(fontStyle, fontSize));
+        // List markers are drawn beside the text and narrow it
+        double indent = ListManager.getIndent(paragraph.getParagraphStyle());
+        measureText.setWrappingWidth(
+                Math.max(1, contentWidth - indent - pStyle.getPaddingLeft() - pStyle.getPaddingRight()));
+        measureText.setLineSpacing(pStyle.getLineSpacing() * fontSize);
+        measureText.setText(text.length() == 0 ? " " : text.toString());
+
+        double height = Math.max(measureText.getLayoutBounds().getHeight(), nodeHeight)
+                + pStyle.getPaddingTop() + pStyle.getPaddingBottom();
+
+        // Embedded nodes can be resized in place, so their paragraphs are always re-measured
+        if (!hasNodes) {
+            heightCache.put(paragraph, height);
+        }
+        return height;
+    }
+
+    private static Font toFont(CharStyle style, double size) {
+        String family = style.getFontFamily() != null ? style.getFontFamily() : DEFAULT_FAMILY;
+        FontWeight weight = style.isBold() ? FontWeight.BOLD : FontWeight.NORMAL;
+        FontPosture posture = style.isItalic() ? FontPosture.ITALIC : FontPosture.REGULAR;
+        return Font.font(family, weight, posture, size);
+    }
+
+    public long getLastReflowNanos() {
+        return lastReflowNanos;
+    }
+
+    public int getLastPagesVisited() {
+        return lastPagesVisited;
+    }
+
+    public int getLastParagraphsMeasured() {
+        return lastParagraphsMeasured;
+    }
+}
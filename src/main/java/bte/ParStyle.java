@@ -0,0 +1,153 @@
+package bte;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable paragraph style used as the paragraph style of the document: the name of the
+ * paragraph style (Heading1, Quote...), the paragraph's list membership and its inline CSS.
+ * Like {@link CharStyle}, instances are interned, so the thousands of paragraphs that share a
+ * style share one object. The heading level is derived from the name once, which lets the
+ * {@link ParagraphIndex} keep track of the headings and list items without looking at the text
+ * or the CSS.
+ */
+public final class ParStyle {
+
+    public enum ListType {
+        NONE, BULLET, NUMBERED
+    }
+
+    private static final ConcurrentHashMap<ParStyle, ParStyle> INTERNED = new ConcurrentHashMap<>();
+
+    /**
+     * A "Normal" paragraph without any formatting.
+     */
+    public static final ParStyle EMPTY = of(null, "");
+
+    private final String name;
+    private final String css;
+    private final ListType listType;
+    private final int listLevel;
+    private final int headingLevel;
+    private final int hash;
+
+    private ParStyle(String name, String css, ListType listType, int listLevel) {
+        this.name = name;
+        this.css = css;
+        this.listType = listType;
+        this.listLevel = listLevel;
+        this.headingLevel = headingLevelOf(name);
+        this.hash = Objects.hash(name, css, listType, listLevel);
+    }
+
+    /**
+     * Returns the interned style with the given name and CSS.
+     *
+     * @param name the paragraph style name (see {@link StyleManager}), or null for Normal
+     * @param css  inline CSS of the paragraph's text flow
+     */
+    public static ParStyle of(String name, String css) {
+        return of(name, css, ListType.NONE, 0);
+    }
+
+    /**
+     * Returns the interned style of a paragraph that may be a list item.
+     *
+     * @param listLevel nesting level of the list item, 0 for the outermost; ignored for
+     *                  paragraphs that are not list items
+     */
+    public static ParStyle of(String name, String css, ListType listType, int listLevel) {
+        if (name != null && (name.isEmpty() || name.equals(StyleManager.NORMAL.getName()))) {
+            name = null;
+        }
+        css = css == null ? "" : css.trim();
+        if (listType == null || listType == ListType.NONE) {
+            listType = ListType.NONE;
+            listLevel = 0;
+        }
+        return INTERNED.computeIfAbsent(new ParStyle(name, css, listType, listLevel), style -> style);
+    }
+
+    public ParStyle withName(String name) {
+        return of(name, css, listType, listLevel);
+    }
+
+    public ParStyle withCss(String css) {
+        return of(name, css, listType, listLevel);
+    }
+
+    /**
+     * The same paragraph as a list item of the given type and level, or as a plain paragraph
+     * for {@link ListType#NONE}.
+     */
+    public ParStyle withList(ListType listType, int listLevel) {
+        return of(name, css, listType, listLevel);
+    }
+
+    /**
+     * The paragraph style name, or null for Normal.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getCss() {
+        return css;
+    }
+
+    public ListType getListType() {
+        return listType;
+    }
+
+    public boolean isListItem() {
+        return listType != ListType.NONE;
+    }
+
+    public boolean isNumbered() {
+        return listType == ListType.NUMBERED;
+    }
+
+    public int getListLevel() {
+        return listLevel;
+    }
+
+    /**
+     * 1-9 for the styles named "Heading1" to "Heading9" (the editor defines the first three, files
+     * can carry the rest), 0 for every other paragraph.
+     */
+    public int getHeadingLevel() {
+        return headingLevel;
+    }
+
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    private static int headingLevelOf(String name) {
+        if (name == null || name.length() != 8 || !name.startsWith("Heading")) {
+            return 0;
+        }
+        char level = name.charAt(7);
+        return level >= '1' && level <= '9' ? level - '0' : 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof ParStyle other && Objects.equals(name, other.name) && css.equals(other.css)
+                && listType == other.listType && listLevel == other.listLevel;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        String list = listType == ListType.NONE ? "" : "; " + listType + " " + listLevel;
+        return "ParStyle[" + (name == null ? "Normal" : name) + list + "; " + css + "]";
+    }
+}
@@ -0,0 +1,775 @@
+package bte;
+
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.RichTextChange;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Per-paragraph statistics and search signatures of the document, kept in sync with the
+ * plain-text changes.
+ * Paragraphs are stored as {@link Record}s in an implicit treap (ordered by position), so
+ * totals are read from the root, range sums and lookups by index or offset take O(log n),
+ * and an edit only touches the records of the paragraphs it changed. Records of paragraphs
+ * that were not edited keep their identity, so they can be used as stable anchors.
+ * The heading level and list level of each paragraph (from its {@link ParStyle}) are
+ * aggregated as well, so the headings can be enumerated without visiting the other paragraphs
+ * and the number of a list item is found without counting the items before it.
+ */
+public class ParagraphIndex {
+
+    /**
+     * One paragraph of the document. Aggregates cover the record's whole subtree.
+     */
+    public static class Record {
+        // Paragraph data
+        int length;
+        int words;
+        int headingLevel;
+        // Level of a numbered list item, -1 for other paragraphs
+        int numberedLevel = -1;
+        // Level of any list item (numbered or bulleted), -1 for other paragraphs
+        int listLevel = -1;
+        // Bloom filter of the paragraph's trigrams, see SearchIndex
+        long[] signature = EMPTY_SIGNATURE;
+        boolean dirty = true;
+        boolean removed;
+
+        // Treap structure
+        Record left;
+        Record right;
+        Record parent;
+        final int priority;
+
+        // Subtree aggregates
+        int count;
+        long sumLength;
+        long sumWords;
+        int sumHeadings;
+        // Numbered list items per level
+        final int[] sumNumbered = new int[LIST_LEVELS];
+        // All list items per level
+        final int[] sumListItems = new int[LIST_LEVELS];
+
+        Record(int length, int priority) {
+            this.length = length;
+            this.priority = priority;
+            this.count = 1;
+            this.sumLength = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getWords() {
+            return words;
+        }
+
+        /**
+         * True once the paragraph has been deleted (or merged into the one before it).
+         */
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        /**
+         * 1-9 for a heading paragraph, 0 otherwise.
+         */
+        public int getHeadingLevel() {
+            return headingLevel;
+        }
+
+        /**
+         * False if the paragraph certainly does not contain all of the given trigrams.
+         */
+        public boolean mayContain(int[] trigramHashes) {
+            int bits = signature.length * 64;
+            for (int hash : trigramHashes) {
+                int h1 = Math.floorMod(hash, bits);
+                int h2 = Math.floorMod(hash * 0x9E3779B1, bits);
+                if ((signature[h1 >>> 6] & (1L << h1)) == 0 || (signature[h2 >>> 6] & (1L << h2)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Visitor for {@link #forEach}.
+     */
+    public interface RecordVisitor {
+        void visit(Record record, int index, long offset);
+    }
+
+    private static final long[] EMPTY_SIGNATURE = new long[1];
+    // Deeper list items are counted with the deepest level
+    private static final int LIST_LEVELS = 4;
+
+    private final Random random = new Random();
+    private final StyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private final List<Record> dirtyRecords = new ArrayList<>();
+    private Record root;
+    // Incremented on every change, so derived results can be cached per version
+    private long version;
+    // Incremented whenever a heading is added, removed or edited
+    private long headingVersion;
+    // Incremented whenever a list item is added, removed or moved to another level
+    private long listVersion;
+
+    public ParagraphIndex(StyledDocument<ParStyle, Either<String, Node>, CharStyle> document) {
+        this.document = document;
+        rebuild();
+    }
+
+    /**
+     * Recreates all records from the document.
+     */
+    public void rebuild() {
+        root = null;
+        version++;
+        headingVersion++;
+        listVersion++;
+        dirtyRecords.clear();
+        for (Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph : document.getParagraphs()) {
+            Record record = newRecord(paragraph.length());
+            markDirty(record);
+            root = merge(root, record);
+        }
+        refreshDirty();
+    }
+
+    /**
+     * Applies the changes of one document event. Positions inside a multi-change are relative
+     * to the state after the previous change, so the structure is spliced using the record
+     * lengths only, and the changed records are re-read from the document at the end.
+     */
+    public void applyChanges(List<PlainTextChange> changes) {
+        version++;
+        for (PlainTextChange change : changes) {
+            splice(change.getPosition(), change.getRemoved(), change.getInserted());
+        }
+        if (getParagraphCount() != document.getParagraphs().size()) {
+            // Should not happen; start over rather than report wrong numbers
+            rebuild();
+            return;
+        }
+        refreshDirty();
+    }
+
+    /**
+     * Re-reads the heading and list levels of the paragraphs touched by style changes. Paragraph and
+     * character style edits keep the text as it is, so they never reach {@link #applyChanges};
+     * this takes the rich changes of the same event, after {@link #applyChanges} has run.
+     */
+    public void applyStyleChanges(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        for (int i = 0; i < changes.size(); i++) {
+            RichTextChange<ParStyle, Either<String, Node>, CharStyle> change = changes.get(i);
+            int length = change.getInserted().length();
+            // Text edits were handled with the plain changes
+            if (length != change.getRemoved().length())
+                continue;
+            // Move the range past the later changes of the event, like the records were
+            int start = change.getPosition();
+            int end = start + length;
+            for (int j = i + 1; j < changes.size(); j++) {
+                RichTextChange<ParStyle, Either<String, Node>, CharStyle> later = changes.get(j);
+                int removedEnd = later.getPosition() + later.getRemoved().length();
+                int delta = later.getInserted().length() - later.getRemoved().length();
+                if (start >= removedEnd) {
+                    start += delta;
+                }
+                if (end >= removedEnd) {
+                    end += delta;
+                }
+            }
+            int last = indexAtOffset(Math.max(start, end));
+            for (int p = indexAtOffset(start); p <= last; p++) {
+                readStyle(get(p), document.getParagraph(p).getParagraphStyle());
+            }
+        }
+    }
+
+    private void splice(int position, String removed, String inserted) {
+        int first = indexAtOffset(position);
+        Record firstRecord = get(first);
+        int offset = (int) (position - offsetOf(first));
+
+        int removedBreaks = 0;
+        int lastBreak = -1;
+        for (int i = 0; i < removed.length(); i++) {
+            if (removed.charAt(i) == '\n') {
+                removedBreaks++;
+                lastBreak = i;
+            }
+        }
+        Record lastRecord = removedBreaks == 0 ? firstRecord : get(first + removedBreaks);
+        int endOffset = removedBreaks == 0 ? offset + removed.length() : removed.length() - lastBreak - 1;
+        int tail = lastRecord.length - endOffset;
+
+        List<Integer> pieces = new ArrayList<>();
+        int pieceStart = 0;
+        for (int i = 0; i < inserted.length(); i++) {
+            if (inserted.charAt(i) == '\n') {
+                pieces.add(i - pieceStart);
+                pieceStart = i + 1;
+            }
+        }
+        pieces.add(inserted.length() - pieceStart);
+
+        if (removedBreaks == 0 && pieces.size() == 1) {
+            // Edit inside one paragraph: only its length changes
+            setLength(firstRecord, offset + pieces.get(0) + tail);
+            markDirty(firstRecord);
+            return;
+        }
+
+        Record[] parts = split(root, first);
+        Record[] rest = split(parts[1], removedBreaks + 1);
+        markRemoved(rest[0]);
+
+        // The first paragraph keeps its record, the others are new
+        Record middle = null;
+        for (int i = 0; i < pieces.size(); i++) {
+            int length = pieces.get(i);
+            if (i == 0) {
+                length += offset;
+            }
+            if (i == pieces.size() - 1) {
+                length += tail;
+            }
+            Record record;
+            if (i == 0) {
+                record = firstRecord;
+                record.removed = false;
+                record.left = record.right = record.parent = null;
+                record.length = length;
+                update(record);
+            } else {
+                record = newRecord(length);
+            }
+            markDirty(record);
+            middle = merge(middle, record);
+        }
+        root = merge(merge(parts[0], middle), rest[1]);
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    private void refreshDirty() {
+        for (Record record : dirtyRecords) {
+            // Records dropped by a later change of the same event have no position anymore
+            if (!record.dirty || record.removed)
+                continue;
+            Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph = document.getParagraph(indexOf(record));
+            String text = paragraph.getText();
+            record.dirty = false;
+            if (record.headingLevel > 0) {
+                // The heading's text may have changed
+                headingVersion++;
+            }
+            readStyle(record, paragraph.getParagraphStyle());
+            setLength(record, text.length());
+            setWords(record, countWords(text, 0, text.length()));
+            record.signature = computeSignature(text);
+        }
+        dirtyRecords.clear();
+    }
+
+    private void markDirty(Record record) {
+        record.dirty = true;
+        dirtyRecords.add(record);
+    }
+
+    private void markRemoved(Record subtree) {
+        List<Record> stack = new ArrayList<>();
+        if (subtree != null) {
+            stack.add(subtree);
+        }
+        while (!stack.isEmpty()) {
+            Record node = stack.remove(stack.size() - 1);
+            node.removed = true;
+            if (node.headingLevel > 0) {
+                headingVersion++;
+            }
+            if (node.listLevel >= 0) {
+                listVersion++;
+            }
+            if (node.left != null) {
+                stack.add(node.left);
+            }
+            if (node.right != null) {
+                stack.add(node.right);
+            }
+        }
+    }
+
+    /**
+     * Builds the trigram Bloom filter of a paragraph, eight to sixteen bits per trigram.
+     */
+    private static long[] computeSignature(String text) {
+        if (text.length() < 3) {
+            return EMPTY_SIGNATURE;
+        }
+        int words = Math.max(1, Integer.highestOneBit(text.length() - 2) / 8 * 2);
+        long[] signature = new long[words];
+        int bits = words * 64;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            int hash = trigramHash(text, i);
+            int h1 = Math.floorMod(hash, bits);
+            int h2 = Math.floorMod(hash * 0x9E3779B1, bits);
+            signature[h1 >>> 6] |= 1L << h1;
+            signature[h2 >>> 6] |= 1L << h2;
+        }
+        return signature;
+    }
+
+    public static int trigramHash(CharSequence text, int start) {
+        int hash = (text.charAt(start) * 31 + text.charAt(start + 1)) * 31 + text.charAt(start + 2);
+        return hash ^ (hash >>> 15);
+    }
+
+    // ---- Queries ----
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Visits all records in document order with their index and start offset.
+     */
+    public void forEach(RecordVisitor visitor) {
+        List<Record> stack = new ArrayList<>();
+        Record node = root;
+        int index = 0;
+        long offset = 0;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.add(node);
+                node = node.left;
+            }
+            node = stack.remove(stack.size() - 1);
+            visitor.visit(node, index, offset);
+            index++;
+            offset += node.length + 1;
+            node = node.right;
+        }
+    }
+
+    /**
+     * Version of the set of headings and their text; unchanged by edits elsewhere.
+     */
+    public long getHeadingVersion() {
+        return headingVersion;
+    }
+
+    /**
+     * Version of the list numbering; unchanged unless numbered items were added, removed or
+     * changed level.
+     */
+    public long getListVersion() {
+        return listVersion;
+    }
+
+    public int getHeadingCount() {
+        return root == null ? 0 : root.sumHeadings;
+    }
+
+    /**
+     * Visits the heading paragraphs in document order with their index and start offset.
+     * Subtrees without headings are skipped, so this costs O(headings * log n).
+     */
+    public void forEachHeading(RecordVisitor visitor) {
+        visitHeadings(root, 0, 0, visitor);
+    }
+
+    private static void visitHeadings(Record node, int index, long offset, RecordVisitor visitor) {
+        if (node == null || node.sumHeadings == 0)
+            return;
+        visitHeadings(node.left, index, offset, visitor);
+        int ownIndex = index + count(node.left);
+        long ownOffset = offset + sumLength(node.left) + count(node.left);
+        if (node.headingLevel > 0) {
+            visitor.visit(node, ownIndex, ownOffset);
+        }
+        visitHeadings(node.right, ownIndex + 1, ownOffset + node.length + 1, visitor);
+    }
+
+    /**
+     * Number shown in front of a numbered list item (1 for the first item of its level), or 0
+     * if the paragraph is not a numbered item. Items are counted from the last paragraph before
+     * them that is not a list item or is a list item (numbered or not) of a lower level, so
+     * deeper items in between, bulleted ones included, keep the numbering going. The per-level
+     * aggregates make this O(log n) however long the list is.
+     */
+    public int getListNumber(int paragraph) {
+        int level = get(paragraph).numberedLevel;
+        if (level < 0)
+            return 0;
+        int breaks = prefixListBreaks(paragraph, level);
+        int start = breaks == 0 ? 0 : indexOfListBreak(breaks, level) + 1;
+        return prefixNumbered(paragraph + 1, level) - prefixNumbered(start, level);
+    }
+
+    // Numbered items of the level among paragraphs [0, index)
+    private int prefixNumbered(int index, int level) {
+        int sum = 0;
+        Record node = root;
+        while (node != null) {
+            int leftCount = count(node.left);
+            if (index <= leftCount) {
+                node = node.left;
+            } else {
+                sum += (node.left == null ? 0 : node.left.sumNumbered[level]) + (node.numberedLevel == level ? 1 : 0);
+                index -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        return sum;
+    }
+
+    // Paragraphs among [0, index) that restart the numbering of the level
+    private int prefixListBreaks(int index, int level) {
+        int sum = 0;
+        Record node = root;
+        while (node != null) {
+            int leftCount = count(node.left);
+            if (index <= leftCount) {
+                node = node.left;
+            } else {
+                sum += listBreaks(node.left, level) + (node.listLevel < level ? 1 : 0);
+                index -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        return sum;
+    }
+
+    // Index of the k-th (1-based) paragraph that restarts the numbering of the level
+    private int indexOfListBreak(int k, int level) {
+        int index = 0;
+        Record node = root;
+        while (node != null) {
+            int leftBreaks = listBreaks(node.left, level);
+            if (k <= leftBreaks) {
+                node = node.left;
+                continue;
+            }
+            k -= leftBreaks;
+            if (node.listLevel < level) {
+                if (k == 1) {
+                    return index + count(node.left);
+                }
+                k--;
+            }
+            index += count(node.left) + 1;
+            node = node.right;
+        }
+        throw new IndexOutOfBoundsException("List break " + k);
+    }
+
+    // Paragraphs that are not list items of the level or deeper
+    private static int listBreaks(Record node, int level) {
+        if (node == null)
+            return 0;
+        int breaks = node.count;
+        for (int l = level; l < LIST_LEVELS; l++) {
+            breaks -= node.sumListItems[l];
+        }
+        return breaks;
+    }
+
+    public int getParagraphCount() {
+        return root == null ? 0 : root.count;
+    }
+
+    public long getTotalWords() {
+        return root == null ? 0 : root.sumWords;
+    }
+
+    /**
+     * Character count of the whole document, line breaks included.
+     */
+    public long getTotalCharacters() {
+        return root == null ? 0 : root.sumLength + root.count - 1;
+    }
+
+    /**
+     * Word count of the text between two document offsets. Whole paragraphs are read from the
+     * aggregates; only the partial paragraphs at both ends are scanned.
+     */
+    public long countWords(int start, int end) {
+        if (start >= end)
+            return 0;
+        int first = indexAtOffset(start);
+        int last = indexAtOffset(end);
+        int startOffset = (int) (start - offsetOf(first));
+        int endOffset = (int) (end - offsetOf(last));
+        if (first == last) {
+            String text = document.getParagraph(first).getText();
+            return countWords(text, startOffset, endOffset);
+        }
+        String firstText = document.getParagraph(first).getText();
+        String lastText = document.getParagraph(last).getText();
+        return countWords(firstText, startOffset, firstText.length())
+                + sumWords(first + 1, last)
+                + countWords(lastText, 0, endOffset);
+    }
+
+    /**
+     * Sum of the word counts of paragraphs [from, to).
+     */
+    public long sumWords(int from, int to) {
+        return prefixWords(to) - prefixWords(from);
+    }
+
+    private long prefixWords(int index) {
+        long sum = 0;
+        Record node = root;
+        while (node != null) {
+            int leftCount = count(node.left);
+            if (index <= leftCount) {
+                node = node.left;
+            } else {
+                sum += sumWords(node.left) + node.words;
+                index -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the record of the paragraph at the given index.
+     */
+    public Record get(int index) {
+        Record node = root;
+        while (node != null) {
+            int leftCount = count(node.left);
+            if (index < leftCount) {
+                node = node.left;
+            } else if (index == leftCount) {
+                return node;
+            } else {
+                index -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        throw new IndexOutOfBoundsException("Paragraph " + index);
+    }
+
+    /**
+     * Returns the current index of a record.
+     */
+    public int indexOf(Record record) {
+        int index = count(record.left);
+        Record node = record;
+        while (node.parent != null) {
+            if (node == node.parent.right) {
+                index += count(node.parent.left) + 1;
+            }
+            node = node.parent;
+        }
+        return index;
+    }
+
+    /**
+     * Document offset of the first character of the given paragraph.
+     */
+    public long offsetOf(int index) {
+        long offset = 0;
+        Record node = root;
+        while (node != null) {
+            int leftCount = count(node.left);
+            if (index <= leftCount) {
+                node = node.left;
+            } else {
+                offset += sumLength(node.left) + leftCount + node.length + 1;
+                index -= leftCount + 1;
+                node = node.right;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Index of the paragraph that contains the given document offset (line breaks belong to
+     * the paragraph they end).
+     */
+    public int indexAtOffset(long offset) {
+        int index = 0;
+        Record node = root;
+        while (node != null) {
+            long leftSpan = sumLength(node.left) + count(node.left);
+            if (offset < leftSpan) {
+                node = node.left;
+            } else if (offset <= leftSpan + node.length || node.right == null) {
+                return index + count(node.left);
+            } else {
+                offset -= leftSpan + node.length + 1;
+                index += count(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return Math.max(0, index - 1);
+    }
+
+    /**
+     * Counts words like {@code trim().split("\\s+")} would, without allocating.
+     */
+    public static int countWords(CharSequence text, int start, int end) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = start; i < end; i++) {
+            boolean space = isSpace(text.charAt(i));
+            if (!space && !inWord) {
+                words++;
+            }
+            inWord = !space;
+        }
+        return words;
+    }
+
+    // Same characters as the regex \s
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // ---- Treap plumbing ----
+
+    private Record newRecord(int length) {
+        return new Record(length, random.nextInt());
+    }
+
+    private void setLength(Record record, int length) {
+        record.length = length;
+        updateUpwards(record);
+    }
+
+    private void setWords(Record record, int words) {
+        record.words = words;
+        updateUpwards(record);
+    }
+
+    private void readStyle(Record record, ParStyle style) {
+        int headingLevel = style.getHeadingLevel();
+        int listLevel = style.isListItem() ? Math.min(style.getListLevel(), LIST_LEVELS - 1) : -1;
+        int numberedLevel = style.isNumbered() ? listLevel : -1;
+        if (record.headingLevel == headingLevel && record.numberedLevel == numberedLevel
+                && record.listLevel == listLevel)
+            return;
+        if (record.headingLevel != headingLevel) {
+            headingVersion++;
+        }
+        if (record.numberedLevel != numberedLevel || record.listLevel != listLevel) {
+            listVersion++;
+        }
+        record.headingLevel = headingLevel;
+        record.numberedLevel = numberedLevel;
+        record.listLevel = listLevel;
+        updateUpwards(record);
+    }
+
+    private static void updateUpwards(Record record) {
+        for (Record node = record; node != null; node = node.parent) {
+            update(node);
+        }
+    }
+
+    private static int count(Record node) {
+        return node == null ? 0 : node.count;
+    }
+
+    private static long sumLength(Record node) {
+        return node == null ? 0 : node.sumLength;
+    }
+
+    private static long sumWords(Record node) {
+        return node == null ? 0 : node.sumWords;
+    }
+
+    private static int sumHeadings(Record node) {
+        return node == null ? 0 : node.sumHeadings;
+    }
+
+    private static void update(Record node) {
+        node.count = 1 + count(node.left) + count(node.right);
+        node.sumLength = node.length + sumLength(node.left) + sumLength(node.right);
+        node.sumWords = node.words + sumWords(node.left) + sumWords(node.right);
+        node.sumHeadings = (node.headingLevel > 0 ? 1 : 0) + sumHeadings(node.left) + sumHeadings(node.right);
+        for (int level = 0; level < LIST_LEVELS; level++) {
+            node.sumNumbered[level] = (node.numberedLevel == level ? 1 : 0)
+                    + (node.left == null ? 0 : node.left.sumNumbered[level])
+                    + (node.right == null ? 0 : node.right.sumNumbered[level]);
+            node.sumListItems[level] = (node.listLevel == level ? 1 : 0)
+                    + (node.left == null ? 0 : node.left.sumListItems[level])
+                    + (node.right == null ? 0 : node.right.sumListItems[level]);
+        }
+        if (node.left != null) {
+            node.left.parent = node;
+        }
+        if (node.right != null) {
+            node.right.parent = node;
+        }
+    }
+
+    private static Record merge(Record a, Record b) {
+        if (a == null) {
+            if (b != null) {
+                b.parent = null;
+            }
+            return b;
+        }
+        if (b == null) {
+            a.parent = null;
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            a.parent = null;
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            b.parent = null;
+            return b;
+        }
+    }
+
+    // Splits into the first k records and the rest
+    private static Record[] split(Record node, int k) {
+        if (node == null) {
+            return new Record[] { null, null };
+        }
+        Record[] result;
+        if (count(node.left) >= k) {
+            result = split(node.left, k);
+            node.left = result[1];
+            update(node);
+            node.parent = null;
+            result[1] = node;
+        } else {
+            result = split(node.right, k - count(node.left) - 1);
+            node.right = result[0];
+            update(node);
+            node.parent = null;
+            result[0] = node;
+        }
+        if (result[0] != null) {
+            result[0].parent = null;
+        }
+        if (result[1] != null) {
+            result[1].parent = null;
+        }
+        return result;
+    }
+}
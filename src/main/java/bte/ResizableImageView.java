@@ -1,5 +1,6 @@
 package bte;
 
+import javafx.application.Platform;
 import javafx.scene.Cursor;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -9,9 +10,31 @@ import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Rectangle;
 
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An image in the text that can be selected and resized.
+ * An image can also be created from its key in the {@link ImageStore} alone: it then shows a
+ * placeholder of its size and decodes the stored bytes, at the resolution it is displayed at,
+ * only while it is in a scene. Since pages and paragraphs are only in the scene graph near
+ * the viewport, a document full of images keeps just the visible ones decoded.
+ */
 public class ResizableImageView extends StackPane {
 
+    private static final Color PLACEHOLDER_COLOR = Color.rgb(235, 235, 235);
+    // Decoding is CPU-bound; images scrolled past before their turn are skipped
+    private static final Semaphore DECODERS = new Semaphore(2);
+
     private final ImageView imageView;
+    private String imageKey;
+    private final boolean lazy;
+    private final Rectangle placeholder;
+    // Height over width, until the image is there to tell
+    private final double aspectRatio;
+    // Incremented whenever a decode in flight stops being wanted
+    private final AtomicInteger request = new AtomicInteger();
     private final Rectangle selectionBorder;
     private final Rectangle topLeftHandle;
     private final Rectangle topRightHandle;
@@ -28,10 +51,37 @@ public class ResizableImageView extends StackPane {
     }
 
     public ResizableImageView(Image image, double initialWidth) {
+        this(image, initialWidth, null);
+    }
+
+    /**
+     * @param imageKey key of the encoded image in the {@link ImageStore}
+     */
+    public ResizableImageView(Image image, double initialWidth, String imageKey) {
+        this(image, imageKey, false, initialWidth, image.getWidth() > 0 ? image.getHeight() / image.getWidth() : 1);
+    }
+
+    /**
+     * Creates an image that is decoded from the {@link ImageStore} only while it is in a scene.
+     */
+    public ResizableImageView(String imageKey, double width, double height) {
+        this(null, imageKey, true, width, width > 0 ? height / width : 1);
+    }
+
+    private ResizableImageView(Image image, String imageKey, boolean lazy, double initialWidth,
+            double aspectRatio) {
+        this.imageKey = imageKey;
+        this.lazy = lazy;
+        this.aspectRatio = aspectRatio;
         this.imageView = new ImageView(image);
         this.imageView.setPreserveRatio(true);
         this.imageView.setFitWidth(initialWidth);
 
+        this.placeholder = new Rectangle();
+        this.placeholder.setFill(PLACEHOLDER_COLOR);
+        this.placeholder.setVisible(image == null);
+        this.placeholder.setManaged(image == null);
+
         // Selection border
         this.selectionBorder = new Rectangle();
         this.selectionBorder.setFill(Color.TRANSPARENT);
@@ -47,12 +97,22 @@ public class ResizableImageView extends StackPane {
         this.bottomRightHandle = createHandle(handleSize);
 
         // Add children
-        this.getChildren().addAll(imageView, selectionBorder,
+        this.getChildren().addAll(placeholder, imageView, selectionBorder,
                 topLeftHandle, topRightHandle, bottomLeftHandle, bottomRightHandle);
 
         // Setup event handlers
         setupEventHandlers();
         updateLayout();
+
+        if (lazy) {
+            sceneProperty().addListener((obs, oldScene, newScene) -> {
+                if (newScene != null) {
+                    decode();
+                } else {
+                    release();
+                }
+            });
+        }
     }
 
     private Rectangle createHandle(double size) {
@@ -82,8 +142,61 @@ public class ResizableImageView extends StackPane {
         this.setOnKeyPressed(this::handleKeyPress);
 
         // Listen for size changes
-        imageView.fitWidthProperty().addListener((obs, oldVal, newVal) -> updateLayout());
+        imageView.fitWidthProperty().addListener((obs, oldVal, newVal) -> {
+            updateLayout();
+            // Made larger than it was decoded for
+            if (lazy && getScene() != null && imageView.getImage() != null
+                    && imageView.getImage().getWidth() < decodeWidth()) {
+                decode();
+            }
+        });
         imageView.fitHeightProperty().addListener((obs, oldVal, newVal) -> updateLayout());
+        imageView.imageProperty().addListener((obs, oldVal, newVal) -> {
+            placeholder.setVisible(newVal == null);
+            placeholder.setManaged(newVal == null);
+            updateLayout();
+        });
+    }
+
+    private void decode() {
+        byte[] bytes = ImageStore.get(imageKey);
+        if (bytes == null)
+            return;
+        int myRequest = request.incrementAndGet();
+        double width = decodeWidth();
+        Thread.ofVirtual().name("image-decode").start(() -> {
+            try {
+                DECODERS.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (request.get() != myRequest)
+                    return;
+                Image image = new Image(new ByteArrayInputStream(bytes), width, 0, true, true);
+                if (image.isError())
+                    return;
+                Platform.runLater(() -> {
+                    if (request.get() == myRequest) {
+                        imageView.setImage(image);
+                    }
+                });
+            } finally {
+                DECODERS.release();
+            }
+        });
+    }
+
+    private void release() {
+        request.incrementAndGet();
+        imageView.setImage(null);
+    }
+
+    // Pixels needed across the displayed width, for the screen the image is on
+    private double decodeWidth() {
+        double scale = getScene() != null && getScene().getWindow() != null ? getScene().getWindow().getOutputScaleX()
+                : 1;
+        return Math.ceil(imageView.getFitWidth() * scale);
     }
 
     private void setupHandleDrag(Rectangle handle, ResizeMode mode, Cursor cursor) {
@@ -158,8 +271,11 @@ public class ResizableImageView extends StackPane {
     }
 
     private void updateLayout() {
-        double width = imageView.getBoundsInParent().getWidth();
-        double height = imageView.getBoundsInParent().getHeight();
+        double width = getDisplayWidth();
+        double height = getDisplayHeight();
+
+        placeholder.setWidth(width);
+        placeholder.setHeight(height);
 
         // Update border
         selectionBorder.setWidth(width + 4);
@@ -185,4 +301,28 @@ public class ResizableImageView extends StackPane {
     public ImageView getImageView() {
         return imageView;
     }
+
+    /**
+     * Width of the image in the text, whether or not it is decoded.
+     */
+    public double getDisplayWidth() {
+        return imageView.getFitWidth();
+    }
+
+    public double getDisplayHeight() {
+        Image image = imageView.getImage();
+        double ratio = image != null && image.getWidth() > 0 ? image.getHeight() / image.getWidth() : aspectRatio;
+        return imageView.getFitWidth() * ratio;
+    }
+
+    /**
+     * Key of the encoded image in the {@link ImageStore}. An image created without one is
+     * encoded and stored on the first call.
+     */
+    public String getImageKey() {
+        if (imageKey == null) {
+            imageKey = ImageStore.put(imageView.getImage());
+        }
+        return imageKey;
+    }
 }
@@ -0,0 +1,316 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Background search with regex, whole-word, case-insensitive and multi-term matching.
+ * Each search runs on its own virtual thread against an immutable snapshot of the document
+ * and streams its hits to the FX thread in batches. Starting a new search (or calling
+ * {@link #cancel()}) cancels the running one; a cancelled regex stops at its next character
+ * access, so even catastrophic backtracking never keeps a search alive.
+ */
+public class SearchEngine {
+
+    /**
+     * What to search for. Multi-term queries separate their terms with '|'.
+     */
+    public static class Query {
+        final String text;
+        final boolean regex;
+        final boolean wholeWord;
+        final boolean matchCase;
+        final boolean multiTerm;
+
+        public Query(String text, boolean regex, boolean wholeWord, boolean matchCase, boolean multiTerm) {
+            this.text = text;
+            this.regex = regex;
+            this.wholeWord = wholeWord;
+            this.matchCase = matchCase;
+            this.multiTerm = multiTerm;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * True for a plain case-sensitive literal, which the search index can answer directly.
+         */
+        public boolean isPlainLiteral() {
+            return !regex && !wholeWord && matchCase && !multiTerm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Query other)) {
+                return false;
+            }
+            return text.equals(other.text) && regex == other.regex && wholeWord == other.wholeWord
+                    && matchCase == other.matchCase && multiTerm == other.multiTerm;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, regex, wholeWord, matchCase, multiTerm);
+        }
+    }
+
+    /**
+     * Receives the results of one search, always on the FX thread.
+     */
+    public interface SearchListener {
+        /**
+         * One batch of hits as [starts[i], ends[i]), in document order.
+         */
+        void onHits(int[] starts, int[] ends);
+
+        void onFinished(int totalHits);
+
+        void onError(String message);
+    }
+
+    private static final int BATCH_SIZE = 512;
+    private static final long BATCH_NANOS = 50_000_000L;
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts searching the given snapshot, cancelling any search still running.
+     */
+    public void search(StyledDocument<ParStyle, Either<String, Node>, CharStyle> snapshot, Query query,
+            SearchListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        if (query.text == null || query.text.isEmpty()) {
+            listener.onFinished(0);
+            return;
+        }
+
+        Matcher matcher;
+        AhoCorasick automaton;
+        try {
+            matcher = query.multiTerm && !query.regex ? null : compile(query).matcher("");
+            automaton = matcher == null ? new AhoCorasick(splitTerms(query.text), !query.matchCase) : null;
+        } catch (PatternSyntaxException e) {
+            listener.onError("Invalid pattern: " + e.getDescription());
+            return;
+        }
+
+        worker = Thread.ofVirtual().name("document-search").start(() -> {
+            try {
+                CancellableText text = new CancellableText(snapshot.getText(), generation, myGeneration);
+                Batcher batcher = new Batcher(listener, myGeneration);
+                if (matcher != null) {
+                    matcher.reset(text);
+                    while (matcher.find()) {
+                        if (matcher.end() > matcher.start()) {
+                            batcher.add(matcher.start(), matcher.end());
+                        }
+                    }
+                } else {
+                    searchTerms(automaton, text, query.wholeWord, batcher);
+                }
+                batcher.finish();
+            } catch (CancellationException e) {
+                // A newer search replaced this one
+            } catch (StackOverflowError e) {
+                deliver(myGeneration, () -> listener.onError("The pattern is too complex for this document"));
+            } catch (RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError("Search failed: " + e.getMessage()));
+            } finally {
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running search; its remaining hits are never delivered.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+            worker = null;
+        }
+    }
+
+    private static Pattern compile(Query query) {
+        String source;
+        if (query.regex) {
+            source = query.text;
+        } else {
+            StringBuilder alternatives = new StringBuilder();
+            for (String term : splitTerms(query.text)) {
+                if (alternatives.length() > 0) {
+                    alternatives.append('|');
+                }
+                alternatives.append(Pattern.quote(term));
+            }
+            source = alternatives.toString();
+        }
+        if (query.wholeWord) {
+            source = "(?<![\\p{L}\\p{N}_])(?:" + source + ")(?![\\p{L}\\p{N}_])";
+        }
+        int flags = Pattern.MULTILINE;
+        if (!query.matchCase) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        return Pattern.compile(source, flags);
+    }
+
+    private static List<String> splitTerms(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        for (String term : text.split("\\|")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private static void searchTerms(AhoCorasick automaton, CancellableText text, boolean wholeWord, Batcher batcher) {
+        // Searched one paragraph at a time so each batch can be sorted by start offset
+        int length = text.length();
+        int paragraphStart = 0;
+        List<int[]> found = new ArrayList<>();
+        while (paragraphStart <= length) {
+            int paragraphEnd = text.indexOfBreak(paragraphStart);
+            automaton.search(text, paragraphStart, paragraphEnd, (start, end) -> {
+                if (!wholeWord || (isWordBoundary(text, start - 1) && isWordBoundary(text, end))) {
+                    found.add(new int[] { start, end });
+                }
+            });
+            if (!found.isEmpty()) {
+                found.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+                for (int[] hit : found) {
+                    batcher.add(hit[0], hit[1]);
+                }
+                found.clear();
+            }
+            paragraphStart = paragraphEnd + 1;
+        }
+    }
+
+    private static boolean isWordBoundary(CharSequence text, int index) {
+        if (index < 0 || index >= text.length()) {
+            return true;
+        }
+        char c = text.charAt(index);
+        return !(Character.isLetterOrDigit(c) || c == '_');
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if a newer search started in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Collects hits and hands them to the FX thread in batches.
+     */
+    private class Batcher {
+        private final SearchListener listener;
+        private final int myGeneration;
+        private int[] starts = new int[BATCH_SIZE];
+        private int[] ends = new int[BATCH_SIZE];
+        private int count;
+        private int total;
+        private long lastFlush = System.nanoTime();
+
+        Batcher(SearchListener listener, int myGeneration) {
+            this.listener = listener;
+            this.myGeneration = myGeneration;
+        }
+
+        void add(int start, int end) {
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+            total++;
+            if (count == BATCH_SIZE || System.nanoTime() - lastFlush > BATCH_NANOS) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (count == 0)
+                return;
+            int[] batchStarts = Arrays.copyOf(starts, count);
+            int[] batchEnds = Arrays.copyOf(ends, count);
+            count = 0;
+            lastFlush = System.nanoTime();
+            deliver(myGeneration, () -> listener.onHits(batchStarts, batchEnds));
+        }
+
+        void finish() {
+            flush();
+            int hits = total;
+            deliver(myGeneration, () -> listener.onFinished(hits));
+        }
+    }
+
+    /**
+     * Text view that throws {@link CancellationException} once its search has been replaced,
+     * which also aborts a regex that is stuck backtracking.
+     */
+    private static class CancellableText implements CharSequence {
+        private final String text;
+        private final AtomicInteger generation;
+        private final int myGeneration;
+
+        CancellableText(String text, AtomicInteger generation, int myGeneration) {
+            this.text = text;
+            this.generation = generation;
+            this.myGeneration = myGeneration;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (generation.get() != myGeneration) {
+                throw new CancellationException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+
+        int indexOfBreak(int from) {
+            int index = text.indexOf('\n', from);
+            return index < 0 ? text.length() : index;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package bte;
+
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.reactfx.util.Either;
+
+import java.util.Arrays;
+
+/**
+ * Document-wide text search on top of the {@link ParagraphIndex}.
+ * Every paragraph record carries a Bloom filter of its trigrams, so a query only reads the
+ * text of paragraphs that may contain all of the query's trigrams. Results are cached per
+ * document version, so searching an unchanged document again costs nothing.
+ */
+public class SearchIndex {
+
+    private final StyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private final ParagraphIndex paragraphIndex;
+
+    private String cachedQuery;
+    private long cachedVersion = -1;
+    private int[] cachedHits = new int[0];
+
+    public SearchIndex(StyledDocument<ParStyle, Either<String, Node>, CharStyle> document,
+            ParagraphIndex paragraphIndex) {
+        this.document = document;
+        this.paragraphIndex = paragraphIndex;
+    }
+
+    /**
+     * Returns the start offsets of all (possibly overlapping) occurrences of the query, in
+     * document order.
+     */
+    public int[] findAll(String query) {
+        if (query == null || query.isEmpty()) {
+            return new int[0];
+        }
+        if (query.equals(cachedQuery) && cachedVersion == paragraphIndex.getVersion()) {
+            return cachedHits;
+        }
+
+        int[] hits;
+        if (query.indexOf('\n') >= 0) {
+            // Matches across paragraphs are rare; search the plain text
+            hits = scanText(document.getText(), query);
+        } else {
+            hits = scanParagraphs(query);
+        }
+
+        cachedQuery = query;
+        cachedVersion = paragraphIndex.getVersion();
+        cachedHits = hits;
+        return hits;
+    }
+
+    private int[] scanParagraphs(String query) {
+        int[] trigrams = new int[Math.max(0, query.length() - 2)];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ParagraphIndex.trigramHash(query, i);
+        }
+
+        int[][] hits = { new int[16] };
+        int[] hitCount = { 0 };
+        paragraphIndex.forEach((record, index, offset) -> {
+            if (record.getLength() < query.length() || !record.mayContain(trigrams)) {
+                return;
+            }
+            String text = document.getParagraph(index).getText();
+            for (int at = text.indexOf(query); at >= 0; at = text.indexOf(query, at + 1)) {
+                if (hitCount[0] == hits[0].length) {
+                    hits[0] = Arrays.copyOf(hits[0], hitCount[0] * 2);
+                }
+                hits[0][hitCount[0]++] = (int) (offset + at);
+            }
+        });
+        return Arrays.copyOf(hits[0], hitCount[0]);
+    }
+
+    private static int[] scanText(String text, String query) {
+        int[] hits = new int[16];
+        int count = 0;
+        for (int at = text.indexOf(query); at >= 0; at = text.indexOf(query, at + 1)) {
+            if (count == hits.length) {
+                hits = Arrays.copyOf(hits, count * 2);
+            }
+            hits[count++] = at;
+        }
+        return Arrays.copyOf(hits, count);
+    }
+}
@@ -0,0 +1,99 @@
+package bte;
+
+import java.util.Arrays;
+
+/**
+ * Hits of one search as [start, end) document offsets in document order, filled in batches
+ * while the search is running. Results belong to the document version they were computed for.
+ */
+public class SearchResults {
+
+    private final SearchEngine.Query query;
+    private final long version;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int size;
+    private boolean complete;
+
+    public SearchResults(SearchEngine.Query query, long version) {
+        this.query = query;
+        this.version = version;
+    }
+
+    public void add(int[] batchStarts, int[] batchEnds) {
+        int needed = size + batchStarts.length;
+        if (needed > starts.length) {
+            int capacity = Math.max(needed, starts.length * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        System.arraycopy(batchStarts, 0, starts, size, batchStarts.length);
+        System.arraycopy(batchEnds, 0, ends, size, batchEnds.length);
+        size = needed;
+    }
+
+    public void finish() {
+        complete = true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * True if these are the results of the given query on the given document version.
+     */
+    public boolean isFor(SearchEngine.Query query, long version) {
+        return this.query.equals(query) && this.version == version;
+    }
+
+    public SearchEngine.Query getQuery() {
+        return query;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Index of the first hit starting at or after the offset, or -1.
+     */
+    public int indexAtOrAfter(int offset) {
+        int i = Arrays.binarySearch(starts, 0, size, offset);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            // Several hits can start at the same offset
+            while (i > 0 && starts[i - 1] == offset) {
+                i--;
+            }
+        }
+        return i < size ? i : -1;
+    }
+
+    /**
+     * True if [start, end) is exactly one of the hits.
+     */
+    public boolean contains(int start, int end) {
+        int i = indexAtOrAfter(start);
+        while (i >= 0 && i < size && starts[i] == start) {
+            if (ends[i] == end) {
+                return true;
+            }
+            i++;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,196 @@
+package bte;
+
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.util.Duration;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.RichTextChange;
+import org.fxmisc.richtext.model.StyleSpan;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.StyleSpansBuilder;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
+import org.reactfx.SuspendableYes;
+import org.reactfx.util.Either;
+
+import java.util.List;
+
+/**
+ * Background compaction of style runs.
+ * Edited text is tracked as one dirty offset range that follows later edits. Once the document
+ * has been quiet for a moment, the paragraphs in that range are scanned a few hundred per pulse
+ * and adjacent runs with the same (interned) style are merged into one. The text and its look
+ * stay the same, and the undo history does not record the compaction.
+ * Style-only edits never show up as plain text changes, so this listens to the rich changes
+ * instead of the {@link DocumentChangePipeline}.
+ */
+public class SegmentCompactor {
+
+    private static final int PARAGRAPHS_PER_PULSE = 200;
+
+    private final EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private final SuspendableYes undoRecording;
+    private final PauseTransition quietTimer;
+
+    // Offsets still to be compacted, -1 when clean
+    private int dirtyFrom = -1;
+    private int dirtyTo = -1;
+    private boolean compacting = false;
+    private boolean stepScheduled = false;
+
+    private long runsMerged;
+    private long paragraphsCompacted;
+
+    /**
+     * @param undoRecording the suspendable condition of the document's undo manager; it is
+     *                      suspended while compacting
+     */
+    public SegmentCompactor(EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document,
+            SuspendableYes undoRecording, Duration quietPeriod) {
+        this.document = document;
+        this.undoRecording = undoRecording;
+        this.quietTimer = new PauseTransition(quietPeriod);
+        quietTimer.setOnFinished(e -> scheduleStep());
+        document.multiRichChanges().subscribe(this::onChanges);
+    }
+
+    private void onChanges(List<RichTextChange<ParStyle, Either<String, Node>, CharStyle>> changes) {
+        if (compacting)
+            return;
+        for (RichTextChange<ParStyle, Either<String, Node>, CharStyle> change : changes) {
+            int position = change.getPosition();
+            int removedEnd = position + change.getRemoved().length();
+            int insertedEnd = position + change.getInserted().length();
+            if (dirtyFrom < 0) {
+                dirtyFrom = position;
+                dirtyTo = insertedEnd;
+                continue;
+            }
+            // Move the existing range along with the edit, then add the edited text to it
+            int delta = insertedEnd - removedEnd;
+            if (dirtyFrom >= removedEnd) {
+                dirtyFrom += delta;
+            }
+            if (dirtyTo >= removedEnd) {
+                dirtyTo += delta;
+            } else if (dirtyTo > position) {
+                dirtyTo = insertedEnd;
+            }
+            dirtyFrom = Math.min(dirtyFrom, position);
+            dirtyTo = Math.max(dirtyTo, insertedEnd);
+        }
+        quietTimer.playFromStart();
+    }
+
+    private void scheduleStep() {
+        if (stepScheduled)
+            return;
+        stepScheduled = true;
+        Platform.runLater(this::compactStep);
+    }
+
+    private void compactStep() {
+        stepScheduled = false;
+        // Typing resumed; the quiet timer starts the next step
+        if (dirtyFrom < 0 || quietTimer.getStatus() == Animation.Status.RUNNING)
+            return;
+
+        int length = document.length();
+        int first = document.offsetToPosition(Math.min(dirtyFrom, length), Bias.Forward).getMajor();
+        int last = document.offsetToPosition(Math.min(dirtyTo, length), Bias.Backward).getMajor();
+        int end = Math.min(last, first + PARAGRAPHS_PER_PULSE - 1);
+        for (int p = first; p <= end; p++) {
+            compactParagraph(p);
+        }
+
+        if (end >= last) {
+            dirtyFrom = -1;
+            dirtyTo = -1;
+        } else {
+            dirtyFrom = document.position(end + 1, 0).toOffset();
+            scheduleStep();
+        }
+    }
+
+    private void compactParagraph(int paragraph) {
+        StyleSpans<CharStyle> spans = document.getParagraph(paragraph).getStyleSpans();
+        int count = spans.getSpanCount();
+        if (count < 2) {
+            return;
+        }
+
+        StyleSpansBuilder<CharStyle> builder = new StyleSpansBuilder<>(count);
+        CharStyle current = null;
+        int runLength = 0;
+        int merged = 0;
+        for (StyleSpan<CharStyle> span : spans) {
+            if (span.getLength() == 0) {
+                merged++;
+            } else if (span.getStyle() == current) {
+                runLength += span.getLength();
+                merged++;
+            } else {
+                if (current != null) {
+                    builder.add(current, runLength);
+                }
+                current = span.getStyle();
+                runLength = span.getLength();
+            }
+        }
+        if (merged == 0 || current == null) {
+            return;
+        }
+        builder.add(current, runLength);
+
+        StyleSpans<CharStyle> compacted = builder.create();
+        compacting = true;
+        try {
+            undoRecording.suspendWhile(() -> document.setStyleSpans(paragraph, 0, compacted));
+        } finally {
+            compacting = false;
+        }
+        runsMerged += merged;
+        paragraphsCompacted++;
+    }
+
+    /**
+     * Summary of rendered segments per paragraph, for diagnostics. Walks the whole document, so
+     * it is meant to be called on demand only.
+     */
+    public String describeSegments() {
+        List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs = document.getParagraphs();
+        long total = 0;
+        int max = 0;
+        int maxAt = 0;
+        int fragmented = 0;
+        for (int i = 0; i < paragraphs.size(); i++) {
+            Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph = paragraphs.get(i);
+            int segments = paragraph.getStyledSegments().size();
+            total += segments;
+            if (segments > max) {
+                max = segments;
+                maxAt = i;
+            }
+            if (hasMergeableRuns(paragraph.getStyleSpans())) {
+                fragmented++;
+            }
+        }
+        double average = paragraphs.isEmpty() ? 0 : (double) total / paragraphs.size();
+        return String.format("Segments: %d in %d paragraphs (avg %.1f, max %d in paragraph %d)%n"
+                + "Fragmented paragraphs: %d; compaction merged %d runs in %d paragraphs",
+                total, paragraphs.size(), average, max, maxAt + 1, fragmented, runsMerged, paragraphsCompacted);
+    }
+
+    private static boolean hasMergeableRuns(StyleSpans<CharStyle> spans) {
+        CharStyle previous = null;
+        for (StyleSpan<CharStyle> span : spans) {
+            if (span.getStyle() == previous || (span.getLength() == 0 && spans.getSpanCount() > 1)) {
+                return true;
+            }
+            previous = span.getStyle();
+        }
+        return false;
+    }
+}
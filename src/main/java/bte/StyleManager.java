@@ -2,6 +2,7 @@ package bte;
 
 import javafx.scene.paint.Color;
 import javafx.scene.control.IndexRange;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
 
 /**
  * Microsoft Word benzeri metin stillerini yöneten sınıf.
@@ -21,6 +22,7 @@ public class StyleManager {
         private String fontFamily;
         private Color textColor;
         private String additionalStyles; // Ek CSS stilleri
+        private CharStyle charStyle;
 
         public TextStyle(String name, String displayName, int fontSize, boolean isBold,
                 boolean isItalic, String fontFamily, Color textColor, String additionalStyles) {
@@ -67,38 +69,21 @@ public class StyleManager {
         }
 
         /**
-         * Bu stilin CSS formatını döndürür
+         * Bu stilin karakter stilini döndürür (bir kez oluşturulur)
          */
-        public String toCSSStyle() {
-            StringBuilder css = new StringBuilder();
-            css.append("-fx-font-family: '").append(fontFamily).append("'; ");
-            css.append("-fx-font-size: ").append(fontSize).append("px; ");
-
-            if (isBold) {
-                css.append("-fx-font-weight: bold; ");
-            } else {
-                css.append("-fx-font-weight: normal; ");
-            }
-
-            if (isItalic) {
-                css.append("-fx-font-style: italic; ");
-            } else {
-                css.append("-fx-font-style: normal; ");
-            }
-
-            if (textColor != null) {
-                String colorHex = String.format("#%02X%02X%02X",
-                        (int) (textColor.getRed() * 255),
-                        (int) (textColor.getGreen() * 255),
-                        (int) (textColor.getBlue() * 255));
-                css.append("-fx-fill: ").append(colorHex).append("; ");
-            }
-
-            if (additionalStyles != null && !additionalStyles.isEmpty()) {
-                css.append(additionalStyles);
+        public CharStyle toCharStyle() {
+            if (charStyle == null) {
+                charStyle = CharStyle.of(fontFamily, fontSize, isBold, isItalic, false, false, textColor, null,
+                        additionalStyles);
             }
+            return charStyle;
+        }
 
-            return css.toString().trim();
+        /**
+         * Bu stilin CSS formatını döndürür
+         */
+        public String toCSSStyle() {
+            return toCharStyle().toCss();
         }
     }
 
@@ -156,96 +141,43 @@ public class StyleManager {
     }
 
     /**
-     * Belirtilen stili CustomEditor'daki seçili metne uygular
+     * Belirtilen stili CustomEditor'daki seçili metne uygular.
+     * Stil adı, seçimin dokunduğu paragraflara paragraf stili olarak da yazılır; başlıklar
+     * ve mevcut stil bu addan okunur.
      */
     public static void applyStyle(CustomEditor editor, TextStyle style) {
         IndexRange selection = editor.getSelection();
+        int currentParagraph = editor.getCurrentParagraph();
 
         if (selection.getLength() > 0) {
             // Seçili metin varsa, sadece seçili metne stil uygula
-            editor.setStyle(selection.getStart(), selection.getEnd(), style.toCSSStyle());
+            editor.setStyle(selection.getStart(), selection.getEnd(), style.toCharStyle());
+
+            int first = editor.offsetToPosition(selection.getStart(), Bias.Forward).getMajor();
+            int last = editor.offsetToPosition(selection.getEnd(), Bias.Backward).getMajor();
+            for (int p = first; p <= last; p++) {
+                editor.setParagraphStyleName(p, style.getName());
+            }
         } else {
             // Seçili metin yoksa, mevcut paragrafa stil uygula
-            int currentParagraph = editor.getCurrentParagraph();
             int paraStart = editor.getAbsolutePosition(currentParagraph, 0);
             int paraEnd = paraStart + editor.getParagraphLength(currentParagraph);
 
             if (paraEnd > paraStart) {
-                editor.setStyle(paraStart, paraEnd, style.toCSSStyle());
+                editor.setStyle(paraStart, paraEnd, style.toCharStyle());
             }
+            editor.setParagraphStyleName(currentParagraph, style.getName());
         }
 
         editor.requestFocus();
     }
 
     /**
-     * Mevcut cursor pozisyonundaki/seçili metindeki stilin ismini döndürür
-     * Stil tespit edilemezse "Normal" döndürür
+     * Cursor'un bulunduğu paragrafın stil ismini döndürür.
+     * Adı olmayan paragraflar "Normal" sayılır.
      */
     public static String getCurrentStyleName(CustomEditor editor) {
-        IndexRange selection = editor.getSelection();
-        int position = selection.getStart();
-
-        if (position >= editor.getLength()) {
-            position = editor.getLength() - 1;
-        }
-
-        if (position < 0) {
-            return "Normal";
-        }
-
-        try {
-            String style = editor.getStyleAtPosition(position);
-            if (style == null || style.isEmpty()) {
-                return "Normal";
-            }
-
-            // Font boyutunu çıkar ve stil tahmin et
-            int fontSize = extractFontSize(style);
-            boolean isBold = style.contains("bold");
-
-            if (fontSize >= 32 && isBold)
-                return "Heading1";
-            if (fontSize >= 24 && isBold)
-                return "Heading2";
-            if (fontSize >= 18 && isBold)
-                return "Heading3";
-            if (fontSize >= 36)
-                return "Title";
-            if (style.contains("italic") && fontSize == 16)
-                return "Subtitle";
-            if (style.contains("Georgia"))
-                return "Quote";
-            if (style.contains("Courier"))
-                return "Code";
-
-        } catch (Exception e) {
-            // Hata durumunda Normal döndür
-        }
-
-        return "Normal";
-    }
-
-    /**
-     * CSS stilinden font boyutunu çıkarır
-     */
-    private static int extractFontSize(String style) {
-        if (style == null || style.isEmpty()) {
-            return 14;
-        }
-
-        String[] parts = style.split(";");
-        for (String part : parts) {
-            if (part.contains("-fx-font-size:")) {
-                String sizeStr = part.split(":")[1].trim();
-                sizeStr = sizeStr.replace("px", "").trim();
-                try {
-                    return Integer.parseInt(sizeStr);
-                } catch (NumberFormatException e) {
-                    return 14;
-                }
-            }
-        }
-        return 14;
+        String name = editor.getParagraph(editor.getCurrentParagraph()).getParagraphStyle().getName();
+        return name != null ? name : NORMAL.getName();
     }
 }
@@ -0,0 +1,182 @@
+package bte;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses inline CSS style strings (paragraph styles, imported styles) into their declarations.
+ * All callers share one bounded LRU cache keyed by the style string, so a document that uses
+ * the same few paragraph styles on thousands of paragraphs is parsed once per distinct style,
+ * whether it is being measured, exported or saved.
+ */
+public class StyleParser {
+
+    private static final Pattern DECLARATION = Pattern.compile("\\s*([-a-zA-Z0-9]+)\\s*:\\s*([^;]*?)\\s*(?:;|$)");
+    private static final Pattern NUMBER = Pattern.compile("(-?[\\d.]+)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int CACHE_SIZE = 512;
+
+    private static final Map<String, ParsedStyle> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedStyle> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static long parses;
+    private static long lookups;
+
+    /**
+     * The declarations of one style string. Instances are shared and immutable.
+     */
+    public static class ParsedStyle {
+        private final Map<String, String> declarations;
+        // top, right, bottom, left
+        private final double[] padding;
+        private final double lineSpacing;
+
+        private ParsedStyle(Map<String, String> declarations) {
+            this.declarations = Collections.unmodifiableMap(declarations);
+            this.padding = parsePadding(declarations.get("-fx-padding"));
+            this.lineSpacing = parseNumber(declarations.get("-fx-line-spacing"));
+        }
+
+        /**
+         * Value of the property as written (without the trailing ';'), or null.
+         */
+        public String get(String property) {
+            return declarations.get(property);
+        }
+
+        public Map<String, String> getDeclarations() {
+            return declarations;
+        }
+
+        /**
+         * Lower-case {@code -fx-text-alignment}, or null.
+         */
+        public String getTextAlignment() {
+            String align = declarations.get("-fx-text-alignment");
+            return align == null ? null : align.toLowerCase();
+        }
+
+        public double getPaddingTop() {
+            return padding[0];
+        }
+
+        public double getPaddingRight() {
+            return padding[1];
+        }
+
+        public double getPaddingBottom() {
+            return padding[2];
+        }
+
+        public double getPaddingLeft() {
+            return padding[3];
+        }
+
+        /**
+         * Extra line spacing in em, 0 if not set.
+         */
+        public double getLineSpacing() {
+            return lineSpacing;
+        }
+    }
+
+    private static final ParsedStyle EMPTY = new ParsedStyle(new LinkedHashMap<>());
+
+    /**
+     * Returns the parsed form of the style, from the cache if it was seen recently.
+     */
+    public static ParsedStyle parse(String style) {
+        if (style == null || style.isBlank()) {
+            return EMPTY;
+        }
+        synchronized (CACHE) {
+            lookups++;
+            ParsedStyle parsed = CACHE.get(style);
+            if (parsed == null) {
+                parses++;
+                parsed = new ParsedStyle(parseDeclarations(style));
+                CACHE.put(style, parsed);
+            }
+            return parsed;
+        }
+    }
+
+    /**
+     * Number of style strings actually parsed, i.e. cache misses.
+     */
+    public static long getParseCount() {
+        synchronized (CACHE) {
+            return parses;
+        }
+    }
+
+    public static long getLookupCount() {
+        synchronized (CACHE) {
+            return lookups;
+        }
+    }
+
+    private static Map<String, String> parseDeclarations(String style) {
+        Map<String, String> declarations = new LinkedHashMap<>();
+        Matcher m = DECLARATION.matcher(style);
+        while (m.find()) {
+            if (m.end() == m.start()) {
+                break;
+            }
+            // Later declarations win, as in CSS
+            declarations.put(m.group(1).toLowerCase(), m.group(2));
+        }
+        return declarations;
+    }
+
+    private static double[] parsePadding(String value) {
+        double[] result = new double[4];
+        if (value == null || value.isEmpty()) {
+            return result;
+        }
+        String[] parts = WHITESPACE.split(value.trim());
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = parseNumber(parts[i]);
+        }
+        switch (values.length) {
+            case 1:
+                result[0] = result[1] = result[2] = result[3] = values[0];
+                break;
+            case 2:
+                result[0] = result[2] = values[0];
+                result[1] = result[3] = values[1];
+                break;
+            case 3:
+                result[0] = values[0];
+                result[1] = result[3] = values[1];
+                result[2] = values[2];
+                break;
+            default:
+                System.arraycopy(values, 0, result, 0, 4);
+        }
+        return result;
+    }
+
+    private static double parseNumber(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Matcher m = NUMBER.matcher(value);
+        if (m.find()) {
+            try {
+                return Double.parseDouble(m.group(1));
+            } catch (NumberFormatException e) {
+                // Malformed values count as unset
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+package bte;
+
+import javafx.scene.Node;
+import javafx.scene.paint.Color;
+import org.fxmisc.richtext.model.Paragraph;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocumentBuilder;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.fxmisc.richtext.model.TextOps;
+import org.reactfx.util.Either;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of styled text, for document content that is kept off the heap.
+ * Paragraph and character styles are interned, so each distinct style is written once per
+ * stream and referred to by a small number afterwards. Embedded nodes (images, tables) cannot
+ * be written out; they are replaced by their position in a side list that the caller keeps
+ * together with the bytes.
+ */
+public final class StyledTextCodec {
+
+    private static final TextOps<Either<String, Node>, CharStyle> SEGMENT_OPS = CustomEditor.createTextOps();
+
+    private static final int TEXT = 0;
+    private static final int NODE = 1;
+
+    private StyledTextCodec() {
+    }
+
+    /**
+     * Writes styled documents to one stream.
+     */
+    public static final class Writer {
+        private final DataOutput out;
+        private final List<Node> nodes;
+        private final Map<ParStyle, Integer> parStyles = new IdentityHashMap<>();
+        private final Map<CharStyle, Integer> charStyles = new IdentityHashMap<>();
+
+        /**
+         * @param nodes receives the embedded nodes, in the order they are referred to
+         */
+        public Writer(DataOutput out, List<Node> nodes) {
+            this.out = out;
+            this.nodes = nodes;
+        }
+
+        public void write(StyledDocument<ParStyle, Either<String, Node>, CharStyle> document) throws IOException {
+            write(document.getParagraphs());
+        }
+
+        /**
+         * Writes the paragraphs as one document.
+         */
+        public void write(List<Paragraph<ParStyle, Either<String, Node>, CharStyle>> paragraphs) throws IOException {
+            writeVarInt(out, paragraphs.size());
+            for (Paragraph<ParStyle, Either<String, Node>, CharStyle> paragraph : paragraphs) {
+                writeParStyle(paragraph.getParagraphStyle());
+                List<StyledSegment<Either<String, Node>, CharStyle>> segments = paragraph.getStyledSegments();
+                writeVarInt(out, segments.size());
+                for (StyledSegment<Either<String, Node>, CharStyle> segment : segments) {
+                    writeCharStyle(segment.getStyle());
+                    if (segment.getSegment().isLeft()) {
+                        out.writeByte(TEXT);
+                        writeString(out, segment.getSegment().getLeft());
+                    } else {
+                        out.writeByte(NODE);
+                        writeVarInt(out, nodes.size());
+                        nodes.add(segment.getSegment().getRight());
+                    }
+                }
+            }
+        }
+
+        // A new style is written in full under the next free number
+        private void writeParStyle(ParStyle style) throws IOException {
+            Integer id = parStyles.get(style);
+            if (id != null) {
+                writeVarInt(out, id);
+                return;
+            }
+            writeVarInt(out, parStyles.size());
+            parStyles.put(style, parStyles.size());
+            writeNullableString(out, style.getName());
+            writeString(out, style.getCss());
+            out.writeByte(style.getListType().ordinal());
+            writeVarInt(out, style.getListLevel());
+        }
+
+        private void writeCharStyle(CharStyle style) throws IOException {
+            Integer id = charStyles.get(style);
+            if (id != null) {
+                writeVarInt(out, id);
+                return;
+            }
+            writeVarInt(out, charStyles.size());
+            charStyles.put(style, charStyles.size());
+            writeNullableString(out, style.getFontFamily());
+            out.writeDouble(style.getFontSize());
+            out.writeByte((style.isBold() ? 1 : 0) | (style.isItalic() ? 2 : 0) | (style.isUnderline() ? 4 : 0)
+                    | (style.isStrikethrough() ? 8 : 0));
+            writeColor(out, style.getColor());
+            writeColor(out, style.getHighlight());
+            writeString(out, style.getExtraCss());
+        }
+    }
+
+    /**
+     * Reads back the documents of a stream written by a {@link Writer}.
+     */
+    public static final class Reader {
+        private final DataInput in;
+        private final List<Node> nodes;
+        private final List<ParStyle> parStyles = new ArrayList<>();
+        private final List<CharStyle> charStyles = new ArrayList<>();
+
+        /**
+         * @param nodes the embedded nodes the writer collected
+         */
+        public Reader(DataInput in, List<Node> nodes) {
+            this.in = in;
+            this.nodes = nodes;
+        }
+
+        public ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> read() throws IOException {
+            int paragraphCount = readVarInt(in);
+            ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder =
+                    new ReadOnlyStyledDocumentBuilder<>(SEGMENT_OPS, ParStyle.EMPTY, paragraphCount);
+            readParagraphs(builder, paragraphCount);
+            return builder.build();
+        }
+
+        /**
+         * Adds the paragraphs of the next document in the stream to the builder, so that several
+         * documents can be joined without copying.
+         */
+        public void readInto(ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder)
+                throws IOException {
+            readParagraphs(builder, readVarInt(in));
+        }
+
+        private void readParagraphs(ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder,
+                int paragraphCount) throws IOException {
+            for (int p = 0; p < paragraphCount; p++) {
+                ParStyle paragraphStyle = readParStyle();
+                int segmentCount = readVarInt(in);
+                List<StyledSegment<Either<String, Node>, CharStyle>> segments = new ArrayList<>(segmentCount);
+                for (int s = 0; s < segmentCount; s++) {
+                    CharStyle style = readCharStyle();
+                    Either<String, Node> segment = in.readByte() == TEXT
+                            ? Either.left(readString(in))
+                            : Either.right(nodes.get(readVarInt(in)));
+                    segments.add(new StyledSegment<>(segment, style));
+                }
+                if (segments.isEmpty()) {
+                    segments.add(new StyledSegment<>(Either.left(""), CharStyle.EMPTY));
+                }
+                builder.addParagraph(segments, paragraphStyle);
+            }
+        }
+
+        private ParStyle readParStyle() throws IOException {
+            int id = readVarInt(in);
+            if (id < parStyles.size()) {
+                return parStyles.get(id);
+            }
+            String name = readNullableString(in);
+            String css = readString(in);
+            ParStyle.ListType listType = ParStyle.ListType.values()[in.readByte()];
+            ParStyle style = ParStyle.of(name, css, listType, readVarInt(in));
+            parStyles.add(style);
+            return style;
+        }
+
+        private CharStyle readCharStyle() throws IOException {
+            int id = readVarInt(in);
+            if (id < charStyles.size()) {
+                return charStyles.get(id);
+            }
+            String fontFamily = readNullableString(in);
+            double fontSize = in.readDouble();
+            int flags = in.readByte();
+            Color color = readColor(in);
+            Color highlight = readColor(in);
+            CharStyle style = CharStyle.of(fontFamily, fontSize, (flags & 1) != 0, (flags & 2) != 0,
+                    (flags & 4) != 0, (flags & 8) != 0, color, highlight, readString(in));
+            charStyles.add(style);
+            return style;
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length");
+    }
+
+    // UTF-8 with a length prefix; DataOutput.writeUTF is limited to 64 KB
+    static void writeString(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeNullableString(DataOutput out, String text) throws IOException {
+        out.writeBoolean(text != null);
+        if (text != null) {
+            writeString(out, text);
+        }
+    }
+
+    static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static void writeColor(DataOutput out, Color color) throws IOException {
+        out.writeBoolean(color != null);
+        if (color != null) {
+            out.writeDouble(color.getRed());
+            out.writeDouble(color.getGreen());
+            out.writeDouble(color.getBlue());
+            out.writeDouble(color.getOpacity());
+        }
+    }
+
+    private static Color readColor(DataInput in) throws IOException {
+        return in.readBoolean() ? new Color(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble())
+                : null;
+    }
+}
@@ -0,0 +1,287 @@
+package bte;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocumentBuilder;
+import org.fxmisc.richtext.model.StyledSegment;
+import org.reactfx.util.Either;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background import of plain text files.
+ * The file is read a block at a time into one reused buffer and decoded from there, so only the
+ * chunks on their way to the document are held besides it. It is not memory-mapped: a mapping
+ * stays open until it is garbage collected, and on Windows that keeps a save from replacing the
+ * file. The encoding comes from the byte
+ * order mark; without one the start of the file is checked for valid UTF-8, and anything else is
+ * read in the platform's legacy encoding. Every line becomes a paragraph, delivered in chunks the
+ * way the {@link DocxImporter} delivers them, so the first page shows up at once.
+ */
+public class TextImporter {
+
+    // Read at a time; a block ends inside a character at most, which the decoder carries over
+    private static final int READ_BYTES = 1024 * 1024;
+    // Checked for UTF-8 before the file is decoded
+    private static final int DETECTION_BYTES = 64 * 1024;
+    private static final int DECODE_CHARS = 64 * 1024;
+    // The first chunk only needs to fill the first pages
+    private static final int FIRST_CHUNK_PARAGRAPHS = 100;
+    private static final int CHUNK_PARAGRAPHS = 2000;
+    private static final long CHUNK_NANOS = 100_000_000L;
+    // Chunks handed to the FX thread but not applied yet
+    private static final int CHUNKS_IN_FLIGHT = 2;
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    /**
+     * Starts reading the file, cancelling any import still running.
+     */
+    public void load(File file, DocxImporter.ImportListener listener) {
+        cancel();
+        int myGeneration = generation.get();
+        listener.onProgress(-1);
+        worker = Thread.ofVirtual().name("text-import").start(() -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                new Reader(channel, myGeneration, listener).read();
+                deliver(myGeneration, listener::onFinished);
+            } catch (CancellationException | InterruptedException e) {
+                // A newer import replaced this one
+            } catch (IOException | RuntimeException e) {
+                deliver(myGeneration, () -> listener.onError(e.getMessage()));
+            } finally {
+                if (generation.get() == myGeneration) {
+                    worker = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the running import; nothing more of it is delivered.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+            worker = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    /**
+     * The encoding of a file that starts with these bytes, and the length of its byte order mark.
+     */
+    static Charset detectCharset(ByteBuffer start, int[] bomLength) {
+        int b0 = start.remaining() > 0 ? start.get(0) & 0xFF : -1;
+        int b1 = start.remaining() > 1 ? start.get(1) & 0xFF : -1;
+        int b2 = start.remaining() > 2 ? start.get(2) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            bomLength[0] = 3;
+            return StandardCharsets.UTF_8;
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            bomLength[0] = 2;
+            return StandardCharsets.UTF_16BE;
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            bomLength[0] = 2;
+            return StandardCharsets.UTF_16LE;
+        }
+        bomLength[0] = 0;
+        if (isUtf8(start.slice(0, Math.min(start.remaining(), DETECTION_BYTES)), start.remaining() <= DETECTION_BYTES))
+            return StandardCharsets.UTF_8;
+        return legacyCharset();
+    }
+
+    private static boolean isUtf8(ByteBuffer bytes, boolean complete) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(DECODE_CHARS);
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, complete);
+            if (result.isError())
+                return false;
+            if (result.isUnderflow())
+                return true; // A character cut off at the end of the sample is fine
+            chars.clear();
+        }
+    }
+
+    // What FileReader used before UTF-8 became the default
+    private static Charset legacyCharset() {
+        try {
+            Charset charset = Charset.forName(System.getProperty("native.encoding"));
+            // Neither can be what a file that is not UTF-8 was written in
+            if (!charset.equals(StandardCharsets.UTF_8) && !charset.equals(StandardCharsets.US_ASCII))
+                return charset;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // Unknown to this runtime
+        }
+        // Decodes any byte
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     * Reads one file.
+     */
+    private class Reader {
+        private final FileChannel channel;
+        private final int myGeneration;
+        private final DocxImporter.ImportListener listener;
+        private final Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+
+        private ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder;
+        private int paragraphs;
+        private boolean first = true;
+        private long started = System.nanoTime();
+        // The line being read, and whether the last character was a CR that may precede an LF
+        private final StringBuilder line = new StringBuilder();
+        private boolean afterCarriageReturn;
+
+        Reader(FileChannel channel, int myGeneration, DocxImporter.ImportListener listener) {
+            this.channel = channel;
+            this.myGeneration = myGeneration;
+            this.listener = listener;
+        }
+
+        void read() throws IOException, InterruptedException {
+            long size = channel.size();
+            ByteBuffer block = ByteBuffer.allocate(READ_BYTES);
+            long read = fill(block);
+            block.flip();
+            int[] bomLength = new int[1];
+            Charset charset = detectCharset(block, bomLength);
+            // A malformed sequence past the checked start does not stop the import
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(DECODE_CHARS);
+            builder = newBuilder(true);
+
+            block.position(bomLength[0]);
+            while (true) {
+                boolean last = block.limit() < block.capacity();
+                CoderResult result;
+                do {
+                    if (generation.get() != myGeneration)
+                        throw new CancellationException();
+                    result = decoder.decode(block, chars, last);
+                    addText(chars.flip(), (double) (read - block.remaining()) / Math.max(size, 1));
+                    chars.clear();
+                } while (result.isOverflow());
+                if (last)
+                    break;
+                // The rest of a character cut off by the block starts the next one
+                block.compact();
+                read += fill(block);
+                block.flip();
+            }
+            while (decoder.flush(chars).isOverflow()) {
+                addText(chars.flip(), 1);
+                chars.clear();
+            }
+            addText(chars.flip(), 1);
+
+            // The last line has no line break after it, and may be empty
+            addParagraph();
+            deliverChunk(1);
+        }
+
+        // Reads until the buffer is full or the file ends; returns the number of bytes read
+        private long fill(ByteBuffer buffer) throws IOException {
+            long read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+            return read;
+        }
+
+        private void addText(CharBuffer text, double progress) throws InterruptedException {
+            while (text.hasRemaining()) {
+                char c = text.get();
+                if (c == '\n' && afterCarriageReturn) {
+                    // The second half of a CRLF
+                    afterCarriageReturn = false;
+                    continue;
+                }
+                afterCarriageReturn = c == '\r';
+                if (c == '\n' || c == '\r') {
+                    addParagraph();
+                    if (paragraphs >= (first ? FIRST_CHUNK_PARAGRAPHS : CHUNK_PARAGRAPHS)
+                            || System.nanoTime() - started > CHUNK_NANOS) {
+                        deliverChunk(progress);
+                    }
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+
+        private void addParagraph() {
+            builder.addParagraph(List.of(new StyledSegment<>(Either.left(line.toString()), CharStyle.EMPTY)),
+                    ParStyle.EMPTY);
+            line.setLength(0);
+            paragraphs++;
+        }
+
+        private void deliverChunk(double progress) throws InterruptedException {
+            ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> chunk = builder.build();
+            boolean isFirst = first;
+            // Waits while the FX thread is still busy with earlier chunks
+            inFlight.acquire();
+            deliver(myGeneration, () -> {
+                inFlight.release();
+                listener.onParagraphs(chunk, isFirst);
+                listener.onProgress(progress);
+            });
+            builder = newBuilder(false);
+            paragraphs = 0;
+            first = false;
+            started = System.nanoTime();
+        }
+
+        // Chunks after the first start with an empty paragraph, see DocxImporter.ImportListener
+        private ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> newBuilder(boolean first) {
+            ReadOnlyStyledDocumentBuilder<ParStyle, Either<String, Node>, CharStyle> builder =
+                    new ReadOnlyStyledDocumentBuilder<>(CustomEditor.createTextOps(), ParStyle.EMPTY);
+            if (!first) {
+                builder.addParagraph(List.of(new StyledSegment<>(Either.left(""), CharStyle.EMPTY)), ParStyle.EMPTY);
+            }
+            return builder;
+        }
+    }
+
+    private void deliver(int myGeneration, Runnable action) {
+        Platform.runLater(() -> {
+            // Dropped if the import was cancelled in the meantime
+            if (generation.get() == myGeneration) {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package bte;
+
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.GenericEditableStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactfx.util.Either;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reflow time per keystroke against the length of the document: one character is typed on the
+ * second page and the {@link PaginationEngine} re-paginates, as {@code MainApp} does once per
+ * pulse. With incremental reflow the time should not grow with the page count.
+ * Run with {@code mvn -Pbenchmark test -Dbenchmark=PaginationBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaginationBenchmark {
+
+    // Page content area of MainApp
+    private static final double CONTENT_HEIGHT = 842 - 2 * 50 - 80;
+    private static final double CONTENT_WIDTH = 595 - 2 * 50;
+    private static final int SAMPLE_PARAGRAPHS = 200;
+
+    @Param({"10", "50", "200"})
+    public int pages;
+
+    private EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private PaginationEngine engine;
+    private ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> typed;
+    private ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> nothing;
+    private int paragraph;
+    private int position;
+    private boolean inserted;
+
+    @Setup
+    public void setUp() {
+        // Scale a sample to the page count, then add paragraphs until it is reached
+        int paragraphs = SAMPLE_PARAGRAPHS;
+        paginate(paragraphs);
+        paragraphs = (int) Math.ceil((double) paragraphs * pages / engine.getPageCount());
+        paginate(paragraphs);
+        while (engine.getPageCount() < pages) {
+            paragraphs += Math.max(1, paragraphs / 100);
+            paginate(paragraphs);
+        }
+
+        typed = WordCountBenchmark.text("x");
+        nothing = WordCountBenchmark.text("");
+        // The middle of the second page
+        paragraph = (engine.getPageStart(1) + engine.getPageEnd(1, document.getParagraphs().size())) / 2;
+        position = document.getAbsolutePosition(paragraph, 0);
+    }
+
+    private void paginate(int paragraphs) {
+        StringBuilder text = new StringBuilder();
+        String sample = WordCountBenchmark.generateText(paragraphs * 80);
+        int breaks = 0;
+        for (int i = 0; i < sample.length() && breaks < paragraphs; i++) {
+            char c = sample.charAt(i);
+            if (c == '\n' && ++breaks == paragraphs)
+                break;
+            text.append(c);
+        }
+        document = new GenericEditableStyledDocument<>(ParStyle.EMPTY, CharStyle.EMPTY, CustomEditor.createTextOps());
+        document.replace(0, 0, WordCountBenchmark.text(text.toString()));
+        engine = new PaginationEngine(CONTENT_HEIGHT, CONTENT_WIDTH);
+        engine.reset();
+        engine.reflow(document);
+    }
+
+    @Benchmark
+    public int keystroke() {
+        // Typed and taken back in turns, so the document keeps its size
+        if (inserted) {
+            document.replace(position, position + 1, nothing);
+        } else {
+            document.replace(position, position, typed);
+        }
+        inserted = !inserted;
+        engine.paragraphsChanged(paragraph, 0, 0);
+        engine.reflow(document);
+        return engine.getLastPagesVisited();
+    }
+}
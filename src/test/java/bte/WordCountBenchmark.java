@@ -0,0 +1,106 @@
+package bte;
+
+import javafx.scene.Node;
+import org.fxmisc.richtext.model.EditableStyledDocument;
+import org.fxmisc.richtext.model.GenericEditableStyledDocument;
+import org.fxmisc.richtext.model.ReadOnlyStyledDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactfx.util.Either;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping the word count up to date per keystroke, on 1 MB of text: the incremental
+ * {@link ParagraphIndex} against the old recount, which split the whole text on every change.
+ * Run with {@code mvn -Pbenchmark test -Dbenchmark=WordCountBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WordCountBenchmark {
+
+    static final int TEXT_SIZE = 1024 * 1024;
+
+    /**
+     * {@code split}: {@code trim().split("\\s+")} over the document text, as before the index.
+     * {@code index}: the paragraph index, updated from the change of the keystroke.
+     */
+    @Param({"split", "index"})
+    public String counter;
+
+    private EditableStyledDocument<ParStyle, Either<String, Node>, CharStyle> document;
+    private ParagraphIndex index;
+    private ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> typed;
+    private ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> nothing;
+    private int position;
+    private boolean inserted;
+
+    @Setup
+    public void setUp() {
+        document = new GenericEditableStyledDocument<>(ParStyle.EMPTY, CharStyle.EMPTY, CustomEditor.createTextOps());
+        document.replace(0, 0, text(generateText(TEXT_SIZE)));
+        if (counter.equals("index")) {
+            index = new ParagraphIndex(document);
+            document.multiPlainChanges().subscribe(index::applyChanges);
+        }
+        typed = text("x");
+        nothing = text("");
+        position = document.getLength() / 3;
+    }
+
+    @Benchmark
+    public long keystroke() {
+        // Typed and taken back in turns, so the document keeps its size
+        if (inserted) {
+            document.replace(position, position + 1, nothing);
+        } else {
+            document.replace(position, position, typed);
+        }
+        inserted = !inserted;
+
+        if (index != null)
+            return index.getTotalWords();
+        String text = document.getText();
+        return text.trim().isEmpty() ? 0 : text.trim().split("\\s+").length;
+    }
+
+    static ReadOnlyStyledDocument<ParStyle, Either<String, Node>, CharStyle> text(String text) {
+        return ReadOnlyStyledDocument.fromString(text, ParStyle.EMPTY, CharStyle.EMPTY, CustomEditor.createTextOps());
+    }
+
+    /**
+     * Words of 1-10 letters, with a paragraph break every 5-20 words.
+     */
+    static String generateText(int size) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 32);
+        int wordsLeft = 5 + random.nextInt(16);
+        while (text.length() < size) {
+            int letters = 1 + random.nextInt(10);
+            for (int i = 0; i < letters; i++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            if (--wordsLeft == 0) {
+                text.append('\n');
+                wordsLeft = 5 + random.nextInt(16);
+            } else {
+                text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+}